@@ -0,0 +1,103 @@
+package com.bigboxer23.meural_control;
+
+import com.bigboxer23.utils.command.Command;
+import com.bigboxer23.utils.command.VoidCommand;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.springframework.core.task.SimpleAsyncTaskExecutor;
+
+/**
+ * Runs blocking calls to the frame and the cloud services off the calling thread, so calls which
+ * don't depend on each other can be made at the same time.
+ */
+public class BlockingTaskExecutor implements Executor, AutoCloseable {
+	private static final String kThreadPrefix = "meural-blocking-";
+
+	private final Executor delegate;
+
+	/**
+	 * @param delegate runs the tasks, closed along with this
+	 */
+	public BlockingTaskExecutor(Executor delegate) {
+		this.delegate = delegate;
+	}
+
+	/**
+	 * @param virtualThreads run each task on its own virtual thread, rather than a pool of platform
+	 *     threads. Only possible when running on Java 21 or later.
+	 */
+	public static BlockingTaskExecutor create(boolean virtualThreads) {
+		if (virtualThreads) {
+			SimpleAsyncTaskExecutor executor = new SimpleAsyncTaskExecutor(kThreadPrefix);
+			executor.setVirtualThreads(true);
+			return new BlockingTaskExecutor(executor);
+		}
+		AtomicInteger threadCount = new AtomicInteger();
+		return new BlockingTaskExecutor(Executors.newCachedThreadPool(runnable -> {
+			Thread thread = new Thread(runnable, kThreadPrefix + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}));
+	}
+
+	@Override
+	public void execute(Runnable command) {
+		delegate.execute(command);
+	}
+
+	/** Start the command, its IOException is thrown again by {@link #await(Future)} */
+	public <T> CompletableFuture<T> supply(Command<T> command) {
+		return CompletableFuture.supplyAsync(
+				() -> {
+					try {
+						return command.execute();
+					} catch (IOException e) {
+						throw new CompletionException(e);
+					}
+				},
+				this);
+	}
+
+	public CompletableFuture<Void> run(VoidCommand command) {
+		return supply(() -> {
+			command.execute();
+			return null;
+		});
+	}
+
+	/** Wait for a task's result, throwing what it threw */
+	public static <T> T await(Future<T> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			future.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted waiting for task");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		}
+	}
+
+	@Override
+	public void close() {
+		if (delegate instanceof ExecutorService) {
+			((ExecutorService) delegate).shutdownNow();
+		} else if (delegate instanceof SimpleAsyncTaskExecutor) {
+			((SimpleAsyncTaskExecutor) delegate).close();
+		}
+	}
+}
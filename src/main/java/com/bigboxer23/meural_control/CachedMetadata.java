@@ -0,0 +1,159 @@
+package com.bigboxer23.meural_control;
+
+import com.bigboxer23.utils.command.Command;
+import com.squareup.moshi.JsonAdapter;
+import com.squareup.moshi.JsonDataException;
+import com.squareup.moshi.JsonReader;
+import com.squareup.moshi.JsonWriter;
+import com.squareup.moshi.Moshi;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import lombok.extern.slf4j.Slf4j;
+import okio.Okio;
+
+/**
+ * A value fetched from a remote service and kept for a while. Concurrent callers finding it missing
+ * or expired wait on a single fetch rather than each making their own request. It can also be kept
+ * on disk, so it's still cached after a restart.
+ */
+@Slf4j
+public class CachedMetadata<T> {
+	private static final Moshi kMoshi = new Moshi.Builder().build();
+
+	private final String name;
+
+	private final Supplier<Duration> ttl;
+
+	private final Command<T> loader;
+
+	private final Object loadLock = new Object();
+
+	private volatile Entry<T> entry;
+
+	/** Bumped on invalidate, so a fetch that started before it isn't kept */
+	private final AtomicLong generation = new AtomicLong();
+
+	/** Where the value is kept on disk, null if it isn't */
+	private volatile File file;
+
+	private volatile JsonAdapter<T> adapter;
+
+	/**
+	 * @param name for logging
+	 * @param ttl how long a fetched value is used for
+	 * @param loader fetches the value
+	 */
+	public CachedMetadata(String name, Supplier<Duration> ttl, Command<T> loader) {
+		this.name = name;
+		this.ttl = ttl;
+		this.loader = loader;
+	}
+
+	public T get() throws IOException {
+		Entry<T> current = entry;
+		if (isValid(current)) {
+			return current.value();
+		}
+		synchronized (loadLock) {
+			current = entry;
+			if (isValid(current)) {
+				return current.value();
+			}
+			long loadGeneration = generation.get();
+			log.info("fetching " + name);
+			T value = loader.execute();
+			if (loadGeneration == generation.get()) {
+				set(value);
+			}
+			return value;
+		}
+	}
+
+	/** Replace the cached value, when a change made to the remote value is already known */
+	public void set(T value) {
+		entry = value == null
+				? null
+				: new Entry<>(value, System.currentTimeMillis() + ttl.get().toMillis());
+		save(entry);
+	}
+
+	public void invalidate() {
+		generation.incrementAndGet();
+		if (entry != null) {
+			log.info("invalidating " + name);
+			entry = null;
+		}
+		save(null);
+	}
+
+	/**
+	 * Keep the value on disk from now on, and use the one kept there if it hasn't expired. It
+	 * expires when it would have without a restart.
+	 *
+	 * @param type of value, read and written as json
+	 */
+	public void persistTo(File file, Class<T> type) {
+		adapter = kMoshi.adapter(type);
+		this.file = file;
+		if (entry != null || !file.exists()) {
+			return;
+		}
+		try (JsonReader reader = JsonReader.of(Okio.buffer(Okio.source(file)))) {
+			long expires = 0;
+			T value = null;
+			reader.beginObject();
+			while (reader.hasNext()) {
+				switch (reader.nextName()) {
+					case "expires" -> expires = reader.nextLong();
+					case "value" -> value = adapter.fromJson(reader);
+					default -> reader.skipValue();
+				}
+			}
+			reader.endObject();
+			Entry<T> saved = value == null ? null : new Entry<>(value, expires);
+			if (isValid(saved)) {
+				log.info("using saved " + name);
+				entry = saved;
+			}
+		} catch (IOException | JsonDataException e) {
+			log.warn("can't read saved " + name + " from " + file.getName(), e);
+		}
+	}
+
+	/**
+	 * @param toSave null to remove what's saved
+	 */
+	private synchronized void save(Entry<T> toSave) {
+		File saveTo = file;
+		if (saveTo == null) {
+			return;
+		}
+		try {
+			if (toSave == null) {
+				Files.deleteIfExists(saveTo.toPath());
+				return;
+			}
+			File tmp = new File(saveTo.getAbsolutePath() + ".tmp");
+			try (JsonWriter writer = JsonWriter.of(Okio.buffer(Okio.sink(tmp)))) {
+				writer.beginObject().name("expires").value(toSave.expires()).name("value");
+				adapter.toJson(writer, toSave.value());
+				writer.endObject();
+			}
+			Files.move(
+					tmp.toPath(), saveTo.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			log.warn("can't save " + name + " to " + saveTo.getName(), e);
+		}
+	}
+
+	private boolean isValid(Entry<T> current) {
+		return current != null && current.expires() > System.currentTimeMillis();
+	}
+
+	private record Entry<T>(T value, long expires) {}
+}
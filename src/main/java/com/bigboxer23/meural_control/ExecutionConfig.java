@@ -0,0 +1,22 @@
+package com.bigboxer23.meural_control;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.thread.Threading;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
+
+/**
+ * Threads for blocking work. Setting spring.threads.virtual.enabled (on Java 21+) moves the web
+ * layer, the scheduler and the calls made to the frame and the cloud services onto virtual threads.
+ */
+@Slf4j
+@Configuration
+public class ExecutionConfig {
+	@Bean(destroyMethod = "close")
+	public BlockingTaskExecutor blockingTaskExecutor(Environment environment) {
+		boolean virtualThreads = Threading.VIRTUAL.isActive(environment);
+		log.info("running blocking calls on " + (virtualThreads ? "virtual" : "platform") + " threads");
+		return BlockingTaskExecutor.create(virtualThreads);
+	}
+}
@@ -0,0 +1,171 @@
+package com.bigboxer23.meural_control;
+
+import com.bigboxer23.utils.command.Command;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Checks whether the frame is asleep in the background and keeps the answer, so asking doesn't need
+ * a request to the frame each time. While the frame can't be reached it's checked less and less
+ * often, up to a limit.
+ */
+@Slf4j
+public class FrameStatePoller implements AutoCloseable {
+	private final Command<Boolean> sleepCheck;
+
+	private final ScheduledExecutorService executor;
+
+	private final Counter polls;
+
+	private final Counter failures;
+
+	private volatile FrameState state;
+
+	private volatile long intervalMillis;
+
+	private volatile long maxBackoffMillis;
+
+	/** Time until the next check, grows while the frame can't be reached */
+	private volatile long delayMillis;
+
+	private volatile boolean started;
+
+	/** Bumped for each check scheduled, a check which isn't the latest one scheduled is skipped */
+	private long scheduledCheck;
+
+	/**
+	 * @param sleepCheck asks the frame whether it's asleep
+	 */
+	public FrameStatePoller(Command<Boolean> sleepCheck, MeterRegistry registry) {
+		this.sleepCheck = sleepCheck;
+		executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "meural-frame-state");
+			thread.setDaemon(true);
+			return thread;
+		});
+		polls = Counter.builder("meural.frame.poll")
+				.description("checks of the frame's state")
+				.tag("result", "reachable")
+				.register(registry);
+		failures = Counter.builder("meural.frame.poll")
+				.description("checks of the frame's state which couldn't reach it")
+				.tag("result", "unreachable")
+				.register(registry);
+		Gauge.builder("meural.frame.reachable", this, poller -> {
+					FrameState current = poller.state;
+					return current != null && current.reachable() ? 1 : 0;
+				})
+				.description("1 if the frame answered the last check of its state")
+				.register(registry);
+	}
+
+	/**
+	 * Start checking the frame, the first check is made straight away
+	 *
+	 * @param interval time between checks while the frame can be reached
+	 * @param maxBackoff longest time between checks while it can't
+	 */
+	public void start(Duration interval, Duration maxBackoff) {
+		intervalMillis = interval.toMillis();
+		maxBackoffMillis = Math.max(intervalMillis, maxBackoff.toMillis());
+		delayMillis = intervalMillis;
+		started = true;
+		log.info("checking meural state every " + interval.toSeconds() + "s");
+		schedule(0);
+	}
+
+	private synchronized void schedule(long delay) {
+		long check = ++scheduledCheck;
+		try {
+			executor.schedule(() -> poll(check), delay, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			// Shutting down
+		}
+	}
+
+	private void poll(long check) {
+		synchronized (this) {
+			if (check != scheduledCheck) {
+				return;
+			}
+		}
+		try {
+			FrameState previous = state;
+			state = new FrameState(sleepCheck.execute(), true, System.currentTimeMillis());
+			polls.increment();
+			delayMillis = intervalMillis;
+			if (previous != null && !previous.reachable()) {
+				log.info("meural reachable again");
+			}
+		} catch (Exception e) {
+			failures.increment();
+			FrameState previous = state;
+			if (previous == null || previous.reachable()) {
+				log.warn("can't reach meural to check its state", e);
+			}
+			state = new FrameState(previous != null && previous.asleep(), false, System.currentTimeMillis());
+			delayMillis = Math.min(delayMillis * 2, maxBackoffMillis);
+		} finally {
+			schedule(delayMillis);
+		}
+	}
+
+	/**
+	 * Record the frame's state, when it's been checked or changed some other way. It answered, so
+	 * if checks were backing off they go back to the usual interval.
+	 */
+	public void update(boolean asleep) {
+		state = new FrameState(asleep, true, System.currentTimeMillis());
+		resetBackoff();
+	}
+
+	private synchronized void resetBackoff() {
+		if (!started || delayMillis <= intervalMillis) {
+			return;
+		}
+		log.info("meural reachable again");
+		delayMillis = intervalMillis;
+		// Replaces the check scheduled with the longer delay
+		schedule(intervalMillis);
+	}
+
+	/**
+	 * @return the frame's state, empty if it isn't being checked or the last check is older than
+	 *     the next one is due
+	 */
+	public Optional<FrameState> getState() {
+		FrameState current = state;
+		if (!started || current == null) {
+			return Optional.empty();
+		}
+		boolean fresh = System.currentTimeMillis() - current.checked() <= delayMillis + intervalMillis;
+		return fresh ? Optional.of(current) : Optional.empty();
+	}
+
+	/**
+	 * @return time until the next check
+	 */
+	public long getDelayMillis() {
+		return delayMillis;
+	}
+
+	@Override
+	public void close() {
+		executor.shutdownNow();
+	}
+
+	/**
+	 * @param asleep last known sleep state, kept while the frame can't be reached
+	 * @param reachable whether the frame answered the last check
+	 * @param checked when the state was last checked
+	 */
+	public record FrameState(boolean asleep, boolean reachable, long checked) {}
+}
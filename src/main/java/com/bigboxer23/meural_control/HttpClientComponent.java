@@ -0,0 +1,230 @@
+package com.bigboxer23.meural_control;
+
+import com.bigboxer23.utils.http.RequestBuilderCallback;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import okhttp3.*;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+/**
+ * Http clients for each kind of host this talks to, each with its own connection pool and timeouts.
+ * The frame is on the local network so gives up connecting quickly and keeps its connection open
+ * between requests. The others use HTTP/2 where the server supports it. Call and connect times and
+ * pool use are recorded per client.
+ */
+@Component
+public class HttpClientComponent {
+	private final Client frame;
+
+	private final Client cloud;
+
+	private final Client openAI;
+
+	private final Client download;
+
+	public HttpClientComponent(Environment env, MeterRegistry registry) {
+		frame = new Client(
+				"frame",
+				build(env, "frame", 2, 10, List.of(Protocol.HTTP_1_1), new ConnectionPool(2, 5, TimeUnit.MINUTES)),
+				registry);
+		cloud = new Client(
+				"cloud",
+				build(
+						env,
+						"cloud",
+						10,
+						60,
+						List.of(Protocol.HTTP_2, Protocol.HTTP_1_1),
+						new ConnectionPool(5, 5, TimeUnit.MINUTES)),
+				registry);
+		openAI = new Client(
+				"openai",
+				build(
+						env,
+						"openai",
+						10,
+						180,
+						List.of(Protocol.HTTP_2, Protocol.HTTP_1_1),
+						new ConnectionPool(2, 5, TimeUnit.MINUTES)),
+				registry);
+		download = new Client(
+				"download",
+				build(
+						env,
+						"download",
+						10,
+						60,
+						List.of(Protocol.HTTP_2, Protocol.HTTP_1_1),
+						new ConnectionPool(5, 1, TimeUnit.MINUTES)),
+				registry);
+	}
+
+	/**
+	 * @param connectSeconds default connect timeout, overridden by http.{name}.connect-timeout-ms
+	 * @param readSeconds default read and write timeout, overridden by http.{name}.read-timeout-ms
+	 */
+	private OkHttpClient.Builder build(
+			Environment env,
+			String name,
+			long connectSeconds,
+			long readSeconds,
+			List<Protocol> protocols,
+			ConnectionPool pool) {
+		long connectMillis = env.getProperty(
+				"http." + name + ".connect-timeout-ms", Long.class, TimeUnit.SECONDS.toMillis(connectSeconds));
+		long readMillis = env.getProperty(
+				"http." + name + ".read-timeout-ms", Long.class, TimeUnit.SECONDS.toMillis(readSeconds));
+		return new OkHttpClient.Builder()
+				.connectTimeout(Duration.ofMillis(connectMillis))
+				.readTimeout(Duration.ofMillis(readMillis))
+				.writeTimeout(Duration.ofMillis(readMillis))
+				.protocols(protocols)
+				.connectionPool(pool);
+	}
+
+	/** The Meural's own local http server */
+	public Client getFrame() {
+		return frame;
+	}
+
+	/** The Meural cloud service */
+	public Client getCloud() {
+		return cloud;
+	}
+
+	public Client getOpenAI() {
+		return openAI;
+	}
+
+	/** Content downloaded from wherever a source points to */
+	public Client getDownload() {
+		return download;
+	}
+
+	/** One tuned client, with the same calls OkHttpUtil offers */
+	public static class Client {
+		private final String name;
+
+		private final OkHttpClient client;
+
+		private Client(String name, OkHttpClient.Builder builder, MeterRegistry registry) {
+			this.name = name;
+			Timer.Builder calls = Timer.builder("http.client.calls")
+					.description("time taken by http calls, until the response headers arrive")
+					.tag("client", name)
+					.publishPercentileHistogram();
+			Timer success = calls.tag("outcome", "success").register(registry);
+			Timer failure = calls.tag("outcome", "failure").register(registry);
+			Timer connects = Timer.builder("http.client.connects")
+					.description("time taken opening connections, reused ones aren't counted")
+					.tag("client", name)
+					.register(registry);
+			client = builder.eventListenerFactory(call -> new MetricsListener(success, failure, connects))
+					.build();
+			ConnectionPool pool = client.connectionPool();
+			Gauge.builder("http.client.pool.connections", pool, ConnectionPool::connectionCount)
+					.description("open connections in the client's pool")
+					.tag("client", name)
+					.tag("state", "open")
+					.register(registry);
+			Gauge.builder("http.client.pool.connections", pool, ConnectionPool::idleConnectionCount)
+					.description("idle connections in the client's pool")
+					.tag("client", name)
+					.tag("state", "idle")
+					.register(registry);
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public OkHttpClient getClient() {
+			return client;
+		}
+
+		public Response get(String url, RequestBuilderCallback callback) throws IOException {
+			return execute(new Request.Builder().url(url).get(), callback);
+		}
+
+		/**
+		 * @param body null to post an empty body
+		 */
+		public Response post(String url, RequestBody body, RequestBuilderCallback callback) throws IOException {
+			return execute(
+					new Request.Builder().url(url).post(body != null ? body : RequestBody.create(new byte[0])),
+					callback);
+		}
+
+		public Response delete(String url, RequestBuilderCallback callback) throws IOException {
+			return execute(new Request.Builder().url(url).delete(), callback);
+		}
+
+		private Response execute(Request.Builder builder, RequestBuilderCallback callback) throws IOException {
+			if (callback != null) {
+				builder = callback.modifyBuilder(builder);
+			}
+			return client.newCall(builder.build()).execute();
+		}
+	}
+
+	/** Times each call and each new connection it opens */
+	private static class MetricsListener extends EventListener {
+		private final Timer success;
+
+		private final Timer failure;
+
+		private final Timer connects;
+
+		private long callStart;
+
+		private long connectStart;
+
+		/** A call can fail reading the body after its headers were recorded */
+		private boolean recorded;
+
+		private MetricsListener(Timer success, Timer failure, Timer connects) {
+			this.success = success;
+			this.failure = failure;
+			this.connects = connects;
+		}
+
+		@Override
+		public void callStart(Call call) {
+			callStart = System.nanoTime();
+		}
+
+		@Override
+		public void responseHeadersEnd(Call call, Response response) {
+			if (!recorded) {
+				recorded = true;
+				success.record(System.nanoTime() - callStart, TimeUnit.NANOSECONDS);
+			}
+		}
+
+		@Override
+		public void callFailed(Call call, IOException ioe) {
+			if (!recorded) {
+				recorded = true;
+				failure.record(System.nanoTime() - callStart, TimeUnit.NANOSECONDS);
+			}
+		}
+
+		@Override
+		public void connectStart(Call call, InetSocketAddress inetSocketAddress, Proxy proxy) {
+			connectStart = System.nanoTime();
+		}
+
+		@Override
+		public void connectEnd(Call call, InetSocketAddress inetSocketAddress, Proxy proxy, Protocol protocol) {
+			connects.record(System.nanoTime() - connectStart, TimeUnit.NANOSECONDS);
+		}
+	}
+}
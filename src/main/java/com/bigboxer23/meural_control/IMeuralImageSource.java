@@ -8,4 +8,18 @@ public interface IMeuralImageSource {
 	Optional<SourceItem> nextItem();
 
 	Optional<SourceItem> prevItem();
+
+	/**
+	 * Undo the last call to nextItem without fetching anything. Used when an item fetched ahead of
+	 * time is thrown away so the source doesn't skip it.
+	 */
+	default void stepBack() {}
+
+	/**
+	 * @return true if each item costs something to produce (like generating an image), so one
+	 *     shouldn't be asked for until it's known it will be shown
+	 */
+	default boolean isCostly() {
+		return false;
+	}
 }
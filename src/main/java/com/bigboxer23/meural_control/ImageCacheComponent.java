@@ -0,0 +1,250 @@
+package com.bigboxer23.meural_control;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.FilenameUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Bounded on-disk cache of downloaded and transformed images, keyed by a hash of where the content
+ * came from (and the transform applied to it). Least recently used entries are evicted once the
+ * cache grows past its size limit. The directory itself is the index, so it is rebuilt from the
+ * files on disk at startup.
+ */
+@Slf4j
+@Component
+public class ImageCacheComponent {
+	private static final String kTempSuffix = ".tmp";
+
+	@Value("${image-cache-dir:imageCache}")
+	private String cacheDirectory;
+
+	@Value("${image-cache-max-mb:512}")
+	private long maxMegabytes;
+
+	private File directory;
+
+	/** Cache key to file, in access order so the first entry is the least recently used */
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+	private final AtomicLong totalBytes = new AtomicLong();
+
+	private final Counter hits;
+
+	private final Counter misses;
+
+	private final AtomicLong bytesSaved = new AtomicLong();
+
+	public ImageCacheComponent(MeterRegistry registry) {
+		hits = Counter.builder("meural.image.cache")
+				.description("image lookups served from the disk cache")
+				.tag("result", "hit")
+				.register(registry);
+		misses = Counter.builder("meural.image.cache")
+				.description("image lookups not in the disk cache")
+				.tag("result", "miss")
+				.register(registry);
+		FunctionCounter.builder("meural.image.cache.saved", bytesSaved, AtomicLong::get)
+				.description("bytes not downloaded or transformed again because they were cached")
+				.baseUnit("bytes")
+				.register(registry);
+		Gauge.builder("meural.image.cache.hit.ratio", this, ImageCacheComponent::getHitRatio)
+				.description("fraction of image lookups served from the disk cache")
+				.register(registry);
+		Gauge.builder("meural.image.cache.size", totalBytes, AtomicLong::get)
+				.description("bytes held in the disk cache")
+				.baseUnit("bytes")
+				.register(registry);
+	}
+
+	/** Rebuild the index from what's on disk, dropping anything left half written by a crash */
+	@PostConstruct
+	public synchronized void load() {
+		directory = new File(cacheDirectory);
+		if (!directory.isAbsolute()) {
+			directory = new File(System.getProperty("user.dir"), cacheDirectory);
+		}
+		if (!isEnabled()) {
+			return;
+		}
+		if (!directory.exists() && !directory.mkdirs()) {
+			log.warn("can't create image cache directory " + directory);
+			return;
+		}
+		entries.clear();
+		totalBytes.set(0);
+		File[] files = directory.listFiles(File::isFile);
+		if (files == null) {
+			return;
+		}
+		Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+		for (File file : files) {
+			if (file.getName().endsWith(kTempSuffix)) {
+				log.info("removing partial cache file " + file.getName());
+				file.delete();
+				continue;
+			}
+			entries.put(FilenameUtils.getBaseName(file.getName()), new Entry(file, file.length()));
+			totalBytes.addAndGet(file.length());
+		}
+		log.info("image cache has " + entries.size() + " items, " + totalBytes.get() + " bytes");
+		evict();
+	}
+
+	public boolean isEnabled() {
+		return maxMegabytes > 0;
+	}
+
+	/**
+	 * Get a private copy of a cached item. The returned file belongs to the caller, who is free to
+	 * delete it.
+	 *
+	 * @param key cache key, see {@link #key(String...)}
+	 * @return a temp file with the cached content, if it was cached
+	 */
+	public Optional<File> get(String key) {
+		if (!isEnabled() || key == null) {
+			return Optional.empty();
+		}
+		File cached;
+		synchronized (this) {
+			Entry entry = entries.get(key);
+			cached = entry != null ? entry.file() : null;
+		}
+		if (cached == null || !cached.exists()) {
+			misses.increment();
+			return Optional.empty();
+		}
+		try {
+			File copy = handOut(cached);
+			cached.setLastModified(System.currentTimeMillis());
+			hits.increment();
+			bytesSaved.addAndGet(copy.length());
+			return Optional.of(copy);
+		} catch (IOException e) {
+			// Likely evicted between lookup and copy
+			log.warn("can't read cached item " + cached.getName(), e);
+			misses.increment();
+			return Optional.empty();
+		}
+	}
+
+	/**
+	 * Store a copy of the file in the cache. The caller keeps ownership of the passed file.
+	 *
+	 * @param key cache key, see {@link #key(String...)}
+	 * @param file content to cache
+	 */
+	public void put(String key, File file) {
+		if (!isEnabled() || key == null || file == null || !file.exists()) {
+			return;
+		}
+		String extension = FilenameUtils.getExtension(file.getName());
+		File cached = new File(directory, key + (extension.isEmpty() ? "" : "." + extension));
+		// Each put stages through its own file, so concurrent puts of a key don't write over each
+		// other
+		Path tmp = null;
+		try {
+			tmp = Files.createTempFile(directory.toPath(), key, kTempSuffix);
+			Files.copy(file.toPath(), tmp, StandardCopyOption.REPLACE_EXISTING);
+			Files.move(tmp, cached.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			log.warn("can't cache " + file.getName(), e);
+			if (tmp != null) {
+				tmp.toFile().delete();
+			}
+			return;
+		}
+		synchronized (this) {
+			Entry previous = entries.put(key, new Entry(cached, cached.length()));
+			if (previous != null) {
+				totalBytes.addAndGet(-previous.size());
+				if (!previous.file().equals(cached)) {
+					previous.file().delete();
+				}
+			}
+			totalBytes.addAndGet(cached.length());
+			evict();
+		}
+	}
+
+	private synchronized void evict() {
+		long maxBytes = maxMegabytes * 1024 * 1024;
+		Iterator<Entry> iterator = entries.values().iterator();
+		while (totalBytes.get() > maxBytes && iterator.hasNext()) {
+			Entry entry = iterator.next();
+			log.info("evicting " + entry.file().getName() + " from image cache");
+			totalBytes.addAndGet(-entry.size());
+			entry.file().delete();
+			iterator.remove();
+		}
+	}
+
+	/**
+	 * Hard link the cached file to a new temp file, so nothing is copied and the caller's file
+	 * stays readable if the entry is evicted. Callers only read or delete temp files, never write
+	 * into them. Falls back to copying if links aren't supported.
+	 */
+	private File handOut(File cached) throws IOException {
+		Path temp = Files.createTempFile("", "." + FilenameUtils.getExtension(cached.getName()));
+		try {
+			Files.delete(temp);
+			Files.createLink(temp, cached.toPath());
+		} catch (IOException | UnsupportedOperationException e) {
+			Files.copy(cached.toPath(), temp, StandardCopyOption.REPLACE_EXISTING);
+		}
+		return temp.toFile();
+	}
+
+	public double getHitRatio() {
+		double total = hits.count() + misses.count();
+		return total == 0 ? 0 : hits.count() / total;
+	}
+
+	public long getBytesSaved() {
+		return bytesSaved.get();
+	}
+
+	public long getSize() {
+		return totalBytes.get();
+	}
+
+	/**
+	 * @param parts things identifying the content, like source id and transform command
+	 * @return hex sha-256 of the parts
+	 */
+	public static String key(String... parts) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			for (String part : parts) {
+				digest.update((part == null ? "" : part).getBytes(StandardCharsets.UTF_8));
+				digest.update((byte) 0);
+			}
+			return HexFormat.of().formatHex(digest.digest());
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private record Entry(File file, long size) {}
+}
@@ -1,61 +1,232 @@
 package com.bigboxer23.meural_control;
 
-import java.io.BufferedReader;
+import com.bigboxer23.meural_control.transform.CommandImageTransformer;
+import com.bigboxer23.meural_control.transform.ImageTransformer;
+import com.bigboxer23.meural_control.transform.JavaImageTransformer;
+import com.bigboxer23.meural_control.transform.TransformedImage;
+import jakarta.annotation.PreDestroy;
+import java.awt.Dimension;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 /**
  * Component to apply command against an image prior to display. Useful for things like cropping or
- * adjusting image in some way via imageMagick or similar
+ * adjusting image in some way via imageMagick or similar. Common imageMagick operations are applied
+ * in process, anything else runs the command. Each transform writes its own output file, and
+ * transforms run on a pool sized to the number of cores so concurrent requests don't oversubscribe
+ * the CPU. If the frame's panel resolution is set, images much bigger than it are shrunk to it
+ * before being sent anywhere.
  */
 @Slf4j
 @Component
 public class ImageTransformComponent {
+	private static final Pattern kResolution = Pattern.compile("(\\d+)x(\\d+)");
+
+	/** Shrinking by less than this isn't worth re-encoding the image for */
+	private static final double kMinFitScale = 0.9;
+
 	@Value("${transform-preview-commmand}")
 	private String previewCommand;
 
 	@Value("${transform-commmand}")
 	private String command;
 
-	public File transformPreviewItem(File file) {
+	/**
+	 * auto: in process when the command is supported, otherwise run it. java or command force one
+	 */
+	@Value("${transform-engine:auto}")
+	private String engine;
+
+	/**
+	 * Resolution of the frame's panel, either way round. Blank to leave images at their full size
+	 */
+	@Value("${meural-panel-resolution:}")
+	private String panelResolution;
+
+	@Value("${meural-orientation:horizontal}")
+	private String orientation;
+
+	private final ImageTransformer javaTransformer = new JavaImageTransformer();
+
+	private final ImageTransformer commandTransformer = new CommandImageTransformer();
+
+	private final ExecutorService transformPool;
+
+	public ImageTransformComponent() {
+		AtomicInteger threadCount = new AtomicInteger();
+		transformPool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), runnable -> {
+			Thread thread = new Thread(runnable, "image-transform-" + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * @return the command applied by {@link #transformItem(File)}, blank if none
+	 */
+	public String getCommand() {
+		return command;
+	}
+
+	public TransformedImage transformPreviewItem(File file) {
 		return transformItem(file, previewCommand);
 	}
 
-	public File transformItem(File file) {
+	public TransformedImage transformItem(File file) {
 		return transformItem(file, command);
 	}
 
-	private File transformItem(File file, String command) {
-		if (command == null || command.equals("")) {
-			return file;
+	/**
+	 * @return size of the frame's panel the way it's hung, empty if images aren't fitted to it
+	 */
+	public Optional<Dimension> getPanelSize() {
+		if (panelResolution == null || panelResolution.isBlank()) {
+			return Optional.empty();
+		}
+		Matcher matcher = kResolution.matcher(panelResolution.trim());
+		if (!matcher.matches()) {
+			log.warn("can't read meural-panel-resolution " + panelResolution + ", expected WIDTHxHEIGHT");
+			return Optional.empty();
+		}
+		int first = Integer.parseInt(matcher.group(1));
+		int second = Integer.parseInt(matcher.group(2));
+		int longSide = Math.max(first, second);
+		int shortSide = Math.min(first, second);
+		return Optional.of(
+				"vertical".equalsIgnoreCase(orientation)
+						? new Dimension(shortSide, longSide)
+						: new Dimension(longSide, shortSide));
+	}
+
+	/**
+	 * Size to shrink an image to so it still covers the whole panel, whether the frame fits or
+	 * fills it
+	 *
+	 * @return empty if the image isn't enough bigger than the panel to be worth shrinking
+	 */
+	public Optional<Dimension> getFittedSize(long width, long height) {
+		Optional<Dimension> panel = getPanelSize();
+		if (panel.isEmpty() || width <= 0 || height <= 0) {
+			return Optional.empty();
 		}
-		File tmpFile = new File(System.getProperty("user.dir") + File.separator + "transformed.jpg");
-		if (tmpFile.exists()) {
-			tmpFile.delete();
+		double scale = Math.max((double) panel.get().width / width, (double) panel.get().height / height);
+		if (scale > kMinFitScale) {
+			return Optional.empty();
 		}
-		command = String.format(command, file.getAbsolutePath(), tmpFile.getAbsolutePath());
-		ProcessBuilder builder = new ProcessBuilder(command.split(" "));
+		return Optional.of(new Dimension((int) Math.ceil(width * scale), (int) Math.ceil(height * scale)));
+	}
+
+	/**
+	 * Size to download an image at, fitted to the panel only when there's no transform command.
+	 * Commands work in pixels of the full size image, so would crop a different part of a smaller
+	 * one. The fit is applied after the transform instead.
+	 *
+	 * @return empty to download the image at its full size
+	 */
+	public Optional<Dimension> getDownloadSize(long width, long height) {
+		if (!StringUtils.isBlank(command) || !StringUtils.isBlank(previewCommand)) {
+			return Optional.empty();
+		}
+		return getFittedSize(width, height);
+	}
+
+	/**
+	 * Shrink the image to just cover the panel, before it's sent to the frame or uploaded
+	 *
+	 * @return the image untransformed if it's already close to the panel's size or can't be read
+	 */
+	public TransformedImage fitToPanel(File file) {
+		Optional<Dimension> fitted = Optional.empty();
 		try {
-			Process process = builder.start();
-			StringBuilder out = new StringBuilder();
-			try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
-				String line;
-				while ((line = reader.readLine()) != null) {
-					out.append(line).append("\n");
-				}
-				log.info("command output: " + out);
+			fitted = JavaImageTransformer.readSize(file).flatMap(size -> getFittedSize(size.width, size.height));
+		} catch (IOException e) {
+			log.warn("can't read size of " + file.getName(), e);
+		}
+		if (fitted.isEmpty()) {
+			return TransformedImage.untransformed(file);
+		}
+		return transformItem(file, "convert %s -resize " + fitted.get().width + "x" + fitted.get().height + "! %s");
+	}
+
+	/**
+	 * @return describes the panel fit, for cache keys of fitted images. Blank if there is none
+	 */
+	public String getPanelFit() {
+		return getPanelSize()
+				.map(size -> "fit " + size.width + "x" + size.height)
+				.orElse("");
+	}
+
+	private TransformedImage transformItem(File file, String command) {
+		if (command == null || command.equals("")) {
+			return TransformedImage.untransformed(file);
+		}
+		Future<TransformedImage> future = transformPool.submit(() -> runTransformers(file, command));
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			log.warn("error transforming " + file.getName(), e.getCause());
+		} catch (InterruptedException e) {
+			future.cancel(true);
+			Thread.currentThread().interrupt();
+		}
+		return TransformedImage.untransformed(file);
+	}
+
+	private TransformedImage runTransformers(File file, String command) throws IOException {
+		File output = Files.createTempFile("transformed", ".jpg").toFile();
+		for (ImageTransformer transformer : getTransformers(command)) {
+			try {
+				long start = System.currentTimeMillis();
+				transformer.transform(file, output, command);
+				log.info(transformer.getClass().getSimpleName()
+						+ " transformed \""
+						+ file.getName()
+						+ "\" in "
+						+ (System.currentTimeMillis() - start)
+						+ "ms");
+				return TransformedImage.of(file, output);
+			} catch (IOException | RuntimeException e) {
+				log.warn("error running " + transformer.getClass().getSimpleName(), e);
 			}
-			int exitCode = process.waitFor();
-			if (exitCode != 0) {
-				throw new IOException("error exit status from command: " + exitCode);
+		}
+		output.delete();
+		return TransformedImage.untransformed(file);
+	}
+
+	/** Transformers to try, in order, for the configured engine */
+	private List<ImageTransformer> getTransformers(String command) {
+		List<ImageTransformer> transformers = new ArrayList<>();
+		switch (engine == null ? "auto" : engine.toLowerCase()) {
+			case "java" -> transformers.add(javaTransformer);
+			case "command" -> transformers.add(commandTransformer);
+			default -> {
+				if (javaTransformer.supports(command)) {
+					transformers.add(javaTransformer);
+				}
+				transformers.add(commandTransformer);
 			}
-		} catch (IOException | InterruptedException e) {
-			log.warn("error running command", e);
 		}
-		return tmpFile.exists() ? tmpFile : file;
+		return transformers;
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		transformPool.shutdownNow();
 	}
 }
@@ -1,48 +1,57 @@
 package com.bigboxer23.meural_control;
 
 import com.bigboxer23.meural_control.data.*;
+import com.bigboxer23.meural_control.transform.TransformedImage;
 import com.bigboxer23.utils.command.Command;
 import com.bigboxer23.utils.command.RetryingCommand;
 import com.bigboxer23.utils.command.VoidCommand;
 import com.bigboxer23.utils.http.OkHttpUtil;
 import com.bigboxer23.utils.http.RequestBuilderCallback;
 import com.squareup.moshi.JsonEncodingException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.ConnectException;
 import java.net.HttpURLConnection;
+import java.net.NoRouteToHostException;
+import java.net.SocketTimeoutException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.security.DigestInputStream;
+import java.time.Duration;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 import lombok.extern.slf4j.Slf4j;
 import okhttp3.*;
+import okio.BufferedSink;
+import okio.Okio;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
-import software.amazon.awssdk.auth.credentials.DefaultCredentialsProvider;
-import software.amazon.awssdk.regions.Region;
-import software.amazon.awssdk.services.cognitoidentityprovider.CognitoIdentityProviderClient;
-import software.amazon.awssdk.services.cognitoidentityprovider.model.AuthFlowType;
-import software.amazon.awssdk.services.cognitoidentityprovider.model.InitiateAuthRequest;
-import software.amazon.awssdk.services.cognitoidentityprovider.model.InitiateAuthResponse;
 
 /** */
 @Slf4j
 @Component
 public class MeuralComponent {
-	private static final String apiUrl = "https://api.meural.com/v0/";
+	/** Most playlist items deleted at once */
+	private static final int kCleanupParallelism = 4;
 
-	private static final String CLIENT_ID = "487bd4kvb1fnop6mbgk8gu5ibf";
+	/** 64k chunks each reader of a streamed download can fall behind by */
+	private static final int kStreamBufferChunks = 4;
 
-	@Value("${meural-account}")
-	private String username;
-
-	@Value("${meural-password}")
-	private String password;
+	@Value("${meural-api-url:https://api.meural.com/v0/}")
+	private String apiUrl;
 
 	@Value("${meural-playlist}")
 	private String playlistName;
@@ -50,74 +59,236 @@ public class MeuralComponent {
 	@Value("${meural-orientation}")
 	private String meuralOrientation;
 
-	private String token;
+	@Value("${meural-device-cache-minutes:1440}")
+	private long deviceCacheMinutes;
+
+	@Value("${meural-ip-cache-minutes:60}")
+	private long ipCacheMinutes;
+
+	@Value("${meural-playlist-cache-minutes:10}")
+	private long playlistCacheMinutes;
+
+	@Value("${meural-streaming-upload:false}")
+	private boolean streamingUpload;
+
+	@Value("${meural-state-poll-seconds:30}")
+	private long statePollSeconds;
+
+	@Value("${meural-state-max-backoff-seconds:600}")
+	private long stateMaxBackoffSeconds;
+
+	/** Keep the device and its address on disk, so they're known straight away after a restart */
+	@Value("${meural-save-device:true}")
+	private boolean saveDevice;
 
-	private Device meuralDevice;
+	private final CachedMetadata<Device> device =
+			new CachedMetadata<>("meural device", () -> Duration.ofMinutes(deviceCacheMinutes), this::fetchDevice);
 
-	private final S3UploadComponent s3Upload;
+	/** Fetched with the device, but dropped separately when the frame can't be reached */
+	private final CachedMetadata<String> localIp =
+			new CachedMetadata<>("meural local ip", () -> Duration.ofMinutes(ipCacheMinutes), () -> fetchDevice()
+					.getFrameStatus()
+					.getLocalIp());
+
+	private final CachedMetadata<MeuralPlaylist> playlist = new CachedMetadata<>(
+			"meural playlist", () -> Duration.ofMinutes(playlistCacheMinutes), this::fetchOrCreatePlaylist);
+
+	private final S3UploadQueue s3Queue;
 
 	private final ImageTransformComponent transformComponent;
 
-	public MeuralComponent(S3UploadComponent s3Upload, ImageTransformComponent transform) {
-		this.s3Upload = s3Upload;
+	private final MeuralTokenComponent tokenComponent;
+
+	private final ImageCacheComponent imageCache;
+
+	/** Content already uploaded to Meural, so displaying it again doesn't need another upload */
+	private final MeuralUploadIndex uploadIndex = new MeuralUploadIndex("meuralUploads");
+
+	private final Counter uploads;
+
+	private final Counter uploadsAvoided;
+
+	private final AtomicLong uploadBytesAvoided = new AtomicLong();
+
+	private final DistributionSummary cloudBytes;
+
+	private final DistributionSummary frameBytes;
+
+	private final PlaylistReconciler playlistReconciler;
+
+	/** Keeps whether the frame is asleep, so asking doesn't hit the frame every time */
+	private final FrameStatePoller framePoller;
+
+	/** Runs calls which don't depend on each other at the same time */
+	private final BlockingTaskExecutor executor;
+
+	private final HttpClientComponent http;
+
+	private final StartupTasks startupTasks;
+
+	public MeuralComponent(
+			S3UploadQueue s3Queue,
+			ImageTransformComponent transform,
+			MeuralTokenComponent tokenComponent,
+			ImageCacheComponent imageCache,
+			BlockingTaskExecutor executor,
+			HttpClientComponent http,
+			StartupTasks startupTasks,
+			MeterRegistry registry) {
+		this.s3Queue = s3Queue;
+		this.executor = executor;
+		this.http = http;
+		this.startupTasks = startupTasks;
 		transformComponent = transform;
+		this.tokenComponent = tokenComponent;
+		this.imageCache = imageCache;
+		uploads = Counter.builder("meural.upload")
+				.description("items uploaded to the Meural service")
+				.tag("result", "uploaded")
+				.register(registry);
+		uploadsAvoided = Counter.builder("meural.upload")
+				.description("items displayed using a Meural item uploaded previously")
+				.tag("result", "avoided")
+				.register(registry);
+		FunctionCounter.builder("meural.upload.avoided.bytes", uploadBytesAvoided, AtomicLong::get)
+				.description("bytes not uploaded to the Meural service because the item already existed")
+				.baseUnit("bytes")
+				.register(registry);
+		cloudBytes = DistributionSummary.builder("meural.upload.size")
+				.description("size of each item uploaded to the Meural service")
+				.tag("target", "cloud")
+				.baseUnit("bytes")
+				.register(registry);
+		frameBytes = DistributionSummary.builder("meural.upload.size")
+				.description("size of each item sent straight to the frame to preview")
+				.tag("target", "frame")
+				.baseUnit("bytes")
+				.register(registry);
+		playlistReconciler = new PlaylistReconciler(this::deleteItem, kCleanupParallelism, registry);
+		framePoller = new FrameStatePoller(this::checkAsleep, registry);
 	}
 
-	protected String getToken() {
-		if (token == null) {
-			try (CognitoIdentityProviderClient client = CognitoIdentityProviderClient.builder()
-					.region(Region.EU_WEST_1)
-					.credentialsProvider(DefaultCredentialsProvider.create())
-					.build()) {
-				Map<String, String> authParams = new HashMap<>();
-				authParams.put("USERNAME", username);
-				authParams.put("PASSWORD", password);
-				InitiateAuthRequest authRequest = InitiateAuthRequest.builder()
-						.clientId(CLIENT_ID)
-						.authFlow(AuthFlowType.USER_PASSWORD_AUTH)
-						.authParameters(authParams)
-						.build();
-				InitiateAuthResponse response = client.initiateAuth(authRequest);
-				if (response.authenticationResult() != null) {
-					return response.authenticationResult().accessToken();
-				}
-			} catch (Exception e) {
-				log.error("getToken", e);
-			}
+	@PostConstruct
+	public void start() {
+		if (saveDevice) {
+			device.persistTo(new File(System.getProperty("user.dir"), "meuralDevice"), Device.class);
+			localIp.persistTo(new File(System.getProperty("user.dir"), "meuralLocalIp"), String.class);
 		}
-		return token;
+		startupTasks.run("meural", this::warmUp);
+		startPolling();
+	}
+
+	/**
+	 * Authenticate, look up the frame and the playlist and open a connection to the frame, so the
+	 * first display doesn't wait on any of it. When polling, its first check opens the connection.
+	 */
+	private void warmUp() throws IOException {
+		if (getToken() == null) {
+			throw new IOException("can't authenticate against meural service");
+		}
+		Future<MeuralPlaylist> playlistLookup = executor.supply(this::getOrCreatePlaylist);
+		getDeviceIP();
+		if (statePollSeconds <= 0) {
+			checkAsleep();
+		}
+		BlockingTaskExecutor.await(playlistLookup);
+	}
+
+	public void startPolling() {
+		if (statePollSeconds > 0) {
+			framePoller.start(Duration.ofSeconds(statePollSeconds), Duration.ofSeconds(stateMaxBackoffSeconds));
+		}
+	}
+
+	/**
+	 * @return number of old playlist items waiting to be deleted
+	 */
+	public int getPendingCleanupCount() {
+		return playlistReconciler.getPendingCount();
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		playlistReconciler.close();
+		framePoller.close();
+	}
+
+	protected String getToken() {
+		return tokenComponent.getToken();
 	}
 
 	private RequestBuilderCallback getAuthCallback() {
 		return builder -> builder.addHeader("Authorization", "Token " + getToken());
 	}
 
-	protected Device getDevice() throws IOException {
-		if (meuralDevice != null) {
-			return meuralDevice;
+	/**
+	 * Drop the token if the Meural service rejected it, so the next attempt logs in again
+	 *
+	 * @return the response
+	 */
+	private Response checkAuthorized(Response response) {
+		if (response.code() == HttpURLConnection.HTTP_UNAUTHORIZED) {
+			log.warn("meural service rejected token");
+			tokenComponent.invalidate();
 		}
+		return response;
+	}
+
+	protected Device getDevice() throws IOException {
+		return device.get();
+	}
+
+	private Device fetchDevice() throws IOException {
 		log.info("fetching device info from meural service");
 		try (Response response =
-				OkHttpUtil.getSynchronous(apiUrl + "user/devices?count=10&page=1", getAuthCallback())) {
+				checkAuthorized(http.getCloud().get(apiUrl + "user/devices?count=10&page=1", getAuthCallback()))) {
 			Devices devices = OkHttpUtil.getNonEmptyBody(response, Devices.class);
 			if (devices == null || devices.getData() == null || devices.getData().length == 0) {
 				log.warn("cannot get device from body ");
 				throw new IOException("cannot get device from body ");
 			}
-			meuralDevice = devices.getData()[0];
-			return meuralDevice;
+			device.set(devices.getData()[0]);
+			localIp.set(devices.getData()[0].getFrameStatus().getLocalIp());
+			return devices.getData()[0];
 		}
 	}
 
-	private MeuralStringResponse addItemToPlaylistAndDisplay(SourceItem sourceItem) throws IOException {
+	/**
+	 * Start looking up the frame's address and the playlist in the background, if they're not
+	 * cached, so displaying an item doesn't wait on them. Failures are left for the next lookup to
+	 * retry.
+	 */
+	public void prefetchMetadata() {
+		executor.supply(this::getDeviceIP).exceptionally(e -> {
+			log.warn("prefetching device failed", e);
+			return null;
+		});
+		executor.supply(this::getOrCreatePlaylist).exceptionally(e -> {
+			log.warn("prefetching playlist failed", e);
+			return null;
+		});
+	}
+
+	private MeuralStringResponse addItemToPlaylistAndDisplay(
+			SourceItem sourceItem, Future<MeuralPlaylist> playlistLookup) throws IOException {
 		log.info("starting add new file to playlist: \"" + sourceItem.getName() + "\"");
-		MeuralItem item = uploadItemToMeural(sourceItem);
-		MeuralPlaylist playlist = getOrCreatePlaylist();
-		// Check if we already had this item in the playlist. If we did, no need to do anything
-		if (Arrays.stream(playlist.getItemIds()).noneMatch(id -> id == Integer.parseInt(item.getId()))) {
-			addItemToPlaylist(playlist.getId(), item.getId());
-			deleteItemsFromPlaylist(playlist);
-			addPlaylistToDevice(getDevice().getId(), playlist.getId());
+		if (!sourceItem.isTransformed()) {
+			transformItem(sourceItem);
+		}
+		if (sourceItem.getContentHash() == null) {
+			sourceItem.setContentHash(MeuralUploadIndex.hash(sourceItem.getTempFile()));
+		}
+		String contentHash = sourceItem.getContentHash();
+		// Content never uploaded before can go up while the playlist is looked up
+		Future<MeuralItem> upload = uploadIndex.getItemId(contentHash).isEmpty()
+				? executor.supply(() -> uploadAndIndex(sourceItem, contentHash))
+				: null;
+		try {
+			displayItem(sourceItem, contentHash, playlistLookup, upload);
+		} catch (IOException e) {
+			// Don't know what state the playlist was left in
+			this.playlist.invalidate();
+			throw e;
 		}
 		log.info("completed adding new file to playlist: \"" + sourceItem.getName() + "\"");
 		MeuralStringResponse response = new MeuralStringResponse();
@@ -125,14 +296,91 @@ public class MeuralComponent {
 		return response;
 	}
 
+	private void displayItem(
+			SourceItem sourceItem, String contentHash, Future<MeuralPlaylist> playlistLookup, Future<MeuralItem> upload)
+			throws IOException {
+		MeuralItem item = upload != null ? BlockingTaskExecutor.await(upload) : null;
+		MeuralPlaylist playlist = BlockingTaskExecutor.await(playlistLookup);
+		if (item == null) {
+			item = findUploadedItem(contentHash, playlist).orElse(null);
+			if (item == null) {
+				item = uploadAndIndex(sourceItem, contentHash);
+			} else {
+				uploadBytesAvoided.addAndGet(sourceItem.getTempFile().length());
+			}
+		}
+		showItem(item, playlist);
+	}
+
+	/** Upload the item, recording it straight away so it's reused even if displaying it fails */
+	private MeuralItem uploadAndIndex(SourceItem sourceItem, String contentHash) throws IOException {
+		MeuralItem item = uploadItemToMeural(sourceItem);
+		uploadIndex.put(contentHash, item.getId());
+		return item;
+	}
+
+	/** Make the item the only one in the playlist and show the playlist on the frame */
+	private void showItem(MeuralItem item, MeuralPlaylist playlist) throws IOException {
+		// Check if we already had this item in the playlist. If we did, no need to add it
+		Integer itemId = Integer.parseInt(item.getId());
+		if (Arrays.stream(playlist.getItemIds()).noneMatch(itemId::equals)) {
+			addItemToPlaylist(playlist.getId(), item.getId());
+			addPlaylistToDevice(getDevice().getId(), playlist.getId());
+		}
+		// Old items are cleaned up in the background, the playlist will only hold the new item
+		deleteItemsFromPlaylist(playlist, itemId);
+		playlist.setItemIds(new Integer[] {itemId});
+		this.playlist.set(playlist);
+	}
+
+	/**
+	 * Find the Meural item previously uploaded for this content. It's known to exist if it's in the
+	 * playlist, otherwise check the item is still there before using it.
+	 */
+	private Optional<MeuralItem> findUploadedItem(String contentHash, MeuralPlaylist playlist) {
+		Optional<String> itemId = uploadIndex.getItemId(contentHash);
+		if (itemId.isEmpty()) {
+			return Optional.empty();
+		}
+		if (playlistReconciler.isPending(Integer.valueOf(itemId.get()))) {
+			return Optional.empty();
+		}
+		boolean exists = playlist.getItemIds() != null
+				&& Arrays.stream(playlist.getItemIds())
+						.anyMatch(id -> itemId.get().equals(String.valueOf(id)));
+		if (!exists) {
+			try (Response response =
+					checkAuthorized(http.getCloud().get(apiUrl + "items/" + itemId.get(), getAuthCallback()))) {
+				exists = response.isSuccessful();
+				if (response.code() == HttpURLConnection.HTTP_NOT_FOUND) {
+					log.info("previously uploaded item " + itemId.get() + " no longer exists");
+					uploadIndex.removeItemId(itemId.get());
+				}
+			} catch (IOException e) {
+				log.warn("can't verify item " + itemId.get(), e);
+			}
+		}
+		if (!exists) {
+			return Optional.empty();
+		}
+		log.info("content already uploaded as item " + itemId.get() + ", not uploading again");
+		uploadsAvoided.increment();
+		MeuralItem item = new MeuralItem();
+		item.setId(itemId.get());
+		return Optional.of(item);
+	}
+
 	private void addPlaylistToDevice(String deviceId, String playlistId) throws IOException {
 		log.info("Adding playlist to Meural " + deviceId + ":" + playlistId);
 		RetryingCommand.builder()
 				.identifier("add playlist" + playlistId)
 				.failureCommand(resetCommand())
 				.buildAndExecute(() -> {
-					try (Response response = OkHttpUtil.postSynchronous(
-							apiUrl + "devices/" + deviceId + "/galleries/" + playlistId, null, getAuthCallback())) {
+					try (Response response = checkAuthorized(http.getCloud()
+							.post(
+									apiUrl + "devices/" + deviceId + "/galleries/" + playlistId,
+									null,
+									getAuthCallback()))) {
 						if (!response.isSuccessful()) {
 							throw new IOException("Cannot add to playlist to device"
 									+ response.body().string());
@@ -142,22 +390,27 @@ public class MeuralComponent {
 				});
 	}
 
-	private void deleteItemsFromPlaylist(MeuralPlaylist playlist) throws IOException {
-		log.info("deleting items from playlist " + playlist.getId());
-		for (Integer item : playlist.getItemIds()) {
-			deleteItem(item);
+	private void deleteItemsFromPlaylist(MeuralPlaylist playlist, Integer keepItemId) {
+		List<Integer> staleItemIds = Arrays.stream(playlist.getItemIds())
+				.filter(id -> !id.equals(keepItemId))
+				.toList();
+		if (!staleItemIds.isEmpty()) {
+			log.info("queueing delete of " + staleItemIds.size() + " items from playlist " + playlist.getId());
+			playlistReconciler.deleteItems(staleItemIds);
 		}
 	}
 
 	private void deleteItem(Integer itemId) throws IOException {
 		log.info("deleting item: " + itemId);
+		uploadIndex.removeItemId(String.valueOf(itemId));
 		RetryingCommand.builder()
 				.identifier("delete item" + itemId)
 				.failureCommand(resetCommand())
 				.buildAndExecute(() -> {
 					try (Response response =
-							OkHttpUtil.deleteSynchronous(apiUrl + "items/" + itemId, getAuthCallback())) {
-						if (!response.isSuccessful()) {
+							checkAuthorized(http.getCloud().delete(apiUrl + "items/" + itemId, getAuthCallback()))) {
+						// Not found means it's already gone
+						if (!response.isSuccessful() && response.code() != HttpURLConnection.HTTP_NOT_FOUND) {
 							throw new IOException(
 									"Cannot add to playlist " + response.body().string());
 						}
@@ -172,8 +425,8 @@ public class MeuralComponent {
 				.identifier("add item" + itemId)
 				.failureCommand(resetCommand())
 				.buildAndExecute(() -> {
-					try (Response response = OkHttpUtil.postSynchronous(
-							apiUrl + "galleries/" + playlistId + "/items/" + itemId, null, getAuthCallback())) {
+					try (Response response = checkAuthorized(http.getCloud()
+							.post(apiUrl + "galleries/" + playlistId + "/items/" + itemId, null, getAuthCallback()))) {
 						if (!response.isSuccessful()) {
 							throw new IOException(
 									"Cannot add to playlist " + response.body().string());
@@ -183,26 +436,35 @@ public class MeuralComponent {
 				});
 	}
 
-	private String getMeuralName(SourceItem sourceItem) {
-		if (sourceItem.getName().length() <= 512) {
-			return sourceItem.getName();
+	private String getMeuralName(String name) {
+		if (name.length() <= 512) {
+			return name;
 		}
-		return StringUtils.truncate(sourceItem.getName(), 512) + "." + FilenameUtils.getExtension(sourceItem.getName());
+		return StringUtils.truncate(name, 512) + "." + FilenameUtils.getExtension(name);
 	}
 
 	private MeuralItem uploadItemToMeural(SourceItem sourceItem) throws IOException {
-		sourceItem.setTempFile(transformComponent.transformItem(sourceItem.getTempFile()));
-		log.info("uploading file to Meural service \"" + sourceItem.getName() + "\"");
-		try (Response response = OkHttpUtil.postSynchronous(
-				apiUrl + "items",
-				new MultipartBody.Builder()
-						.setType(MultipartBody.FORM)
-						.addFormDataPart(
-								"image",
-								getMeuralName(sourceItem),
-								RequestBody.create(sourceItem.getTempFile(), getMediaType(sourceItem.getTempFile())))
-						.build(),
-				getAuthCallback())) {
+		if (!sourceItem.isTransformed()) {
+			transformItem(sourceItem);
+		}
+		cloudBytes.record(sourceItem.getTempFile().length());
+		return uploadItemToMeural(
+				getMeuralName(sourceItem.getName()),
+				RequestBody.create(
+						sourceItem.getTempFile(),
+						getMediaType(sourceItem.getTempFile().getName())));
+	}
+
+	private MeuralItem uploadItemToMeural(String name, RequestBody content) throws IOException {
+		log.info("uploading file to Meural service \"" + name + "\"");
+		try (Response response = checkAuthorized(http.getCloud()
+				.post(
+						apiUrl + "items",
+						new MultipartBody.Builder()
+								.setType(MultipartBody.FORM)
+								.addFormDataPart("image", name, content)
+								.build(),
+						getAuthCallback()))) {
 
 			try {
 				MeuralItemResponse itemResponse = OkHttpUtil.getNonEmptyBody(response, MeuralItemResponse.class);
@@ -211,6 +473,7 @@ public class MeuralComponent {
 					reset();
 					throw new IOException("cannot get item from body ");
 				}
+				uploads.increment();
 				return itemResponse.getData();
 			} catch (JsonEncodingException e) {
 				log.warn("uploadItemToMeural exception: ", e);
@@ -220,13 +483,17 @@ public class MeuralComponent {
 	}
 
 	protected MeuralPlaylist getOrCreatePlaylist() throws IOException {
+		return playlist.get();
+	}
+
+	private MeuralPlaylist fetchOrCreatePlaylist() throws IOException {
 		log.info("get playlist info for \"" + playlistName + "\"");
 		return RetryingCommand.builder()
 				.identifier("getOrCreatePlaylist ")
 				.failureCommand(resetCommand())
 				.buildAndExecute(() -> {
-					try (Response response =
-							OkHttpUtil.getSynchronous(apiUrl + "user/galleries?count=10&page=1", getAuthCallback())) {
+					try (Response response = checkAuthorized(
+							http.getCloud().get(apiUrl + "user/galleries?count=10&page=1", getAuthCallback()))) {
 						MeuralPlaylists meuralPlaylists = OkHttpUtil.getNonEmptyBody(response, MeuralPlaylists.class);
 						if (meuralPlaylists == null
 								|| meuralPlaylists.getData() == null
@@ -261,13 +528,14 @@ public class MeuralComponent {
 				.identifier("createPlaylist " + name)
 				.failureCommand(resetCommand())
 				.buildAndExecute(() -> {
-					try (Response response = OkHttpUtil.postSynchronous(
-							apiUrl + "galleries",
-							new FormBody.Builder()
-									.add("name", name)
-									.add("orientation", meuralOrientation)
-									.build(),
-							getAuthCallback())) {
+					try (Response response = checkAuthorized(http.getCloud()
+							.post(
+									apiUrl + "galleries",
+									new FormBody.Builder()
+											.add("name", name)
+											.add("orientation", meuralOrientation)
+											.build(),
+									getAuthCallback()))) {
 						MeuralPlaylistResponse playlistResponse =
 								OkHttpUtil.getNonEmptyBody(response, MeuralPlaylistResponse.class);
 						if (playlistResponse == null || playlistResponse.getData() == null) {
@@ -285,8 +553,8 @@ public class MeuralComponent {
 				.identifier("delete playlist" + playlistId)
 				.failureCommand(resetCommand())
 				.buildAndExecute(() -> {
-					try (Response response =
-							OkHttpUtil.deleteSynchronous(apiUrl + "galleries/" + playlistId, getAuthCallback())) {
+					try (Response response = checkAuthorized(
+							http.getCloud().delete(apiUrl + "galleries/" + playlistId, getAuthCallback()))) {
 						if (!response.isSuccessful()) {
 							log.warn("cannot delete playlist "
 									+ playlistId
@@ -300,11 +568,11 @@ public class MeuralComponent {
 	}
 
 	private String getDeviceIP() throws IOException {
-		return getDevice().getFrameStatus().getLocalIp();
+		return localIp.get();
 	}
 
-	private MediaType getMediaType(File file) {
-		switch (FilenameUtils.getExtension(file.getName())) {
+	private MediaType getMediaType(String filename) {
+		switch (FilenameUtils.getExtension(filename)) {
 			case "jpg":
 			case "jpeg":
 				return MediaType.parse("image/jpeg");
@@ -316,11 +584,28 @@ public class MeuralComponent {
 		}
 	}
 
-	/** Cause a re-fetch of all meural device information on next request */
+	/**
+	 * @return number of items displayed without uploading, because they were uploaded previously
+	 */
+	public double getUploadsAvoided() {
+		return uploadsAvoided.count();
+	}
+
+	/**
+	 * @return number of items uploaded to the Meural service
+	 */
+	public double getUploads() {
+		return uploads.count();
+	}
+
+	/**
+	 * Cause a re-fetch of the playlist on next request. The token, device and frame address are
+	 * dropped separately, when the service rejects the token, the device's cache time expires or
+	 * the frame can't be reached.
+	 */
 	public void reset() {
 		log.warn("resetting api");
-		token = null;
-		meuralDevice = null;
+		playlist.invalidate();
 	}
 
 	private VoidCommand resetCommand() {
@@ -336,7 +621,7 @@ public class MeuralComponent {
 		} finally {
 			if (item.isCleanupTempFile()) {
 				if (item.getAlbumToSaveTo() != null && item.getAlbumToSaveTo().length() > 0) {
-					s3Upload.uploadItem(item);
+					queueS3Upload(item);
 				}
 				log.info("removing temp file: \"" + item.getName() + "\"");
 				item.getTempFile().delete();
@@ -344,14 +629,138 @@ public class MeuralComponent {
 		}
 	}
 
+	/** Save the item to S3 in the background, failing to do so doesn't stop it being displayed */
+	private void queueS3Upload(SourceItem item) {
+		try {
+			s3Queue.enqueue(item);
+		} catch (IOException e) {
+			log.warn("can't queue \"" + item.getName() + "\" for upload to S3", e);
+		}
+	}
+
 	public MeuralStringResponse fetchItem(SourceItem item, Command<MeuralStringResponse> command) throws IOException {
+		downloadItem(item);
+		return executeAfterFetchCommand(item, command);
+	}
+
+	/**
+	 * Download and transform an item ahead of time, so displaying it later only needs to push the
+	 * already prepared file
+	 *
+	 * @param item
+	 * @throws IOException
+	 */
+	public void prepareItem(SourceItem item) throws IOException {
+		downloadItem(item);
+		if (!item.isTransformed()) {
+			transformItem(item);
+		}
+	}
+
+	/**
+	 * Replace the item's file with the transformed version fitted to the panel, from the cache if
+	 * it's been done before
+	 */
+	private void transformItem(SourceItem item) throws IOException {
+		String command = StringUtils.defaultString(transformComponent.getCommand());
+		String fit = transformComponent.getPanelFit();
+		if (StringUtils.isBlank(command) && fit.isEmpty()) {
+			item.setTransformed(true);
+			return;
+		}
+		String key = getCacheKey(item, (command + " " + fit).trim());
+		File transformed = imageCache.get(key).orElse(null);
+		if (transformed != null) {
+			log.info("using cached transform of \"" + item.getName() + "\"");
+		} else {
+			try (TransformedImage image = transformComponent.transformItem(item.getTempFile());
+					TransformedImage fitted = transformComponent.fitToPanel(image.getFile())) {
+				TransformedImage result = fitted.isTransformed() ? fitted : image;
+				if (!result.isTransformed()) {
+					item.setTransformed(true);
+					return;
+				}
+				imageCache.put(key, result.getFile());
+				transformed = result.release();
+			}
+		}
+		item.getTempFile().delete();
+		item.setTempFile(transformed);
+		item.setTransformed(true);
+	}
+
+	/**
+	 * @return cache key for the item's content with the given transform applied, null if the item
+	 *     has no stable identity
+	 */
+	private String getCacheKey(SourceItem item, String transformCommand) {
+		String source = item.getSourceId() != null
+				? item.getSourceId()
+				: item.getUrl() != null ? item.getUrl().toString() : null;
+		return source == null ? null : ImageCacheComponent.key(source, transformCommand);
+	}
+
+	private void downloadItem(SourceItem item) throws IOException {
 		// If temp file is set and exists, don't fetch it again.
 		if (item.getTempFile() != null && item.getTempFile().exists()) {
 			log.info("item exists, not re-downloading \"" + item.getName() + "\"");
-			return executeAfterFetchCommand(item, command);
+			return;
+		}
+		String key = getCacheKey(item, null);
+		if (useCachedDownload(item, key)) {
+			return;
 		}
 		log.info("downloading item for \"" + item.getName() + "\"");
-		String extension = FilenameUtils.getExtension(
+		try (Response response = openDownload(item)) {
+			saveDownload(item, response.body(), key);
+		}
+	}
+
+	/**
+	 * @return true if the item's temp file was set from the cache
+	 */
+	private boolean useCachedDownload(SourceItem item, String key) {
+		Optional<File> cached = imageCache.get(key);
+		if (cached.isEmpty()) {
+			return false;
+		}
+		log.info("using cached download of \"" + item.getName() + "\"");
+		item.setTempFile(cached.get());
+		return true;
+	}
+
+	/** Save the download to a temp file, hashing it on the way so it doesn't need reading again */
+	private void saveDownload(SourceItem item, ResponseBody body, String key) throws IOException {
+		Path temp = Files.createTempFile("", "." + getExtension(item));
+		try (DigestInputStream stream = MeuralUploadIndex.hashing(body.byteStream())) {
+			FileUtils.copyInputStreamToFile(stream, temp.toFile());
+			item.setTempFile(temp.toFile());
+			item.setContentHash(MeuralUploadIndex.hash(stream));
+		}
+		imageCache.put(key, temp.toFile());
+	}
+
+	/**
+	 * @return successful response for the item's content, to be closed by the caller
+	 */
+	private Response openDownload(SourceItem item) throws IOException {
+		Response response = http.getDownload()
+				.get(
+						item.getUrl().toString(),
+						builder -> builder.header(
+								"User-Agent",
+								"Mozilla/5.0 (Windows; U; Windows NT 6.1; en-GB;   "
+										+ "  rv:1.9.2.13) Gecko/20101203 Firefox/3.6.13"
+										+ " (.NET CLR 3.5.30729)"));
+		if (!response.isSuccessful()) {
+			response.close();
+			throw new IOException("cannot download \"" + item.getName() + "\", " + response.code());
+		}
+		return response;
+	}
+
+	private String getExtension(SourceItem item) {
+		return FilenameUtils.getExtension(
 				item.getName() != null
 						? item.getName()
 						: (item.getUrl().toString().contains("?")
@@ -359,17 +768,120 @@ public class MeuralComponent {
 										.toString()
 										.substring(0, item.getUrl().toString().lastIndexOf("?"))
 								: item.getUrl().toString()));
-		Path temp = Files.createTempFile("", "." + extension);
-		HttpURLConnection conn = (HttpURLConnection) item.getUrl().openConnection();
-		conn.setRequestProperty(
-				"User-Agent",
-				"Mozilla/5.0 (Windows; U; Windows NT 6.1; en-GB;     rv:1.9.2.13) Gecko/20101203"
-						+ " Firefox/3.6.13 (.NET CLR 3.5.30729)");
-		try (InputStream stream = conn.getInputStream()) {
-			FileUtils.copyInputStreamToFile(stream, temp.toFile());
-			item.setTempFile(temp.toFile());
-			return executeAfterFetchCommand(item, command);
+	}
+
+	/**
+	 * Can the item go straight from its source to Meural (and S3) without being saved first. Only
+	 * when nothing needs to be done to the content and it isn't already available locally.
+	 */
+	private boolean canStream(SourceItem item) {
+		if (!streamingUpload
+				|| item.getUrl() == null
+				|| StringUtils.isNotBlank(transformComponent.getCommand())
+				|| !transformComponent.getPanelFit().isEmpty()) {
+			return false;
+		}
+		if (item.getTempFile() != null && item.getTempFile().exists()) {
+			return false;
+		}
+		String key = getCacheKey(item, null);
+		// Uploaded before, downloading lets the content be checked so the item can be reused
+		if (key != null && uploadIndex.getItemId(key).isPresent()) {
+			return false;
+		}
+		return !useCachedDownload(item, key);
+	}
+
+	/**
+	 * Download the item and upload it to Meural in one pass without writing it to disk, spooling it
+	 * for S3 alongside if it's being saved. Both read the download as it arrives, the download is
+	 * only read as fast as the slowest of them.
+	 */
+	private MeuralStringResponse streamItemAndDisplay(SourceItem item, Future<MeuralPlaylist> playlistLookup)
+			throws IOException {
+		boolean saveToS3 = StringUtils.isNotEmpty(item.getAlbumToSaveTo());
+		log.info("streaming item to Meural \"" + item.getName() + "\"");
+		String filename = item.getName() != null ? item.getName() : "item." + getExtension(item);
+		MediaType mediaType = getMediaType(filename);
+		MeuralItem meuralItem;
+		try (Response response = openDownload(item);
+				DigestInputStream stream =
+						MeuralUploadIndex.hashing(response.body().byteStream())) {
+			long length = response.body().contentLength();
+			StreamingTee tee = new StreamingTee(stream, kStreamBufferChunks);
+			InputStream meuralContent = tee.branch();
+			InputStream s3Content = saveToS3 ? tee.branch() : null;
+			Future<MeuralItem> upload = executor.supply(() -> {
+				try (meuralContent) {
+					return uploadItemToMeural(getMeuralName(filename), streamingBody(meuralContent, mediaType, length));
+				}
+			});
+			Future<?> s3 = saveToS3
+					? executor.run(() -> {
+						try (s3Content) {
+							s3Queue.enqueue(item, s3Content);
+						} catch (IOException e) {
+							log.warn("can't queue \"" + item.getName() + "\" for upload to S3", e);
+						}
+					})
+					: null;
+			long bytes;
+			try {
+				bytes = tee.pump();
+			} catch (IOException e) {
+				upload.cancel(true);
+				if (s3 != null) {
+					s3.cancel(true);
+				}
+				throw e;
+			}
+			meuralItem = BlockingTaskExecutor.await(upload);
+			cloudBytes.record(bytes);
+			if (s3 != null) {
+				BlockingTaskExecutor.await(s3);
+			}
+			log.info("streamed " + bytes + " bytes of \"" + item.getName() + "\"");
+			uploadIndex.put(MeuralUploadIndex.hash(stream), meuralItem.getId());
+		}
+		String key = getCacheKey(item, null);
+		if (key != null) {
+			uploadIndex.put(key, meuralItem.getId());
 		}
+		try {
+			showItem(meuralItem, BlockingTaskExecutor.await(playlistLookup));
+		} catch (IOException e) {
+			this.playlist.invalidate();
+			throw e;
+		}
+		log.info("completed adding new file to playlist: \"" + item.getName() + "\"");
+		MeuralStringResponse response = new MeuralStringResponse();
+		response.setStatus("pass");
+		return response;
+	}
+
+	/** Request body read once from a stream, as it arrives */
+	private RequestBody streamingBody(InputStream content, MediaType mediaType, long length) {
+		return new RequestBody() {
+			@Override
+			public MediaType contentType() {
+				return mediaType;
+			}
+
+			@Override
+			public long contentLength() {
+				return length;
+			}
+
+			@Override
+			public boolean isOneShot() {
+				return true;
+			}
+
+			@Override
+			public void writeTo(BufferedSink sink) throws IOException {
+				sink.writeAll(Okio.source(content));
+			}
+		};
 	}
 
 	public MeuralStringResponse previewItem(SourceItem item, boolean transform) throws IOException {
@@ -377,7 +889,12 @@ public class MeuralComponent {
 	}
 
 	public MeuralStringResponse changePicture(SourceItem item) throws IOException {
-		return fetchItem(item, () -> addItemToPlaylistAndDisplay(item));
+		// The playlist doesn't depend on the item, look it up while the item is fetched
+		Future<MeuralPlaylist> playlistLookup = executor.supply(this::getOrCreatePlaylist);
+		if (canStream(item)) {
+			return streamItemAndDisplay(item, playlistLookup);
+		}
+		return fetchItem(item, () -> addItemToPlaylistAndDisplay(item, playlistLookup));
 	}
 
 	/**
@@ -389,44 +906,87 @@ public class MeuralComponent {
 	 * @throws IOException
 	 */
 	public MeuralStringResponse changePictureWithPreview(SourceItem item, boolean transform) throws IOException {
-		File tmpFile = item.getTempFile();
-		if (transform) {
-			tmpFile = transformComponent.transformPreviewItem(tmpFile);
+		try (TransformedImage image = transform
+						? transformComponent.transformPreviewItem(item.getTempFile())
+						: TransformedImage.untransformed(item.getTempFile());
+				TransformedImage fitted = transformComponent.fitToPanel(image.getFile())) {
+			File file = fitted.getFile();
+			frameBytes.record(file.length());
+			log.info("previewing directly on meural \"" + item.getName() + "\"");
+			return RetryingCommand.builder()
+					.identifier("changePictureWithPreview")
+					.failureCommand(resetCommand())
+					.buildAndExecute(() -> {
+						try (Response response = deviceRequest(() -> http.getFrame()
+								.post(
+										getDeviceURL() + "/remote/postcard",
+										new MultipartBody.Builder()
+												.setType(MultipartBody.FORM)
+												.addFormDataPart(
+														"photo",
+														"1",
+														RequestBody.create(file, getMediaType(file.getName())))
+												.build(),
+										null))) {
+							return OkHttpUtil.getNonEmptyBody(response, MeuralStringResponse.class);
+						}
+					});
 		}
-		File file = tmpFile;
-		log.info("previewing directly on meural \"" + item.getName() + "\"");
-		return RetryingCommand.builder()
-				.identifier("changePictureWithPreview")
-				.failureCommand(resetCommand())
-				.buildAndExecute(() -> {
-					try (Response response = OkHttpUtil.postSynchronous(
-							getDeviceURL() + "/remote/postcard",
-							new MultipartBody.Builder()
-									.setType(MultipartBody.FORM)
-									.addFormDataPart("photo", "1", RequestBody.create(file, getMediaType(file)))
-									.build(),
-							null)) {
-						return OkHttpUtil.getNonEmptyBody(response, MeuralStringResponse.class);
-					}
-				});
 	}
 
 	/**
-	 * Is the meural presently asleep?
+	 * Is the meural presently asleep? Answered from the last background check while it's recent and
+	 * reached the frame, otherwise the frame is asked. While backing off, a check which couldn't
+	 * reach it stays recent for a long time, it may well be back before the next one.
 	 *
 	 * @return
 	 * @throws IOException
 	 */
 	public MeuralStatusResponse isAsleep() throws IOException {
-		return doRequest("/remote/control_check/sleep", MeuralStatusResponse.class);
+		Optional<FrameStatePoller.FrameState> state = getFrameState();
+		if (state.isPresent() && state.get().reachable()) {
+			MeuralStatusResponse response = new MeuralStatusResponse();
+			response.setStatus("pass");
+			response.setResponse(state.get().asleep());
+			return response;
+		}
+		MeuralStatusResponse response = doRequest("/remote/control_check/sleep", MeuralStatusResponse.class);
+		if (response != null && response.isSuccessful()) {
+			framePoller.update(response.isResponse());
+		}
+		return response;
+	}
+
+	/**
+	 * @return the frame's state from the last background check, empty if it's not recent
+	 */
+	public Optional<FrameStatePoller.FrameState> getFrameState() {
+		return framePoller.getState();
+	}
+
+	/** Ask the frame whether it's asleep, for the background check */
+	private Boolean checkAsleep() throws IOException {
+		MeuralStatusResponse response = doRequest("/remote/control_check/sleep", MeuralStatusResponse.class);
+		if (response == null || !response.isSuccessful()) {
+			throw new IOException("cannot get sleep state from meural");
+		}
+		return response.isResponse();
 	}
 
 	public MeuralStringResponse wakeup() throws IOException {
-		return doRequest("/remote/control_command/resume", MeuralStringResponse.class);
+		return changeSleepState("/remote/control_command/resume", false);
 	}
 
 	public MeuralStringResponse sleep() throws IOException {
-		return doRequest("/remote/control_command/suspend", MeuralStringResponse.class);
+		return changeSleepState("/remote/control_command/suspend", true);
+	}
+
+	private MeuralStringResponse changeSleepState(String command, boolean asleep) throws IOException {
+		MeuralStringResponse response = doRequest(command, MeuralStringResponse.class);
+		if (response != null && response.isSuccessful()) {
+			framePoller.update(asleep);
+		}
+		return response;
 	}
 
 	public MeuralStringResponse up() throws IOException {
@@ -438,11 +998,22 @@ public class MeuralComponent {
 	}
 
 	private <T extends MeuralResponse> T doRequest(String command, Class<T> clazz) throws IOException {
-		try (Response response = OkHttpUtil.getSynchronous(getDeviceURL() + command, null)) {
+		try (Response response = deviceRequest(() -> http.getFrame().get(getDeviceURL() + command, null))) {
 			return OkHttpUtil.getNonEmptyBody(response, clazz);
 		}
 	}
 
+	/** Make a request to the frame, dropping its cached address if it can't be reached there */
+	private Response deviceRequest(Command<Response> request) throws IOException {
+		try {
+			return request.execute();
+		} catch (ConnectException | NoRouteToHostException | SocketTimeoutException e) {
+			log.warn("can't reach meural, will look up its address again", e);
+			localIp.invalidate();
+			throw e;
+		}
+	}
+
 	private String getDeviceURL() throws IOException {
 		return "http://" + getDeviceIP();
 	}
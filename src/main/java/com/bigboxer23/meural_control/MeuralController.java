@@ -234,6 +234,7 @@ public class MeuralController {
 						+ " back in the style of Andy Warhol")
 	})
 	public MeuralResponse updateOpenAIPrompt(String prompt, HttpServletResponse servletResponse) {
+		scheduler.invalidatePrefetch();
 		openAIComponent.updatePrompt(prompt);
 		return handleResponse(servletResponse, scheduler::nextItem, MeuralResponse.class);
 	}
@@ -328,6 +329,7 @@ public class MeuralController {
 				example = "AI Art")
 	})
 	public MeuralResponse changeGooglePhotosAlbum(String albumTitle, HttpServletResponse servletResponse) {
+		scheduler.invalidatePrefetch();
 		gPhotosAPI.changeAlbum(albumTitle);
 		return changeSource(0, servletResponse);
 	}
@@ -0,0 +1,282 @@
+package com.bigboxer23.meural_control;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import software.amazon.awssdk.auth.credentials.AnonymousCredentialsProvider;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.cognitoidentityprovider.CognitoIdentityProviderClient;
+import software.amazon.awssdk.services.cognitoidentityprovider.CognitoIdentityProviderClientBuilder;
+import software.amazon.awssdk.services.cognitoidentityprovider.model.AuthFlowType;
+import software.amazon.awssdk.services.cognitoidentityprovider.model.AuthenticationResultType;
+import software.amazon.awssdk.services.cognitoidentityprovider.model.InitiateAuthRequest;
+import software.amazon.awssdk.services.cognitoidentityprovider.model.InitiateAuthResponse;
+
+/**
+ * Component to manage the access token used against the Meural cloud. The token is cached until it
+ * expires, and renewed with the Cognito refresh token in the background shortly before expiry so
+ * requests don't need to wait on an authentication round trip. Tokens are saved to disk, so a
+ * restart carries on with them rather than logging in again.
+ */
+@Slf4j
+@Component
+public class MeuralTokenComponent {
+	private static final String CLIENT_ID = "487bd4kvb1fnop6mbgk8gu5ibf";
+
+	@Value("${meural-account}")
+	private String username;
+
+	@Value("${meural-password}")
+	private String password;
+
+	@Value("${meural-cognito-endpoint:}")
+	private String cognitoEndpoint;
+
+	@Value("${meural-token-refresh-ahead-seconds:300}")
+	private long refreshAheadSeconds;
+
+	/**
+	 * Where tokens are saved between restarts, relative to the working directory. Blank to not save
+	 */
+	@Value("${meural-token-file:meuralToken}")
+	private String tokenFile;
+
+	private CognitoIdentityProviderClient client;
+
+	private volatile CognitoToken token;
+
+	private String refreshToken;
+
+	private ScheduledFuture<?> scheduledRefresh;
+
+	private final ScheduledExecutorService refreshExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "meural-token-refresh");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	/** Pick up the tokens saved before the last restart, if there are any */
+	@PostConstruct
+	public synchronized void loadToken() {
+		File file = getTokenFile();
+		if (file == null || !file.exists()) {
+			return;
+		}
+		try {
+			List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+			if (lines.size() != 3) {
+				throw new IOException("expected 3 lines, found " + lines.size());
+			}
+			refreshToken = lines.get(2).isEmpty() ? null : lines.get(2);
+			CognitoToken saved = new CognitoToken(lines.get(0), Long.parseLong(lines.get(1)));
+			if (!saved.accessToken().isEmpty() && !saved.isExpired()) {
+				token = saved;
+				long expiresIn = (saved.expiresAt() - System.currentTimeMillis()) / 1000;
+				scheduleRefresh(Math.max(0, expiresIn - refreshAheadSeconds));
+			}
+			log.info("loaded meural token, access token " + (token != null ? "valid" : "expired"));
+		} catch (IOException | NumberFormatException e) {
+			log.warn("can't read meural token " + file.getName() + ", will log in again", e);
+		}
+	}
+
+	/**
+	 * Get a valid access token, only authenticating against Cognito if we don't have one cached or
+	 * the cached one has expired
+	 *
+	 * @return access token, or null if authentication failed
+	 */
+	public String getToken() {
+		CognitoToken current = token;
+		if (current != null && !current.isExpired()) {
+			return current.accessToken();
+		}
+		synchronized (this) {
+			current = token;
+			if (current == null || current.isExpired()) {
+				current = authenticate();
+			}
+			return current != null ? current.accessToken() : null;
+		}
+	}
+
+	/**
+	 * Drop the cached access token so the next request re-authenticates. The refresh token is kept,
+	 * so re-authenticating doesn't need the user's password unless it's been revoked.
+	 */
+	public synchronized void invalidate() {
+		log.info("invalidating meural token");
+		token = null;
+		cancelScheduledRefresh();
+		saveToken();
+	}
+
+	private synchronized CognitoToken authenticate() {
+		if (refreshToken != null) {
+			CognitoToken refreshed = refresh();
+			if (refreshed != null) {
+				return refreshed;
+			}
+		}
+		return login();
+	}
+
+	private CognitoToken login() {
+		log.info("authenticating against meural service");
+		Map<String, String> authParams = new HashMap<>();
+		authParams.put("USERNAME", username);
+		authParams.put("PASSWORD", password);
+		return initiateAuth(AuthFlowType.USER_PASSWORD_AUTH, authParams);
+	}
+
+	private CognitoToken refresh() {
+		log.info("refreshing meural token");
+		Map<String, String> authParams = new HashMap<>();
+		authParams.put("REFRESH_TOKEN", refreshToken);
+		CognitoToken refreshed = initiateAuth(AuthFlowType.REFRESH_TOKEN_AUTH, authParams);
+		if (refreshed == null) {
+			refreshToken = null;
+		}
+		return refreshed;
+	}
+
+	private CognitoToken initiateAuth(AuthFlowType flow, Map<String, String> authParams) {
+		try {
+			InitiateAuthResponse response = getClient()
+					.initiateAuth(InitiateAuthRequest.builder()
+							.clientId(CLIENT_ID)
+							.authFlow(flow)
+							.authParameters(authParams)
+							.build());
+			if (response.authenticationResult() != null) {
+				return updateToken(response.authenticationResult());
+			}
+			log.warn("no authentication result for " + flow);
+		} catch (Exception e) {
+			log.error("initiateAuth " + flow, e);
+		}
+		return null;
+	}
+
+	private synchronized CognitoToken updateToken(AuthenticationResultType result) {
+		// Refresh flow doesn't return a new refresh token, keep using the one we have
+		if (result.refreshToken() != null) {
+			refreshToken = result.refreshToken();
+		}
+		long expiresIn = result.expiresIn() != null ? result.expiresIn() : 3600;
+		token = new CognitoToken(result.accessToken(), System.currentTimeMillis() + (expiresIn * 1000));
+		scheduleRefresh(expiresIn > refreshAheadSeconds * 2 ? expiresIn - refreshAheadSeconds : expiresIn / 2);
+		saveToken();
+		return token;
+	}
+
+	/**
+	 * File format is the access token and when it expires (blank and 0 if there isn't one), then
+	 * the refresh token (blank if there isn't one). Only readable by the owner where that's
+	 * supported.
+	 */
+	private synchronized void saveToken() {
+		File file = getTokenFile();
+		if (file == null) {
+			return;
+		}
+		CognitoToken current = token;
+		List<String> lines = List.of(
+				current != null ? current.accessToken() : "",
+				String.valueOf(current != null ? current.expiresAt() : 0),
+				refreshToken != null ? refreshToken : "");
+		File tmp = new File(file.getAbsolutePath() + ".tmp");
+		try {
+			Files.deleteIfExists(tmp.toPath());
+			try {
+				Files.createFile(
+						tmp.toPath(),
+						PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+			} catch (UnsupportedOperationException e) {
+				// Not a posix file system, created with the defaults when written
+			}
+			Files.write(tmp.toPath(), lines, StandardCharsets.UTF_8);
+			Files.move(
+					tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			log.warn("can't save meural token " + file.getName(), e);
+		}
+	}
+
+	private File getTokenFile() {
+		return StringUtils.isBlank(tokenFile)
+				? null
+				: Path.of(System.getProperty("user.dir")).resolve(tokenFile).toFile();
+	}
+
+	private void scheduleRefresh(long delaySeconds) {
+		cancelScheduledRefresh();
+		if (refreshToken == null) {
+			return;
+		}
+		scheduledRefresh = refreshExecutor.schedule(this::backgroundRefresh, delaySeconds, TimeUnit.SECONDS);
+	}
+
+	private void cancelScheduledRefresh() {
+		if (scheduledRefresh != null) {
+			scheduledRefresh.cancel(false);
+			scheduledRefresh = null;
+		}
+	}
+
+	private void backgroundRefresh() {
+		synchronized (this) {
+			if (refreshToken == null || refresh() == null) {
+				login();
+			}
+		}
+	}
+
+	private synchronized CognitoIdentityProviderClient getClient() {
+		if (client == null) {
+			// InitiateAuth against a user pool is unauthenticated, so no AWS credentials are needed
+			CognitoIdentityProviderClientBuilder builder = CognitoIdentityProviderClient.builder()
+					.region(Region.EU_WEST_1)
+					.credentialsProvider(AnonymousCredentialsProvider.create());
+			if (!StringUtils.isBlank(cognitoEndpoint)) {
+				builder.endpointOverride(URI.create(cognitoEndpoint));
+			}
+			client = builder.build();
+		}
+		return client;
+	}
+
+	@PreDestroy
+	public synchronized void close() {
+		cancelScheduledRefresh();
+		refreshExecutor.shutdownNow();
+		if (client != null) {
+			client.close();
+			client = null;
+		}
+	}
+
+	private record CognitoToken(String accessToken, long expiresAt) {
+		boolean isExpired() {
+			return System.currentTimeMillis() >= expiresAt;
+		}
+	}
+}
@@ -0,0 +1,126 @@
+package com.bigboxer23.meural_control;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Properties;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Content hash of files uploaded to Meural, or the source key of streamed uploads, mapped to the
+ * Meural item created for them, persisted to disk. Entries may be stale if items were removed
+ * outside this app, so callers verify an item still exists before using it.
+ */
+@Slf4j
+public class MeuralUploadIndex {
+	private static final int kMaxEntries = 1000;
+
+	private final File file;
+
+	/** Insertion ordered, so the oldest uploads are dropped first when full */
+	private final LinkedHashMap<String, String> itemIds = new LinkedHashMap<>();
+
+	public MeuralUploadIndex(String name) {
+		this(new File(System.getProperty("user.dir"), name));
+	}
+
+	protected MeuralUploadIndex(File file) {
+		this.file = file;
+		load();
+	}
+
+	public synchronized Optional<String> getItemId(String contentHash) {
+		return Optional.ofNullable(itemIds.get(contentHash));
+	}
+
+	public synchronized void put(String contentHash, String itemId) {
+		itemIds.remove(contentHash);
+		itemIds.put(contentHash, itemId);
+		Iterator<String> iterator = itemIds.keySet().iterator();
+		while (itemIds.size() > kMaxEntries && iterator.hasNext()) {
+			iterator.next();
+			iterator.remove();
+		}
+		save();
+	}
+
+	/** Forget an item, because it was deleted or couldn't be found */
+	public synchronized void removeItemId(String itemId) {
+		if (itemIds.values().removeIf(itemId::equals)) {
+			save();
+		}
+	}
+
+	public synchronized int size() {
+		return itemIds.size();
+	}
+
+	private void load() {
+		if (!file.exists()) {
+			return;
+		}
+		Properties properties = new Properties();
+		try (InputStream in = Files.newInputStream(file.toPath())) {
+			properties.load(in);
+			properties.stringPropertyNames().forEach(hash -> itemIds.put(hash, properties.getProperty(hash)));
+		} catch (IOException | IllegalArgumentException e) {
+			log.warn("can't read upload index " + file.getName() + ", starting empty", e);
+		}
+	}
+
+	private void save() {
+		Properties properties = new Properties();
+		for (Map.Entry<String, String> entry : itemIds.entrySet()) {
+			properties.setProperty(entry.getKey(), entry.getValue());
+		}
+		File tmp = new File(file.getAbsolutePath() + ".tmp");
+		try {
+			try (OutputStream out = Files.newOutputStream(tmp.toPath())) {
+				properties.store(out, null);
+			}
+			Files.move(
+					tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			log.warn("can't save upload index " + file.getName(), e);
+		}
+	}
+
+	/**
+	 * @return hex sha-256 of the file's content
+	 */
+	public static String hash(File file) throws IOException {
+		try (DigestInputStream in = hashing(Files.newInputStream(file.toPath()))) {
+			in.transferTo(OutputStream.nullOutputStream());
+			return hash(in);
+		}
+	}
+
+	/**
+	 * @return stream which hashes the content as it's read, see {@link #hash(DigestInputStream)}
+	 */
+	public static DigestInputStream hashing(InputStream in) {
+		try {
+			return new DigestInputStream(in, MessageDigest.getInstance("SHA-256"));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @return hex sha-256 of everything read from the stream
+	 */
+	public static String hash(DigestInputStream in) {
+		return HexFormat.of().formatHex(in.getMessageDigest().digest());
+	}
+}
@@ -2,21 +2,43 @@ package com.bigboxer23.meural_control;
 
 import com.bigboxer23.meural_control.data.*;
 import com.bigboxer23.meural_control.google.GoogleCalendarComponent;
+import com.bigboxer23.utils.command.Command;
 import com.bigboxer23.utils.file.FilePersistedString;
 import com.bigboxer23.utils.http.OkHttpUtil;
+import com.squareup.moshi.JsonEncodingException;
+import com.squareup.moshi.JsonReader;
 import com.squareup.moshi.Moshi;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 import lombok.extern.slf4j.Slf4j;
 import okhttp3.*;
+import okio.BufferedSource;
 import org.apache.commons.lang3.StringUtils;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.env.Environment;
 import org.springframework.stereotype.Component;
 
-/** component that calls OpenAI's image generation API to generate an image from the text prompt */
+/**
+ * component that calls OpenAI's image generation API to generate an image from the text prompt.
+ * Images are generated ahead of time in the background into a pool on disk, so the next one is
+ * ready straight away and going back shows the images really shown before.
+ */
 @Slf4j
 @Component
 public class OpenAIComponent implements IMeuralImageSource {
@@ -45,67 +67,284 @@ public class OpenAIComponent implements IMeuralImageSource {
 
 	private final FilePersistedString quality = new FilePersistedString("dalleQuality");
 
-	public OpenAIComponent(Environment env, GoogleCalendarComponent gCalendarComp) {
+	private final HttpClientComponent http;
+
+	private final OpenAIImagePool pool;
+
+	/** Images kept in stock, beyond the one showing */
+	private final int poolSize;
+
+	/** Images asked for in each generation request */
+	private final int batchSize;
+
+	/** Most images stocked in the background in a day */
+	private final int dailyBudget;
+
+	/**
+	 * Only one generation runs at a time, so one already running is waited on rather than doubled
+	 */
+	private final Object generateLock = new Object();
+
+	private final ExecutorService filler;
+
+	private final AtomicBoolean fillQueued = new AtomicBoolean();
+
+	private final Counter backgroundImages;
+
+	private final Counter demandImages;
+
+	public OpenAIComponent(
+			Environment env, GoogleCalendarComponent gCalendarComp, HttpClientComponent http, MeterRegistry registry) {
 		this.env = env;
+		this.http = http;
 		if (lastPrompt.get().isBlank()) {
 			lastPrompt.set(env.getProperty("openai-prompt")); // Do here instead of via annotation, so we can
 			// control
 		}
 		gCalendarComponent = gCalendarComp;
+		poolSize = env.getProperty("openai-pool-size", Integer.class, 2);
+		batchSize = Math.max(1, env.getProperty("openai-pool-batch", Integer.class, 1));
+		dailyBudget = env.getProperty("openai-pool-daily-budget", Integer.class, 12);
+		pool = new OpenAIImagePool(
+				new File(System.getProperty("user.dir"), env.getProperty("openai-pool-dir", "openAIPool")),
+				env.getProperty("openai-pool-history", Integer.class, 20));
+		filler = Executors.newSingleThreadExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "openai-pool");
+			thread.setDaemon(true);
+			return thread;
+		});
+		Gauge.builder("openai.pool.images", pool, OpenAIImagePool::getStockSize)
+				.description("generated images stocked and not shown yet")
+				.register(registry);
+		backgroundImages = Counter.builder("openai.images")
+				.description("images generated ahead of time into the pool")
+				.tag("trigger", "background")
+				.register(registry);
+		demandImages = Counter.builder("openai.images")
+				.description("images generated because the pool was empty when one was needed")
+				.tag("trigger", "demand")
+				.register(registry);
 	}
 
+	@PreDestroy
+	public void shutdown() {
+		filler.shutdownNow();
+	}
+
+	/**
+	 * Served from the pool, only generating now if it's empty. The pool is topped up after each
+	 * image served, never before the first, so nothing is paid for until an image is wanted.
+	 */
 	@Override
 	public Optional<SourceItem> nextItem() {
-		return generateItem();
+		Optional<SourceItem> item = pool.next().flatMap(this::toItem);
+		if (item.isEmpty()) {
+			synchronized (generateLock) {
+				item = pool.next().flatMap(this::toItem);
+				if (item.isEmpty() && stockPool(false)) {
+					item = pool.next().flatMap(this::toItem);
+				}
+			}
+		}
+		if (item.isPresent()) {
+			fillPool();
+		}
+		return item;
 	}
 
+	/** The image shown before the current one, nothing is generated */
 	@Override
 	public Optional<SourceItem> prevItem() {
-		return generateItem();
+		Optional<SourceItem> item = pool.previous().flatMap(this::toItem);
+		if (item.isEmpty()) {
+			log.info("no earlier generated image to show");
+		}
+		return item;
+	}
+
+	@Override
+	public void stepBack() {
+		pool.stepBack();
 	}
 
+	@Override
+	public boolean isCostly() {
+		return true;
+	}
+
+	/** Set a new prompt, throwing away images stocked for the old one */
 	public void updatePrompt(String newPrompt) {
+		String previous = lastPrompt.get();
+		setPrompt(newPrompt);
+		if (!Objects.equals(previous, lastPrompt.get())) {
+			pool.flush();
+		}
+	}
+
+	/** Prompts generated from the last one don't change what's stocked */
+	private void setPrompt(String newPrompt) {
 		lastPrompt.set(StringUtils.truncate(newPrompt.trim().replace("\n", " "), 900));
 	}
 
-	protected Optional<SourceItem> generateItem() {
+	/**
+	 * @return the image given to the caller to show, a copy so the pool keeps its own
+	 */
+	private Optional<SourceItem> toItem(OpenAIImagePool.Image image) {
+		Path temp = null;
+		try {
+			temp = Files.createTempFile("", ".jpg");
+			Files.copy(pool.getFile(image).toPath(), temp, StandardCopyOption.REPLACE_EXISTING);
+			SourceItem item = new SourceItem(image.prompt() + ".jpg", null, albumToSaveTo);
+			item.setTempFile(temp.toFile());
+			return Optional.of(item);
+		} catch (IOException e) {
+			log.warn("can't copy generated image " + image.file(), e);
+			if (temp != null) {
+				temp.toFile().delete();
+			}
+			return Optional.empty();
+		}
+	}
+
+	/**
+	 * Top up the pool in the background, within the daily budget. Only called once an image has
+	 * been served, which the scheduler only asks for while the frame is awake.
+	 */
+	private void fillPool() {
+		if (poolSize <= 0 || !fillQueued.compareAndSet(false, true)) {
+			return;
+		}
+		filler.execute(() -> {
+			fillQueued.set(false);
+			while (pool.getStockSize() < poolSize) {
+				if (pool.getStockedToday() >= dailyBudget) {
+					log.info("daily budget of " + dailyBudget + " generated images reached, not filling pool");
+					return;
+				}
+				synchronized (generateLock) {
+					if (pool.getStockSize() >= poolSize || !stockPool(true)) {
+						return;
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Generate a batch of images into the pool
+	 *
+	 * @param background true if ahead of time, rather than because the pool was empty
+	 * @return true if anything was stocked
+	 */
+	private boolean stockPool(boolean background) {
+		long generation = pool.getGeneration();
+		Optional<Generated> generated = generate(batchSize, pool::newImageFile);
+		if (generated.isEmpty()) {
+			return false;
+		}
+		(background ? backgroundImages : demandImages)
+				.increment(generated.get().files().size());
+		boolean stocked = false;
+		for (Path file : generated.get().files()) {
+			stocked |= pool.add(file, generated.get().prompt(), generation, background);
+		}
+		return stocked;
+	}
+
+	/**
+	 * Move the prompt on if the mode asks for it, then generate images from it
+	 *
+	 * @param count images to ask for
+	 * @param files gives the file each image is written to
+	 * @return empty if nothing could be generated
+	 */
+	private Optional<Generated> generate(int count, Command<Path> files) {
 		if (mode == 1) {
-			generateNewPromptTextCompletion(true).ifPresent(this::updatePrompt);
+			generateNewPromptTextCompletion(true).ifPresent(this::setPrompt);
 		} else if (mode == 2 || mode == 3) {
-			generateNewPrompt().ifPresent(this::updatePrompt);
+			generateNewPrompt().ifPresent(this::setPrompt);
 		}
-		log.info("Requesting generated image for prompt: \""
-				+ lastPrompt.get()
-				+ gCalendarComponent.getHolidayString()
-				+ "\"");
+		String prompt = lastPrompt.get() + gCalendarComponent.getHolidayString();
+		log.info("Requesting " + count + " generated image(s) for prompt: \"" + prompt + "\"");
+		OpenAIImageGenerationBody request = new OpenAIImageGenerationBody(prompt, user, style.get(), quality.get());
+		request.setN(count);
 		RequestBody body = RequestBody.create(
-				moshi.adapter(OpenAIImageGenerationBody.class)
-						.toJson(new OpenAIImageGenerationBody(
-								lastPrompt.get() + gCalendarComponent.getHolidayString(),
-								user,
-								style.get(),
-								quality.get())),
-				JSON);
+				moshi.adapter(OpenAIImageGenerationBody.class).toJson(request), JSON);
 		try (Response response = getRequest("v1/images/generations", body)) {
 			if (response.isSuccessful()) {
-				OpenAIImageGenerationResponse openAIResponse =
-						OkHttpUtil.getNonEmptyBody(response, OpenAIImageGenerationResponse.class);
-				if (openAIResponse.getData().length > 0) {
-					SourceItem item = new SourceItem(
-							lastPrompt.get() + gCalendarComponent.getHolidayString() + ".jpg", null, albumToSaveTo);
-					Path temp = Files.createTempFile("", ".jpg");
-					item.setTempFile(openAIResponse.getData()[0].toFile(temp.toString()));
-					return Optional.of(item);
+				List<Path> written = writeImages(response.body().source(), count, files);
+				if (!written.isEmpty()) {
+					return Optional.of(new Generated(written, prompt));
 				}
+				log.warn("no image in response for " + lastPrompt.get());
 			} else {
 				resetPrompt(response.message(), response.code());
 			}
 		} catch (IOException e) {
-			log.warn("generateItem", e);
+			log.warn("generate", e);
 		}
 		return Optional.empty();
 	}
 
+	/**
+	 * Write the first image of a generation response to the file, decoding its base64 as it's read
+	 * so the image is never held in memory whatever its size
+	 *
+	 * @return false if the response has no image
+	 */
+	static boolean writeImage(BufferedSource json, Path output) throws IOException {
+		return !writeImages(json, 1, () -> output).isEmpty();
+	}
+
+	/**
+	 * Write each image of a generation response to its own file, as {@link #writeImage} does. If
+	 * reading the response fails the files written so far are deleted.
+	 *
+	 * @param limit most images written, any more are ignored
+	 * @param files gives the file for each image, only asked for once an image is found
+	 * @return files written, in the order the images were in
+	 */
+	static List<Path> writeImages(BufferedSource json, int limit, Command<Path> files) throws IOException {
+		List<Path> written = new ArrayList<>();
+		try {
+			JsonReader reader = JsonReader.of(json);
+			reader.beginObject();
+			while (reader.hasNext()) {
+				if (!reader.nextName().equals("data")) {
+					reader.skipValue();
+					continue;
+				}
+				reader.beginArray();
+				while (written.size() < limit && reader.hasNext()) {
+					reader.beginObject();
+					while (reader.hasNext()) {
+						if (!reader.nextName().equals("b64_json")) {
+							reader.skipValue();
+							continue;
+						}
+						if (reader.peek() != JsonReader.Token.STRING) {
+							throw new IOException("b64_json is not a string at " + reader.getPath());
+						}
+						Path output = files.execute();
+						written.add(output);
+						try (BufferedSource value = reader.nextSource();
+								InputStream image = Base64.getDecoder().wrap(new JsonStringStream(value))) {
+							Files.copy(image, output, StandardCopyOption.REPLACE_EXISTING);
+						}
+					}
+					reader.endObject();
+				}
+				return written;
+			}
+			return written;
+		} catch (IOException | RuntimeException e) {
+			for (Path path : written) {
+				Files.deleteIfExists(path);
+			}
+			throw e;
+		}
+	}
+
 	private void resetPrompt(String body, int code) {
 		log.warn("request was not successful for "
 				+ lastPrompt.get()
@@ -180,9 +419,9 @@ public class OpenAIComponent implements IMeuralImageSource {
 	}
 
 	private Response getRequest(String url, RequestBody body) throws IOException {
-		return OkHttpUtil.postSynchronous(
-				"https://api.openai.com/" + url, body, builder -> builder.header("Content-Type", "application/json")
-						.header("Authorization", "Bearer " + apiKey));
+		return http.getOpenAI().post("https://api.openai.com/" + url, body, builder -> builder.header(
+						"Content-Type", "application/json")
+				.header("Authorization", "Bearer " + apiKey));
 	}
 
 	public Optional<String> getPrompt() {
@@ -195,12 +434,18 @@ public class OpenAIComponent implements IMeuralImageSource {
 
 	public void setStyle(String style) {
 		log.info("setting style to " + style);
-		this.style.set(style);
+		if (!Objects.equals(this.style.get(), style)) {
+			this.style.set(style);
+			pool.flush();
+		}
 	}
 
 	public void setQuality(String quality) {
 		log.info("setting quality to " + quality);
-		this.quality.set(quality);
+		if (!Objects.equals(this.quality.get(), quality)) {
+			this.quality.set(quality);
+			pool.flush();
+		}
 	}
 
 	public String getQuality() {
@@ -210,4 +455,71 @@ public class OpenAIComponent implements IMeuralImageSource {
 	public String getStyle() {
 		return style.get();
 	}
+
+	/**
+	 * @param files images written, in the order they were in the response
+	 * @param prompt the images were generated from
+	 */
+	private record Generated(List<Path> files, String prompt) {}
+
+	/** Content of a raw JSON string value, without its quotes and with escapes undone */
+	private static class JsonStringStream extends InputStream {
+		private final BufferedSource source;
+
+		private boolean ended;
+
+		private JsonStringStream(BufferedSource source) throws IOException {
+			this.source = source;
+			if (source.readByte() != '"') {
+				throw new JsonEncodingException("expected a string");
+			}
+		}
+
+		@Override
+		public int read() throws IOException {
+			while (!ended) {
+				byte next = source.readByte();
+				if (next == '"') {
+					ended = true;
+				} else if (next != '\\') {
+					return next & 0xff;
+				} else {
+					switch (source.readByte()) {
+						case '/':
+							return '/';
+						case 'n':
+						case 'r':
+							// Line breaks some encoders add aren't part of the data
+							break;
+						case 'u':
+							try {
+								return Integer.parseInt(source.readUtf8(4), 16) & 0xff;
+							} catch (NumberFormatException e) {
+								throw new JsonEncodingException("bad unicode escape in base64 string");
+							}
+						default:
+							throw new JsonEncodingException("unexpected escape in base64 string");
+					}
+				}
+			}
+			return -1;
+		}
+
+		@Override
+		public int read(byte[] bytes, int offset, int length) throws IOException {
+			int count = 0;
+			while (count < length) {
+				// Don't block for more than has arrived once something's been read
+				if (count > 0 && source.getBuffer().size() == 0) {
+					break;
+				}
+				int next = read();
+				if (next == -1) {
+					break;
+				}
+				bytes[offset + count++] = (byte) next;
+			}
+			return count == 0 && length > 0 ? -1 : count;
+		}
+	}
 }
@@ -0,0 +1,265 @@
+package com.bigboxer23.meural_control;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Generated images kept on disk with the prompt that produced them. Images waiting to be shown are
+ * stocked ahead of time, images already shown are kept as history so going back shows what was
+ * really shown before. Stock is thrown away when the generation parameters change, history isn't.
+ */
+@Slf4j
+public class OpenAIImagePool {
+	private static final String kIndexName = "index";
+
+	private static final long kDayMillis = 24 * 60 * 60 * 1000L;
+
+	private final File directory;
+
+	private final int historySize;
+
+	/** Generated and not shown yet, oldest first */
+	private final List<Image> stock = new ArrayList<>();
+
+	/** Shown, oldest first */
+	private final List<Image> history = new ArrayList<>();
+
+	/** Times images were stocked in the background over the last day, for the budget */
+	private final List<Long> stocked = new ArrayList<>();
+
+	/** Which history item is showing, -1 if none */
+	private int position = -1;
+
+	/** What the last call to next did, so it can be undone */
+	private Step lastStep = Step.NONE;
+
+	/** Bumped on flush, so images generated with the old parameters aren't stocked */
+	private long generation;
+
+	/**
+	 * @param historySize most images kept after being shown
+	 */
+	public OpenAIImagePool(File directory, int historySize) {
+		this.directory = directory;
+		this.historySize = Math.max(1, historySize);
+		load();
+	}
+
+	/**
+	 * @return a new file in the pool's directory for a generated image to be written to
+	 */
+	public synchronized Path newImageFile() throws IOException {
+		Files.createDirectories(directory.toPath());
+		return Files.createTempFile(directory.toPath(), "", ".jpg");
+	}
+
+	/**
+	 * @return pass to {@link #add} with images generated from now on, so they're dropped if the
+	 *     pool is flushed while they're being generated
+	 */
+	public synchronized long getGeneration() {
+		return generation;
+	}
+
+	/**
+	 * Stock a generated image, it's deleted instead if the pool was flushed since its generation
+	 * started
+	 *
+	 * @param background true if generated ahead of time, so it counts against the budget
+	 * @return true if stocked
+	 */
+	public synchronized boolean add(Path file, String prompt, long generation, boolean background) {
+		if (generation != this.generation) {
+			log.info("dropping image generated before the pool was flushed");
+			delete(file.getFileName().toString());
+			return false;
+		}
+		stock.add(new Image(file.getFileName().toString(), prompt.replaceAll("\\s+", " ")));
+		if (background) {
+			stocked.add(System.currentTimeMillis());
+		}
+		save();
+		return true;
+	}
+
+	/**
+	 * Move forward through history if we've gone back, otherwise show the oldest stocked image
+	 *
+	 * @return empty if there's nothing ahead in history and no stock
+	 */
+	public synchronized Optional<Image> next() {
+		if (position < history.size() - 1) {
+			position++;
+			lastStep = Step.FORWARD;
+		} else if (!stock.isEmpty()) {
+			history.add(stock.remove(0));
+			position = history.size() - 1;
+			lastStep = Step.STOCK;
+			trimHistory();
+		} else {
+			return Optional.empty();
+		}
+		save();
+		return Optional.of(history.get(position));
+	}
+
+	/**
+	 * @return the image shown before the current one, empty if it's the oldest kept
+	 */
+	public synchronized Optional<Image> previous() {
+		lastStep = Step.NONE;
+		if (position <= 0) {
+			return Optional.empty();
+		}
+		position--;
+		save();
+		return Optional.of(history.get(position));
+	}
+
+	/** Undo the last call to {@link #next}, putting a stocked image back in stock */
+	public synchronized void stepBack() {
+		if (lastStep == Step.STOCK && position == history.size() - 1) {
+			stock.add(0, history.remove(position));
+			position--;
+		} else if (lastStep == Step.FORWARD && position > 0) {
+			position--;
+		}
+		lastStep = Step.NONE;
+		save();
+	}
+
+	/** Throw away the stock, images being generated when this is called won't be stocked */
+	public synchronized void flush() {
+		generation++;
+		if (stock.isEmpty()) {
+			return;
+		}
+		log.info("flushing " + stock.size() + " stocked generated images");
+		stock.forEach(image -> delete(image.file()));
+		stock.clear();
+		if (lastStep == Step.STOCK) {
+			lastStep = Step.NONE;
+		}
+		save();
+	}
+
+	public synchronized int getStockSize() {
+		return stock.size();
+	}
+
+	/**
+	 * @return images stocked in the background over the last day
+	 */
+	public synchronized int getStockedToday() {
+		long since = System.currentTimeMillis() - kDayMillis;
+		stocked.removeIf(time -> time < since);
+		return stocked.size();
+	}
+
+	public File getFile(Image image) {
+		return new File(directory, image.file());
+	}
+
+	private void trimHistory() {
+		while (history.size() > historySize) {
+			delete(history.remove(0).file());
+			position--;
+		}
+	}
+
+	private void delete(String file) {
+		try {
+			Files.deleteIfExists(new File(directory, file).toPath());
+		} catch (IOException e) {
+			log.warn("can't delete generated image " + file, e);
+		}
+	}
+
+	/**
+	 * File format is the history position, then the times images were stocked in the background
+	 * separated by commas, then one image per line of whether it's stock or history, its file and
+	 * prompt separated by tabs. Images not in the index are deleted.
+	 */
+	private void load() {
+		File index = new File(directory, kIndexName);
+		if (index.exists()) {
+			try {
+				List<String> lines = Files.readAllLines(index.toPath(), StandardCharsets.UTF_8);
+				if (lines.size() < 2) {
+					throw new IOException("truncated index");
+				}
+				for (String line : lines.subList(2, lines.size())) {
+					String[] parts = line.split("\t", 3);
+					if (parts.length != 3 || !new File(directory, parts[1]).exists()) {
+						log.warn("dropping generated image " + line);
+						continue;
+					}
+					(parts[0].equals("stock") ? stock : history).add(new Image(parts[1], parts[2]));
+				}
+				position = Math.min(Integer.parseInt(lines.get(0)), history.size() - 1);
+				if (!lines.get(1).isEmpty()) {
+					Arrays.stream(lines.get(1).split(",")).map(Long::parseLong).forEach(stocked::add);
+				}
+			} catch (IOException | NumberFormatException e) {
+				log.warn("can't read generated image pool, starting again", e);
+				stock.clear();
+				history.clear();
+				stocked.clear();
+				position = -1;
+			}
+		}
+		Set<String> known = new HashSet<>();
+		known.add(kIndexName);
+		stock.forEach(image -> known.add(image.file()));
+		history.forEach(image -> known.add(image.file()));
+		File[] files = directory.listFiles();
+		if (files != null) {
+			Arrays.stream(files)
+					.filter(file -> !known.contains(file.getName()))
+					.forEach(file -> delete(file.getName()));
+		}
+	}
+
+	private void save() {
+		List<String> lines = new ArrayList<>(stock.size() + history.size() + 2);
+		lines.add(String.valueOf(position));
+		lines.add(stocked.stream().map(String::valueOf).collect(Collectors.joining(",")));
+		stock.forEach(image -> lines.add("stock\t" + image.file() + "\t" + image.prompt()));
+		history.forEach(image -> lines.add("history\t" + image.file() + "\t" + image.prompt()));
+		try {
+			Files.createDirectories(directory.toPath());
+			Path tmp = Files.createTempFile(directory.toPath(), kIndexName, ".tmp");
+			Files.write(tmp, lines, StandardCharsets.UTF_8);
+			Files.move(
+					tmp,
+					new File(directory, kIndexName).toPath(),
+					StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			log.warn("can't save generated image pool", e);
+		}
+	}
+
+	private enum Step {
+		NONE,
+		FORWARD,
+		STOCK
+	}
+
+	/**
+	 * @param file name within the pool's directory
+	 */
+	public record Image(String file, String prompt) {}
+}
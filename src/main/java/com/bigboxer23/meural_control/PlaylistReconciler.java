@@ -0,0 +1,103 @@
+package com.bigboxer23.meural_control;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Deletes items no longer needed in the playlist in the background, so displaying a new item
+ * doesn't wait on cleaning up old ones. Deletions run concurrently, up to a limit. Failed deletions
+ * are remembered and queued again along with the next items to delete, as the cached playlist no
+ * longer lists them.
+ */
+@Slf4j
+public class PlaylistReconciler implements AutoCloseable {
+	private final ItemDeleter deleter;
+
+	private final ExecutorService executor;
+
+	private final Set<Integer> pending = ConcurrentHashMap.newKeySet();
+
+	/** Items whose deletion failed, waiting to be queued again */
+	private final Set<Integer> failed = ConcurrentHashMap.newKeySet();
+
+	public PlaylistReconciler(ItemDeleter deleter, int parallelism, MeterRegistry registry) {
+		this.deleter = deleter;
+		AtomicInteger threadCount = new AtomicInteger();
+		executor = Executors.newFixedThreadPool(parallelism, runnable -> {
+			Thread thread = new Thread(runnable, "meural-playlist-cleanup-" + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		Gauge.builder("meural.playlist.cleanup.pending", pending, Set::size)
+				.description("playlist items waiting to be deleted")
+				.register(registry);
+	}
+
+	/**
+	 * Queue deletion of items which shouldn't be in the playlist
+	 *
+	 * @param itemIds items to delete, any already queued are ignored. Items which failed to delete
+	 *     before are queued again too.
+	 */
+	public void deleteItems(Collection<Integer> itemIds) {
+		Set<Integer> toDelete = new LinkedHashSet<>(itemIds);
+		for (Integer itemId : failed) {
+			if (failed.remove(itemId)) {
+				toDelete.add(itemId);
+			}
+		}
+		for (Integer itemId : toDelete) {
+			if (!pending.add(itemId)) {
+				continue;
+			}
+			try {
+				executor.execute(() -> delete(itemId));
+			} catch (RejectedExecutionException e) {
+				log.warn("not deleting item " + itemId + ", shutting down");
+				pending.remove(itemId);
+			}
+		}
+	}
+
+	private void delete(Integer itemId) {
+		try {
+			deleter.delete(itemId);
+		} catch (IOException e) {
+			log.warn("can't delete item " + itemId + ", will retry with the next items deleted", e);
+			failed.add(itemId);
+		} finally {
+			pending.remove(itemId);
+		}
+	}
+
+	/**
+	 * @return true if the item is queued for deletion, so shouldn't be displayed
+	 */
+	public boolean isPending(Integer itemId) {
+		return pending.contains(itemId);
+	}
+
+	public int getPendingCount() {
+		return pending.size();
+	}
+
+	@Override
+	public void close() {
+		executor.shutdownNow();
+	}
+
+	@FunctionalInterface
+	public interface ItemDeleter {
+		void delete(Integer itemId) throws IOException;
+	}
+}
@@ -1,18 +1,44 @@
 package com.bigboxer23.meural_control;
 
+import com.bigboxer23.meural_control.data.S3ArchiveEntry;
 import com.bigboxer23.meural_control.data.SourceItem;
+import com.squareup.moshi.Moshi;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import java.io.File;
+import java.net.URI;
 import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.lang3.StringUtils;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 import software.amazon.awssdk.auth.credentials.DefaultCredentialsProvider;
+import software.amazon.awssdk.core.async.AsyncRequestBody;
 import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.http.nio.netty.NettyNioAsyncHttpClient;
 import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.S3AsyncClientBuilder;
 import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.S3ClientBuilder;
+import software.amazon.awssdk.services.s3.model.ChecksumAlgorithm;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
 import software.amazon.awssdk.services.s3.model.PutObjectRequest;
 import software.amazon.awssdk.services.s3.model.PutObjectResponse;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+import software.amazon.awssdk.utils.SdkAutoCloseable;
 
 /** Component to upload images to S3 bucket */
 @Slf4j
@@ -24,23 +50,115 @@ public class S3UploadComponent {
 	@Value("${s3.region:us-east-1}")
 	private String region;
 
-	private S3Client s3Client;
+	/** Optional S3 compatible service to use instead of AWS */
+	@Value("${s3.endpoint:}")
+	private String endpoint;
+
+	/** Upload with the async client, in parts for large files */
+	@Value("${s3.multipart:false}")
+	private boolean multipart;
+
+	@Value("${s3.multipart-part-size-mb:8}")
+	private long partSizeMegabytes;
+
+	/** Most parts of a file uploaded at once */
+	@Value("${s3.multipart-parallelism:4}")
+	private int multipartParallelism;
+
+	/**
+	 * Checksum sent with uploads for S3 to verify the content against, blank for the SDK default
+	 */
+	@Value("${s3.checksum-algorithm:CRC32}")
+	private String checksumAlgorithm;
+
+	private final Moshi moshi = new Moshi.Builder().build();
+
+	private final AtomicReference<S3Client> s3Client = new AtomicReference<>();
+
+	private final AtomicReference<S3AsyncClient> s3AsyncClient = new AtomicReference<>();
+
+	/** Content keys known to be in the bucket, so they aren't checked again */
+	private final Set<String> knownContent = ConcurrentHashMap.newKeySet();
+
+	private final Counter contentUploaded;
+
+	private final Counter contentDeduplicated;
+
+	private final AtomicLong bytesDeduplicated = new AtomicLong();
+
+	public S3UploadComponent(MeterRegistry registry) {
+		contentUploaded = Counter.builder("s3.upload.content")
+				.description("content uploaded to S3")
+				.tag("result", "uploaded")
+				.register(registry);
+		contentDeduplicated = Counter.builder("s3.upload.content")
+				.description("content already in S3, so only an index entry was written")
+				.tag("result", "deduplicated")
+				.register(registry);
+		FunctionCounter.builder("s3.upload.deduplicated.bytes", bytesDeduplicated, AtomicLong::get)
+				.description("bytes not uploaded to S3 because the content was already there")
+				.baseUnit("bytes")
+				.register(registry);
+	}
 
 	private S3Client getS3Client() {
-		if (s3Client == null) {
-			s3Client = S3Client.builder()
+		return getOrCreate(s3Client, () -> {
+			S3ClientBuilder builder = S3Client.builder()
+					.region(Region.of(region))
+					.credentialsProvider(DefaultCredentialsProvider.builder().build());
+			if (StringUtils.isNotBlank(endpoint)) {
+				builder.endpointOverride(URI.create(endpoint)).forcePathStyle(true);
+			}
+			return builder.build();
+		});
+	}
+
+	private S3AsyncClient getS3AsyncClient() {
+		return getOrCreate(s3AsyncClient, () -> {
+			long partSize = partSizeMegabytes * 1024 * 1024;
+			S3AsyncClientBuilder builder = S3AsyncClient.builder()
 					.region(Region.of(region))
 					.credentialsProvider(DefaultCredentialsProvider.builder().build())
-					.build();
+					.httpClientBuilder(NettyNioAsyncHttpClient.builder().maxConcurrency(multipartParallelism))
+					.multipartEnabled(true)
+					.multipartConfiguration(
+							config -> config.minimumPartSizeInBytes(partSize).thresholdInBytes(partSize));
+			if (StringUtils.isNotBlank(endpoint)) {
+				builder.endpointOverride(URI.create(endpoint)).forcePathStyle(true);
+			}
+			return builder.build();
+		});
+	}
+
+	/**
+	 * Get the client, creating it if needed. Racing threads may each build one, all but the first
+	 * set are closed again.
+	 */
+	private static <T extends SdkAutoCloseable> T getOrCreate(AtomicReference<T> reference, Supplier<T> factory) {
+		T client = reference.get();
+		if (client != null) {
+			return client;
+		}
+		client = factory.get();
+		if (reference.compareAndSet(null, client)) {
+			return client;
 		}
-		return s3Client;
+		client.close();
+		return reference.get();
+	}
+
+	@PreDestroy
+	public void close() {
+		Optional.ofNullable(s3Client.getAndSet(null)).ifPresent(S3Client::close);
+		Optional.ofNullable(s3AsyncClient.getAndSet(null)).ifPresent(S3AsyncClient::close);
 	}
 
 	/**
-	 * Upload an item to the configured S3 bucket
+	 * Upload an item to the configured S3 bucket. Content is stored once under its hash, the dated
+	 * key is a small json entry naming that content key, so content seen before isn't stored again.
 	 *
 	 * @param item The source item to upload
-	 * @return The S3 key of the uploaded file, or null if upload failed
+	 * @return The dated S3 key of the item's index entry, or null if upload failed
 	 */
 	public String uploadItem(SourceItem item) {
 		if (item == null || item.getTempFile() == null || !item.getTempFile().exists()) {
@@ -49,25 +167,40 @@ public class S3UploadComponent {
 		}
 
 		try {
-			String key = generateS3Key(item);
+			String hash =
+					item.getContentHash() != null ? item.getContentHash() : MeuralUploadIndex.hash(item.getTempFile());
 			String contentType = getContentType(item.getTempFile().getName());
+			String contentKey = generateContentKey(hash, contentType, item.getTempFile());
+			if (contentExists(contentKey)) {
+				log.info("content already in S3, not uploading again: {}", contentKey);
+				contentDeduplicated.increment();
+				bytesDeduplicated.addAndGet(item.getTempFile().length());
+			} else if (uploadContent(item.getTempFile(), contentKey, contentType)) {
+				knownContent.add(contentKey);
+				contentUploaded.increment();
+			} else {
+				log.warn("Failed to upload item to S3");
+				return null;
+			}
 
-			log.info("uploading item to S3 bucket: \"{}\" with key: \"{}\"", bucketName, key);
-
-			PutObjectRequest putObjectRequest = PutObjectRequest.builder()
-					.bucket(bucketName)
-					.key(key)
-					.contentType(contentType)
-					.build();
-
-			PutObjectResponse response =
-					getS3Client().putObject(putObjectRequest, RequestBody.fromFile(item.getTempFile()));
+			String key = generateS3Key(item);
+			log.info("adding S3 index entry: \"{}\" for: \"{}\"", key, contentKey);
+			PutObjectResponse response = getS3Client()
+					.putObject(
+							PutObjectRequest.builder()
+									.bucket(bucketName)
+									.key(key)
+									.contentType("application/json")
+									.metadata(Map.of("content-key", contentKey))
+									.build(),
+							RequestBody.fromString(moshi.adapter(S3ArchiveEntry.class)
+									.toJson(new S3ArchiveEntry(item.getName(), contentKey, contentType))));
 
 			if (response != null && response.sdkHttpResponse().isSuccessful()) {
 				log.info("Successfully uploaded item to S3: {}", key);
 				return key;
 			} else {
-				log.warn("Failed to upload item to S3");
+				log.warn("Failed to add S3 index entry");
 				return null;
 			}
 		} catch (Exception e) {
@@ -76,9 +209,68 @@ public class S3UploadComponent {
 		}
 	}
 
+	/** Is there already an object for this content, checking S3 if it isn't known locally */
+	private boolean contentExists(String contentKey) {
+		if (knownContent.contains(contentKey)) {
+			return true;
+		}
+		try {
+			getS3Client()
+					.headObject(HeadObjectRequest.builder()
+							.bucket(bucketName)
+							.key(contentKey)
+							.build());
+			knownContent.add(contentKey);
+			return true;
+		} catch (NoSuchKeyException e) {
+			return false;
+		} catch (S3Exception e) {
+			if (e.statusCode() == 404) {
+				return false;
+			}
+			throw e;
+		}
+	}
+
+	private boolean uploadContent(File file, String contentKey, String contentType) {
+		log.info("uploading item to S3 bucket: \"{}\" with key: \"{}\"", bucketName, contentKey);
+
+		PutObjectRequest putObjectRequest = PutObjectRequest.builder()
+				.bucket(bucketName)
+				.key(contentKey)
+				.contentType(contentType)
+				.checksumAlgorithm(
+						StringUtils.isBlank(checksumAlgorithm)
+								? null
+								: ChecksumAlgorithm.fromValue(checksumAlgorithm.toUpperCase()))
+				.build();
+
+		PutObjectResponse response = multipart
+				? getS3AsyncClient()
+						.putObject(putObjectRequest, AsyncRequestBody.fromFile(file))
+						.join()
+				: getS3Client().putObject(putObjectRequest, RequestBody.fromFile(file));
+		return response != null && response.sdkHttpResponse().isSuccessful();
+	}
+
+	/**
+	 * Key content is stored under, the same content always gets the same key. The extension comes
+	 * from the content type, so a .jpg and .jpeg of the same bytes share a key.
+	 */
+	private String generateContentKey(String hash, String contentType, File file) {
+		String extension =
+				switch (contentType) {
+					case "image/jpeg" -> "jpg";
+					case "image/png" -> "png";
+					case "image/gif" -> "gif";
+					default -> FilenameUtils.getExtension(file.getName()).toLowerCase();
+				};
+		return String.format("%s/%s/%s.%s", "meural-uploads", "content", hash, extension);
+	}
+
 	/**
-	 * Generate S3 key for the uploaded file. Uses a date folder (YYYY-MM), timestamp and original
-	 * filename to ensure uniqueness while maintaining readability.
+	 * Generate S3 key for the uploaded file's index entry. Uses a date folder (YYYY-MM), timestamp
+	 * and original filename to ensure uniqueness while maintaining readability.
 	 */
 	private String generateS3Key(SourceItem item) {
 		String dateFolder = LocalDate.now().format(DateTimeFormatter.ofPattern("yyyy-MM"));
@@ -89,7 +281,7 @@ public class S3UploadComponent {
 		// Clean the base name to be S3-friendly (remove special characters)
 		baseName = baseName.replaceAll("[^a-zA-Z0-9-_]", "_");
 
-		return String.format("%s/%s/%s_%s.%s", "meural-uploads", dateFolder, timestamp, baseName, extension);
+		return String.format("%s/%s/%s_%s.%s.json", "meural-uploads", dateFolder, timestamp, baseName, extension);
 	}
 
 	/** Determine content type based on file extension */
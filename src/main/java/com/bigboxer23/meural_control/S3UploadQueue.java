@@ -0,0 +1,318 @@
+package com.bigboxer23.meural_control;
+
+import com.bigboxer23.meural_control.data.SourceItem;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.FilenameUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Saves items to S3 in the background, so a slow upload never holds up displaying them. Items are
+ * copied to a spool directory and recorded in a journal there, anything not uploaded yet is picked
+ * up again after a restart. Failed uploads are retried with a growing delay.
+ */
+@Slf4j
+@Component
+public class S3UploadQueue {
+	private static final String kJournal = "journal.properties";
+
+	private static final String kTempSuffix = ".tmp";
+
+	private static final int kMaxAttempts = 10;
+
+	private static final long kMaxRetryMillis = TimeUnit.MINUTES.toMillis(30);
+
+	@Value("${s3-queue-dir:s3Queue}")
+	private String queueDirectory;
+
+	@Value("${s3-queue-retry-millis:5000}")
+	private long retryMillis;
+
+	private File directory;
+
+	private final S3UploadComponent s3Upload;
+
+	/** Items waiting to be uploaded, by id */
+	private final Map<String, Entry> entries = new LinkedHashMap<>();
+
+	private final AtomicLong nextId = new AtomicLong(System.currentTimeMillis());
+
+	private final ScheduledExecutorService worker;
+
+	private final Timer uploadTime;
+
+	private final Timer queueTime;
+
+	private final Counter uploaded;
+
+	private final Counter retried;
+
+	private final Counter dropped;
+
+	public S3UploadQueue(S3UploadComponent s3Upload, MeterRegistry registry) {
+		this.s3Upload = s3Upload;
+		worker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "s3-upload-queue");
+			thread.setDaemon(true);
+			return thread;
+		});
+		Gauge.builder("s3.upload.queue.depth", this, S3UploadQueue::getDepth)
+				.description("items waiting to be uploaded to S3")
+				.register(registry);
+		uploadTime = Timer.builder("s3.upload.duration")
+				.description("time taken by each S3 upload attempt")
+				.register(registry);
+		queueTime = Timer.builder("s3.upload.latency")
+				.description("time from an item being queued to it being saved in S3")
+				.register(registry);
+		uploaded = Counter.builder("s3.upload")
+				.description("items saved to S3")
+				.tag("result", "uploaded")
+				.register(registry);
+		retried = Counter.builder("s3.upload")
+				.description("S3 uploads which failed and will be tried again")
+				.tag("result", "retry")
+				.register(registry);
+		dropped = Counter.builder("s3.upload")
+				.description("items given up on after failing to upload too many times")
+				.tag("result", "dropped")
+				.register(registry);
+	}
+
+	/** Read the journal and queue up anything left from before, removing files it doesn't know */
+	@PostConstruct
+	public void load() {
+		directory = new File(queueDirectory);
+		if (!directory.isAbsolute()) {
+			directory = new File(System.getProperty("user.dir"), queueDirectory);
+		}
+		if (!directory.exists() && !directory.mkdirs()) {
+			log.warn("can't create s3 queue directory " + directory);
+			return;
+		}
+		List<String> ids;
+		synchronized (this) {
+			entries.clear();
+			readJournal();
+			entries.values().removeIf(entry -> !entry.file().exists());
+			Set<File> known = entries.values().stream().map(Entry::file).collect(Collectors.toSet());
+			File[] files =
+					directory.listFiles(file -> file.isFile() && !file.getName().equals(kJournal));
+			for (File file : files == null ? new File[0] : files) {
+				if (!known.contains(file)) {
+					log.info("removing unknown s3 queue file " + file.getName());
+					file.delete();
+				}
+			}
+			saveJournal();
+			ids = new ArrayList<>(entries.keySet());
+		}
+		if (!ids.isEmpty()) {
+			log.info(ids.size() + " items waiting to be uploaded to S3");
+		}
+		ids.forEach(id -> schedule(id, 0));
+	}
+
+	/**
+	 * Queue a copy of the item's file to be uploaded, the caller is free to delete its file once
+	 * this returns
+	 */
+	public void enqueue(SourceItem item) throws IOException {
+		String id = String.valueOf(nextId.incrementAndGet());
+		File spooled = getSpoolFile(id, item.getTempFile().getName());
+		try {
+			Files.createLink(spooled.toPath(), item.getTempFile().toPath());
+		} catch (IOException | UnsupportedOperationException e) {
+			File tmp = new File(directory, spooled.getName() + kTempSuffix);
+			try {
+				Files.copy(item.getTempFile().toPath(), tmp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+				Files.move(tmp.toPath(), spooled.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			} finally {
+				tmp.delete();
+			}
+		}
+		add(id, item, spooled, item.getContentHash());
+	}
+
+	/**
+	 * Queue an item whose content is read from a stream, for content which wasn't saved locally.
+	 * The stream is read to its end but not closed.
+	 */
+	public void enqueue(SourceItem item, InputStream content) throws IOException {
+		String id = String.valueOf(nextId.incrementAndGet());
+		File spooled = getSpoolFile(id, item.getName());
+		File tmp = new File(directory, spooled.getName() + kTempSuffix);
+		DigestInputStream hashing = MeuralUploadIndex.hashing(content);
+		try {
+			Files.copy(hashing, tmp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			Files.move(tmp.toPath(), spooled.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			tmp.delete();
+		}
+		add(id, item, spooled, MeuralUploadIndex.hash(hashing));
+	}
+
+	private File getSpoolFile(String id, String name) {
+		String extension = name == null ? "" : FilenameUtils.getExtension(name);
+		return new File(directory, id + (extension.isEmpty() ? "" : "." + extension));
+	}
+
+	private void add(String id, SourceItem item, File spooled, String contentHash) {
+		log.info("queueing \"" + item.getName() + "\" for upload to S3");
+		synchronized (this) {
+			entries.put(id, new Entry(item.getName(), spooled, contentHash, System.currentTimeMillis(), 0));
+			saveJournal();
+		}
+		schedule(id, 0);
+	}
+
+	private void schedule(String id, long delayMillis) {
+		if (!worker.isShutdown()) {
+			worker.schedule(() -> upload(id), delayMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private void upload(String id) {
+		Entry entry;
+		synchronized (this) {
+			entry = entries.get(id);
+		}
+		if (entry == null) {
+			return;
+		}
+		SourceItem item = new SourceItem(entry.name(), null);
+		item.setTempFile(entry.file());
+		item.setContentHash(entry.contentHash());
+		long start = System.nanoTime();
+		String key = s3Upload.uploadItem(item);
+		uploadTime.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+		if (key != null) {
+			uploaded.increment();
+			queueTime.record(System.currentTimeMillis() - entry.queued(), TimeUnit.MILLISECONDS);
+			remove(id);
+			return;
+		}
+		int attempts = entry.attempts() + 1;
+		if (attempts >= kMaxAttempts) {
+			log.warn("giving up uploading \"" + entry.name() + "\" to S3 after " + attempts + " attempts");
+			dropped.increment();
+			remove(id);
+			return;
+		}
+		long delay = Math.min(retryMillis << (attempts - 1), kMaxRetryMillis);
+		log.warn("uploading \"" + entry.name() + "\" to S3 failed, retrying in " + delay + "ms");
+		retried.increment();
+		synchronized (this) {
+			entries.put(id, new Entry(entry.name(), entry.file(), entry.contentHash(), entry.queued(), attempts));
+			saveJournal();
+		}
+		schedule(id, delay);
+	}
+
+	private synchronized void remove(String id) {
+		Entry entry = entries.remove(id);
+		if (entry != null) {
+			entry.file().delete();
+			saveJournal();
+		}
+	}
+
+	public synchronized int getDepth() {
+		return entries.size();
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		worker.shutdownNow();
+	}
+
+	private void readJournal() {
+		File journal = new File(directory, kJournal);
+		if (!journal.exists()) {
+			return;
+		}
+		Properties properties = new Properties();
+		try (InputStream in = Files.newInputStream(journal.toPath())) {
+			properties.load(in);
+		} catch (IOException | IllegalArgumentException e) {
+			log.warn("can't read s3 queue journal, starting empty", e);
+			return;
+		}
+		properties.stringPropertyNames().stream()
+				.filter(name -> name.endsWith(".file"))
+				.map(name -> name.substring(0, name.length() - ".file".length()))
+				.sorted()
+				.forEach(id -> {
+					try {
+						entries.put(
+								id,
+								new Entry(
+										properties.getProperty(id + ".name"),
+										new File(directory, properties.getProperty(id + ".file")),
+										properties.getProperty(id + ".hash"),
+										Long.parseLong(properties.getProperty(id + ".queued")),
+										Integer.parseInt(properties.getProperty(id + ".attempts"))));
+					} catch (NumberFormatException e) {
+						log.warn("skipping bad s3 queue entry " + id, e);
+					}
+				});
+	}
+
+	private void saveJournal() {
+		Properties properties = new Properties();
+		entries.forEach((id, entry) -> {
+			if (entry.name() != null) {
+				properties.setProperty(id + ".name", entry.name());
+			}
+			properties.setProperty(id + ".file", entry.file().getName());
+			if (entry.contentHash() != null) {
+				properties.setProperty(id + ".hash", entry.contentHash());
+			}
+			properties.setProperty(id + ".queued", String.valueOf(entry.queued()));
+			properties.setProperty(id + ".attempts", String.valueOf(entry.attempts()));
+		});
+		File journal = new File(directory, kJournal);
+		File tmp = new File(directory, kJournal + kTempSuffix);
+		try {
+			try (OutputStream out = Files.newOutputStream(tmp.toPath())) {
+				properties.store(out, null);
+			}
+			Files.move(
+					tmp.toPath(),
+					journal.toPath(),
+					StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			log.warn("can't save s3 queue journal", e);
+		}
+	}
+
+	/**
+	 * @param contentHash hex sha-256 of the file, null if it wasn't known when queued
+	 */
+	private record Entry(String name, File file, String contentHash, long queued, int attempts) {}
+}
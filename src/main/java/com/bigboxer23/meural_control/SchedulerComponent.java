@@ -5,8 +5,14 @@ import com.bigboxer23.meural_control.google.GooglePhotosComponent;
 import com.bigboxer23.meural_control.jwst.JWSTComponent;
 import com.bigboxer23.utils.command.Command;
 import com.bigboxer23.utils.file.FilePersistentIndex;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
 import java.io.IOException;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
@@ -27,38 +33,106 @@ public class SchedulerComponent {
 
 	private FilePersistentIndex sourceStorage = new FilePersistentIndex("meuralSource");
 
+	/** Next item from the current source, fetched and prepared ahead of the next display */
+	private Prefetch prefetch;
+
+	/** Runs the prefetch, only one is ever in flight */
+	private final BlockingTaskExecutor executor;
+
+	private final Counter prefetchHits;
+
+	private final Counter prefetchMisses;
+
 	public SchedulerComponent(
 			GooglePhotosComponent gPhotos,
 			MeuralComponent meuralComponent,
 			OpenAIComponent openAIComponent,
-			JWSTComponent jwstComponent) {
+			JWSTComponent jwstComponent,
+			BlockingTaskExecutor executor,
+			MeterRegistry registry) {
 		gPhotosAPI = gPhotos;
+		this.executor = executor;
 		openAIAPI = openAIComponent;
 		jwstAPI = jwstComponent;
 		api = meuralComponent;
+		prefetchHits = Counter.builder("meural.prefetch")
+				.description("next items served from the prefetch slot")
+				.tag("result", "hit")
+				.register(registry);
+		prefetchMisses = Counter.builder("meural.prefetch")
+				.description("next items which had to be fetched on demand")
+				.tag("result", "miss")
+				.register(registry);
 		changeSource(sourceStorage.get());
 	}
 
 	/** Every hour get a new source file and display on Meural */
 	@Scheduled(cron = "${scheduler-time}")
 	private void iterateSource() throws IOException {
-		doAction(currentSource::nextItem);
+		doNextAction();
 	}
 
+	/** Check the frame is awake before asking the source for anything */
 	private MeuralResponse doAction(Command<Optional<SourceItem>> command) throws IOException {
+		// Displaying needs these whatever the item is, fetch them alongside everything else
+		api.prefetchMetadata();
 		MeuralStatusResponse response = api.isAsleep();
 		if (response.isResponse()) {
 			log.info("Meural is asleep, not doing anything");
 			return response;
 		}
-		return command.execute()
-				.map(url -> {
+		return display(command.execute());
+	}
+
+	/**
+	 * Show the next item, fetching it while checking the frame is awake. If it's asleep the item
+	 * isn't downloaded, it's kept to show next time. Sources which cost money for each item aren't
+	 * asked for one until the frame is known to be awake.
+	 */
+	private MeuralResponse doNextAction() throws IOException {
+		IMeuralImageSource source = currentSource;
+		if (source.isCostly()) {
+			return doAction(() -> takeNextItem(source, takePrefetch()));
+		}
+		api.prefetchMetadata();
+		// Taken here rather than in the task, so keeping the task's item can't hand it its own
+		// result
+		Prefetch slot = takePrefetch();
+		AtomicBoolean cancelled = new AtomicBoolean();
+		CompletableFuture<Optional<SourceItem>> item = executor.supply(() -> {
+			Optional<SourceItem> next = takeNextItem(source, slot);
+			if (next.isPresent() && !cancelled.get()) {
+				prepare(next.get());
+			}
+			return next;
+		});
+		MeuralStatusResponse response;
+		try {
+			response = api.isAsleep();
+		} catch (IOException e) {
+			cancelled.set(true);
+			keep(new Prefetch(source, item));
+			throw e;
+		}
+		if (response.isResponse()) {
+			log.info("Meural is asleep, not doing anything");
+			cancelled.set(true);
+			keep(new Prefetch(source, item));
+			return response;
+		}
+		return display(BlockingTaskExecutor.await(item));
+	}
+
+	private MeuralResponse display(Optional<SourceItem> item) {
+		return item.map(url -> {
 					try {
 						url.setCleanupTempFile(false);
 						// preview first b/c next, more permanent step takes (10-15s)
 						api.previewItem(url, false);
 						url.setCleanupTempFile(true);
-						return api.changePicture(url);
+						MeuralStringResponse displayResponse = api.changePicture(url);
+						startPrefetch();
+						return displayResponse;
 					} catch (IOException e) {
 						log.warn("doAction: resetting api", e);
 						api.reset();
@@ -68,7 +142,117 @@ public class SchedulerComponent {
 				.orElse(new MeuralResponse());
 	}
 
+	/**
+	 * Use the prefetched item if there is one for the source, otherwise fetch the next item from
+	 * the source now
+	 */
+	private Optional<SourceItem> takeNextItem(IMeuralImageSource source, Prefetch slot) {
+		if (slot != null && slot.source() == source) {
+			try {
+				Optional<SourceItem> item = slot.item().get();
+				if (item.isPresent()) {
+					log.info("using prefetched item \"" + item.get().getName() + "\"");
+					prefetchHits.increment();
+					return item;
+				}
+			} catch (ExecutionException e) {
+				log.warn("prefetch failed", e);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return Optional.empty();
+			}
+		} else if (slot != null) {
+			discard(slot);
+		}
+		prefetchMisses.increment();
+		return source.nextItem();
+	}
+
+	/**
+	 * Resolve, download and transform the current source's next item in the background. Sources
+	 * which cost money for each item aren't prefetched, the next tick may find the frame asleep.
+	 */
+	private synchronized void startPrefetch() {
+		IMeuralImageSource source = currentSource;
+		if (prefetch != null || source.isCostly()) {
+			return;
+		}
+		log.info("prefetching next item");
+		prefetch = new Prefetch(
+				source,
+				CompletableFuture.supplyAsync(
+						() -> {
+							Optional<SourceItem> item = source.nextItem();
+							item.ifPresent(this::prepare);
+							return item;
+						},
+						executor));
+	}
+
+	/** Download and transform the item, it's still handed out if this fails */
+	private void prepare(SourceItem item) {
+		try {
+			api.prepareItem(item);
+		} catch (IOException e) {
+			// It will be downloaded when displayed
+			log.warn("can't prepare \"" + item.getName() + "\"", e);
+		}
+	}
+
+	/**
+	 * Put an item fetched but not shown back in the prefetch slot, so it's the next one shown. If
+	 * the slot's been filled or the source changed in the meantime it's discarded instead.
+	 */
+	private void keep(Prefetch fetched) {
+		synchronized (this) {
+			if (prefetch == null && fetched.source() == currentSource) {
+				prefetch = fetched;
+				return;
+			}
+		}
+		discard(fetched);
+	}
+
+	private synchronized Prefetch takePrefetch() {
+		Prefetch slot = prefetch;
+		prefetch = null;
+		return slot;
+	}
+
+	/**
+	 * Throw away the prefetched item (if any) so the next display fetches fresh content. Called
+	 * when whatever the prefetch was based on (source, album, prompt) changes. Waits for a prefetch
+	 * still in flight, so its source is stepped back before the caller changes or resets it.
+	 */
+	public void invalidatePrefetch() {
+		Prefetch slot = takePrefetch();
+		if (slot != null) {
+			log.info("invalidating prefetched item");
+			discardNow(slot);
+		}
+	}
+
+	/** Wait for the prefetch to finish, then discard it before returning */
+	private void discardNow(Prefetch slot) {
+		slot.item().handle((item, e) -> null).join();
+		discard(slot);
+	}
+
+	/** Clean up a prefetched item and step its source back so the item isn't skipped */
+	private void discard(Prefetch slot) {
+		slot.item().whenComplete((item, e) -> {
+			if (item == null || item.isEmpty()) {
+				return;
+			}
+			slot.source().stepBack();
+			if (item.get().getTempFile() != null) {
+				item.get().getTempFile().delete();
+			}
+		});
+	}
+
 	public void changeSource(int sourceOrdinal) {
+		invalidatePrefetch();
 		switch (sourceOrdinal) {
 			case 0:
 			default:
@@ -95,10 +279,37 @@ public class SchedulerComponent {
 	}
 
 	public MeuralResponse nextItem() throws IOException {
-		return doAction(currentSource::nextItem);
+		return doNextAction();
 	}
 
 	public MeuralResponse prevItem() throws IOException {
+		Prefetch slot = takePrefetch();
+		if (slot != null) {
+			// The source has already moved past the prefetched item, undo that before going
+			// backwards
+			discardNow(slot);
+		}
 		return doAction(currentSource::prevItem);
 	}
+
+	/**
+	 * @return number of next items served from the prefetch slot
+	 */
+	public double getPrefetchHits() {
+		return prefetchHits.count();
+	}
+
+	/**
+	 * @return number of next items which had to be fetched on demand
+	 */
+	public double getPrefetchMisses() {
+		return prefetchMisses.count();
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		invalidatePrefetch();
+	}
+
+	private record Prefetch(IMeuralImageSource source, CompletableFuture<Optional<SourceItem>> item) {}
 }
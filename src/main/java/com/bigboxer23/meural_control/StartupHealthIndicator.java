@@ -0,0 +1,35 @@
+package com.bigboxer23.meural_control;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.springframework.boot.health.contributor.Health;
+import org.springframework.boot.health.contributor.HealthIndicator;
+import org.springframework.stereotype.Component;
+
+/**
+ * Out of service until every startup task has finished, so it can be included in the readiness
+ * health group. Failed tasks don't hold readiness back, they're retried when next needed.
+ */
+@Component
+public class StartupHealthIndicator implements HealthIndicator {
+	private final StartupTasks startupTasks;
+
+	public StartupHealthIndicator(StartupTasks startupTasks) {
+		this.startupTasks = startupTasks;
+	}
+
+	@Override
+	public Health health() {
+		Health.Builder builder = startupTasks.isFinished() ? Health.up() : Health.outOfService();
+		for (StartupTasks.Task task : startupTasks.getTasks()) {
+			Map<String, Object> details = new LinkedHashMap<>();
+			details.put("state", task.getState());
+			details.put("millis", task.getMillis());
+			if (task.getError() != null) {
+				details.put("error", task.getError());
+			}
+			builder.withDetail(task.getName(), details);
+		}
+		return builder.build();
+	}
+}
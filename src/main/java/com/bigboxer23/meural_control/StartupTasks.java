@@ -0,0 +1,165 @@
+package com.bigboxer23.meural_control;
+
+import com.bigboxer23.utils.command.VoidCommand;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+/**
+ * Work which talks to other services while the application starts, like fetching credentials or
+ * warming up connections to the frame. By default it runs in the background so the web server
+ * doesn't wait on it, with progress reported by {@link StartupHealthIndicator}. Setting
+ * startup-mode=blocking runs each task as it's added instead, holding up startup until it's done.
+ */
+@Slf4j
+@Component
+public class StartupTasks {
+	private final boolean background;
+
+	private final BlockingTaskExecutor executor;
+
+	private final Map<String, Task> tasks = new LinkedHashMap<>();
+
+	private volatile long readyMillis = -1;
+
+	public StartupTasks(Environment env, BlockingTaskExecutor executor) {
+		this(!"blocking".equalsIgnoreCase(env.getProperty("startup-mode", "background")), executor);
+	}
+
+	protected StartupTasks(boolean background, BlockingTaskExecutor executor) {
+		this.background = background;
+		this.executor = executor;
+	}
+
+	/**
+	 * Run a task, failures are logged and reported but don't stop the application starting
+	 *
+	 * @param name what's being done, for logging and health details
+	 */
+	public void run(String name, VoidCommand command) {
+		Task task = new Task(name);
+		synchronized (this) {
+			tasks.put(name, task);
+		}
+		if (background) {
+			executor.execute(() -> runTask(task, command));
+		} else {
+			runTask(task, command);
+		}
+	}
+
+	private void runTask(Task task, VoidCommand command) {
+		task.started = System.currentTimeMillis();
+		try {
+			command.execute();
+		} catch (IOException | RuntimeException e) {
+			log.warn("startup task " + task.name + " failed", e);
+			task.error = e.toString();
+		}
+		task.finished = System.currentTimeMillis();
+		log.info("startup task " + task.name + " took " + task.getMillis() + "ms");
+		if (isFinished() && readyMillis != -1) {
+			logReport();
+		}
+	}
+
+	/**
+	 * @return true once every task added has finished, successfully or not
+	 */
+	public synchronized boolean isFinished() {
+		return tasks.values().stream().allMatch(task -> task.finished != 0);
+	}
+
+	/**
+	 * @return each task's state, in the order they were added
+	 */
+	public synchronized List<Task> getTasks() {
+		return new ArrayList<>(tasks.values());
+	}
+
+	/** Report how long it took to start serving http, and the tasks still running at that point */
+	@EventListener(ApplicationReadyEvent.class)
+	public void onReady() {
+		readyMillis = ManagementFactory.getRuntimeMXBean().getUptime();
+		List<String> running = getTasks().stream()
+				.filter(task -> task.finished == 0)
+				.map(Task::getName)
+				.toList();
+		log.info("ready for http "
+				+ readyMillis
+				+ "ms after jvm start, "
+				+ (background ? "background" : "blocking")
+				+ " startup"
+				+ (running.isEmpty() ? "" : ", still running " + running));
+		if (running.isEmpty()) {
+			logReport();
+		}
+	}
+
+	private synchronized void logReport() {
+		log.info("startup finished "
+				+ ManagementFactory.getRuntimeMXBean().getUptime()
+				+ "ms after jvm start, ready for http at "
+				+ readyMillis
+				+ "ms, "
+				+ tasks.values().stream()
+						.map(task ->
+								task.name + " " + task.getMillis() + "ms" + (task.error != null ? " (failed)" : ""))
+						.collect(Collectors.joining(", ")));
+	}
+
+	/** One piece of startup work and how it went */
+	public static class Task {
+		private final String name;
+
+		private volatile long started;
+
+		private volatile long finished;
+
+		private volatile String error;
+
+		private Task(String name) {
+			this.name = name;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * @return waiting, running, done or failed
+		 */
+		public String getState() {
+			if (finished != 0) {
+				return error != null ? "failed" : "done";
+			}
+			return started != 0 ? "running" : "waiting";
+		}
+
+		/**
+		 * @return time taken, or so far if it's still running
+		 */
+		public long getMillis() {
+			if (started == 0) {
+				return 0;
+			}
+			return (finished != 0 ? finished : System.currentTimeMillis()) - started;
+		}
+
+		/**
+		 * @return what the task failed with, null unless it failed
+		 */
+		public String getError() {
+			return error;
+		}
+	}
+}
@@ -0,0 +1,174 @@
+package com.bigboxer23.meural_control;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hands one stream to several readers as it's read, without staging it anywhere. Each reader has a
+ * small bounded buffer, so the source is read no faster than the slowest reader. A reader that
+ * closes early is dropped and the rest carry on.
+ */
+public class StreamingTee {
+	private static final int kChunkSize = 64 * 1024;
+
+	private static final long kPollMillis = 100;
+
+	/** Marks the end of the stream in a branch's queue */
+	private static final byte[] kEnd = new byte[0];
+
+	private final InputStream source;
+
+	private final int bufferChunks;
+
+	private final List<Branch> branches = new CopyOnWriteArrayList<>();
+
+	/**
+	 * @param source stream to copy, closed by the caller
+	 * @param bufferChunks number of 64k chunks each reader can fall behind by
+	 */
+	public StreamingTee(InputStream source, int bufferChunks) {
+		this.source = source;
+		this.bufferChunks = bufferChunks;
+	}
+
+	/**
+	 * @return a new reader of the source, must be created before {@link #pump()} is called and read
+	 *     from a different thread
+	 */
+	public InputStream branch() {
+		Branch branch = new Branch(bufferChunks);
+		branches.add(branch);
+		return branch;
+	}
+
+	/**
+	 * Read the source to its end, blocking while any open reader's buffer is full. If reading the
+	 * source fails, every reader sees the failure.
+	 *
+	 * @return bytes read from the source
+	 */
+	public long pump() throws IOException {
+		long total = 0;
+		try {
+			byte[] buffer = new byte[kChunkSize];
+			int read;
+			while ((read = source.read(buffer)) != -1) {
+				byte[] chunk = Arrays.copyOf(buffer, read);
+				boolean anyOpen = false;
+				for (Branch branch : branches) {
+					anyOpen |= branch.offer(chunk);
+				}
+				total += read;
+				if (!anyOpen) {
+					// Nobody left to read, readers report their own failures
+					return total;
+				}
+			}
+			for (Branch branch : branches) {
+				branch.offer(kEnd);
+			}
+			return total;
+		} catch (IOException | RuntimeException e) {
+			branches.forEach(branch -> branch.fail(e));
+			throw e;
+		}
+	}
+
+	private static class Branch extends InputStream {
+		private final BlockingQueue<byte[]> chunks;
+
+		private volatile boolean closed;
+
+		private volatile Exception failure;
+
+		private byte[] current;
+
+		private int position;
+
+		private boolean ended;
+
+		private Branch(int bufferChunks) {
+			chunks = new ArrayBlockingQueue<>(Math.max(1, bufferChunks));
+		}
+
+		/**
+		 * @return false if the reader has closed the branch
+		 */
+		private boolean offer(byte[] chunk) throws InterruptedIOException {
+			try {
+				while (!closed) {
+					if (chunks.offer(chunk, kPollMillis, TimeUnit.MILLISECONDS)) {
+						return true;
+					}
+				}
+				return false;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("interrupted copying stream");
+			}
+		}
+
+		private void fail(Exception e) {
+			failure = e;
+		}
+
+		/**
+		 * @return false at the end of the stream
+		 */
+		private boolean fill() throws IOException {
+			while (!ended && (current == null || position >= current.length)) {
+				if (closed) {
+					throw new IOException("stream closed");
+				}
+				if (failure != null) {
+					throw new IOException("reading source failed", failure);
+				}
+				try {
+					byte[] next = chunks.poll(kPollMillis, TimeUnit.MILLISECONDS);
+					if (next == kEnd) {
+						ended = true;
+					} else if (next != null) {
+						current = next;
+						position = 0;
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("interrupted reading stream");
+				}
+			}
+			return !ended;
+		}
+
+		@Override
+		public int read() throws IOException {
+			return fill() ? current[position++] & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			if (!fill()) {
+				return -1;
+			}
+			int count = Math.min(len, current.length - position);
+			System.arraycopy(current, position, b, off, count);
+			position += count;
+			return count;
+		}
+
+		@Override
+		public void close() {
+			closed = true;
+			chunks.clear();
+		}
+	}
+}
@@ -0,0 +1,22 @@
+package com.bigboxer23.meural_control.data;
+
+import com.squareup.moshi.Json;
+import lombok.Data;
+
+/** Dated S3 archive entry, naming the key the item's content is stored under */
+@Data
+public class S3ArchiveEntry {
+	private String name;
+
+	@Json(name = "content_key")
+	private String contentKey;
+
+	@Json(name = "content_type")
+	private String contentType;
+
+	public S3ArchiveEntry(String name, String contentKey, String contentType) {
+		setName(name);
+		setContentKey(contentKey);
+		setContentType(contentType);
+	}
+}
@@ -24,7 +24,24 @@ public class SourceItem {
 
 	private String albumToSaveTo;
 
+	/**
+	 * Stable identifier of the content within its source, for sources whose URLs change over time
+	 */
+	private String sourceId;
+
 	private File tempFile;
 
+	/** Hex sha-256 of the temp file's content, if it's been worked out */
+	private String contentHash;
+
 	private boolean cleanupTempFile;
+
+	/** Has the transform command already been applied to the temp file */
+	private boolean transformed;
+
+	/** Replacing the file makes any hash of the old one wrong */
+	public void setTempFile(File tempFile) {
+		this.tempFile = tempFile;
+		contentHash = null;
+	}
 }
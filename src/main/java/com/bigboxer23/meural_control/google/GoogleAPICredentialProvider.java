@@ -42,7 +42,7 @@ public class GoogleAPICredentialProvider {
 		return JSON_FACTORY;
 	}
 
-	public CredentialsProvider getCredentialProvider() throws IOException, GeneralSecurityException {
+	public synchronized CredentialsProvider getCredentialProvider() throws IOException, GeneralSecurityException {
 		if (credProvider == null) {
 			log.info("Fetching Google creds");
 			InputStream aCredStream = Credentials.class.getResourceAsStream("/credentials.json");
@@ -67,10 +67,17 @@ public class GoogleAPICredentialProvider {
 		return credProvider;
 	}
 
-	public Credential getCredential() throws IOException, GeneralSecurityException {
+	public synchronized Credential getCredential() throws IOException, GeneralSecurityException {
 		if (credential == null) {
 			getCredentialProvider();
 		}
 		return credential;
 	}
+
+	/** Drop cached credentials so they're reloaded from the token store on next request */
+	public synchronized void reset() {
+		log.warn("resetting google credentials");
+		credProvider = null;
+		credential = null;
+	}
 }
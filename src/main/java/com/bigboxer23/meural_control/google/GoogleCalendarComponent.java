@@ -1,8 +1,10 @@
 package com.bigboxer23.meural_control.google;
 
+import com.bigboxer23.meural_control.StartupTasks;
 import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
 import com.google.api.client.util.DateTime;
 import com.google.api.services.calendar.Calendar;
+import jakarta.annotation.PostConstruct;
 import java.io.IOException;
 import java.security.GeneralSecurityException;
 import lombok.extern.slf4j.Slf4j;
@@ -15,11 +17,22 @@ import org.springframework.stereotype.Component;
 public class GoogleCalendarComponent {
 	private final GoogleAPICredentialProvider credentialProviderComponent;
 
-	private String holidayString;
+	private final StartupTasks startupTasks;
 
-	public GoogleCalendarComponent(GoogleAPICredentialProvider credentialComponent) {
+	private volatile String holidayString = "";
+
+	public GoogleCalendarComponent(GoogleAPICredentialProvider credentialComponent, StartupTasks startupTasks) {
 		credentialProviderComponent = credentialComponent;
-		updateHoliday();
+		this.startupTasks = startupTasks;
+	}
+
+	/**
+	 * Fetching needs google credentials, which may mean waiting on the user to authorize, so isn't
+	 * done while the application starts unless asked to be
+	 */
+	@PostConstruct
+	public void start() {
+		startupTasks.run("google-calendar", this::updateHoliday);
 	}
 
 	@Scheduled(cron = "0 0 0 ? * *") // Run every day at 12am
@@ -0,0 +1,129 @@
+package com.bigboxer23.meural_control.google;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Ordered list of the media item ids within an album, persisted to disk. Jumping to an item is a
+ * list lookup instead of paging through the album from the start, and only the one item's details
+ * need to be fetched from Google.
+ */
+@Slf4j
+public class GooglePhotosAlbumIndex {
+	private final File file;
+
+	private volatile Snapshot snapshot;
+
+	public GooglePhotosAlbumIndex(String name) {
+		this(new File(System.getProperty("user.dir"), name));
+	}
+
+	protected GooglePhotosAlbumIndex(File file) {
+		this.file = file;
+		snapshot = load();
+	}
+
+	/**
+	 * @param albumId album to check
+	 * @return true if the index holds content for this album
+	 */
+	public boolean isIndexed(String albumId) {
+		Snapshot current = snapshot;
+		return albumId != null
+				&& albumId.equals(current.albumId())
+				&& !current.mediaItemIds().isEmpty();
+	}
+
+	public int size() {
+		return snapshot.mediaItemIds().size();
+	}
+
+	public Optional<String> getMediaItemId(int index) {
+		List<String> ids = snapshot.mediaItemIds();
+		if (index < 0 || index >= ids.size()) {
+			return Optional.empty();
+		}
+		return Optional.of(ids.get(index));
+	}
+
+	/**
+	 * Page through the album and replace the index once all pages have been read, so lookups keep
+	 * using the previous index while a refresh is in progress.
+	 *
+	 * @param albumId album to index
+	 * @param fetcher fetches a page of the album's media item ids
+	 */
+	public synchronized void refresh(String albumId, PageFetcher fetcher) {
+		log.info("refreshing album index for " + albumId);
+		long start = System.currentTimeMillis();
+		List<String> ids = new ArrayList<>();
+		String pageToken = null;
+		do {
+			Page page = fetcher.fetch(albumId, pageToken);
+			ids.addAll(page.mediaItemIds());
+			pageToken = page.nextPageToken();
+		} while (pageToken != null && !pageToken.isEmpty());
+		snapshot = new Snapshot(albumId, System.currentTimeMillis(), Collections.unmodifiableList(ids));
+		save(snapshot);
+		log.info("album index for "
+				+ albumId
+				+ " has "
+				+ ids.size()
+				+ " items, took "
+				+ (System.currentTimeMillis() - start)
+				+ "ms");
+	}
+
+	/** File format is the album id, refresh time, then one media item id per line */
+	private Snapshot load() {
+		if (!file.exists()) {
+			return new Snapshot(null, 0, Collections.emptyList());
+		}
+		try {
+			List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+			if (lines.size() < 2) {
+				throw new IOException("truncated index");
+			}
+			return new Snapshot(
+					lines.get(0),
+					Long.parseLong(lines.get(1)),
+					Collections.unmodifiableList(new ArrayList<>(lines.subList(2, lines.size()))));
+		} catch (IOException | NumberFormatException e) {
+			log.warn("can't read album index " + file.getName() + ", will rebuild", e);
+			return new Snapshot(null, 0, Collections.emptyList());
+		}
+	}
+
+	private void save(Snapshot toSave) {
+		List<String> lines = new ArrayList<>(toSave.mediaItemIds().size() + 2);
+		lines.add(toSave.albumId());
+		lines.add(String.valueOf(toSave.refreshed()));
+		lines.addAll(toSave.mediaItemIds());
+		File tmp = new File(file.getAbsolutePath() + ".tmp");
+		try {
+			Files.write(tmp.toPath(), lines, StandardCharsets.UTF_8);
+			Files.move(
+					tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			log.warn("can't save album index " + file.getName(), e);
+		}
+	}
+
+	/** Fetch one page of media item ids from an album */
+	@FunctionalInterface
+	public interface PageFetcher {
+		Page fetch(String albumId, String pageToken);
+	}
+
+	public record Page(List<String> mediaItemIds, String nextPageToken) {}
+
+	private record Snapshot(String albumId, long refreshed, List<String> mediaItemIds) {}
+}
@@ -0,0 +1,93 @@
+package com.bigboxer23.meural_control.google;
+
+import com.google.api.gax.core.CredentialsProvider;
+import com.google.api.gax.rpc.ApiException;
+import com.google.api.gax.rpc.StatusCode;
+import com.google.photos.library.v1.PhotosLibraryClient;
+import com.google.photos.library.v1.PhotosLibrarySettings;
+import jakarta.annotation.PreDestroy;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+/**
+ * Holds a single PhotosLibraryClient shared by all Google Photos operations, so the gRPC channel
+ * stays warm instead of being set up for every call. The client is rebuilt when the credentials
+ * change or the channel fails.
+ */
+@Slf4j
+@Component
+public class GooglePhotosClientComponent {
+	private final GoogleAPICredentialProvider credentialProviderComponent;
+
+	private PhotosLibraryClient client;
+
+	private CredentialsProvider clientCredentials;
+
+	public GooglePhotosClientComponent(GoogleAPICredentialProvider credentialComponent) {
+		credentialProviderComponent = credentialComponent;
+	}
+
+	/**
+	 * Run a command against the shared client. If the call fails in a way that means the channel or
+	 * credentials are no good, the client is dropped so the next call starts fresh.
+	 */
+	public <T> T execute(ClientCommand<T> command) throws IOException, GeneralSecurityException {
+		PhotosLibraryClient current = getClient();
+		try {
+			return command.execute(current);
+		} catch (ApiException e) {
+			StatusCode.Code code = e.getStatusCode().getCode();
+			if (code == StatusCode.Code.UNAUTHENTICATED) {
+				log.warn("google photos credentials rejected, reloading");
+				credentialProviderComponent.reset();
+				invalidate(current);
+			} else if (code == StatusCode.Code.UNAVAILABLE) {
+				log.warn("google photos channel unavailable, recreating client");
+				invalidate(current);
+			}
+			throw e;
+		}
+	}
+
+	protected synchronized PhotosLibraryClient getClient() throws IOException, GeneralSecurityException {
+		CredentialsProvider credentials = credentialProviderComponent.getCredentialProvider();
+		if (client != null && (credentials != clientCredentials || client.isShutdown())) {
+			log.info("google photos credentials or channel changed, recreating client");
+			closeClient();
+		}
+		if (client == null) {
+			log.info("creating google photos client");
+			client = PhotosLibraryClient.initialize(PhotosLibrarySettings.newBuilder()
+					.setCredentialsProvider(credentials)
+					.build());
+			clientCredentials = credentials;
+		}
+		return client;
+	}
+
+	private synchronized void invalidate(PhotosLibraryClient failed) {
+		if (client == failed) {
+			closeClient();
+		}
+	}
+
+	private void closeClient() {
+		if (client != null) {
+			client.close();
+			client = null;
+			clientCredentials = null;
+		}
+	}
+
+	@PreDestroy
+	public synchronized void close() {
+		closeClient();
+	}
+
+	@FunctionalInterface
+	public interface ClientCommand<T> {
+		T execute(PhotosLibraryClient client) throws IOException;
+	}
+}
@@ -1,15 +1,18 @@
 package com.bigboxer23.meural_control.google;
 
 import com.bigboxer23.meural_control.IMeuralImageSource;
+import com.bigboxer23.meural_control.ImageTransformComponent;
 import com.bigboxer23.meural_control.data.SourceItem;
 import com.bigboxer23.utils.file.FilePersistentIndex;
 import com.google.api.gax.rpc.ApiException;
+import com.google.api.gax.rpc.StatusCode;
 import com.google.photos.library.v1.PhotosLibraryClient;
-import com.google.photos.library.v1.PhotosLibrarySettings;
-import com.google.photos.library.v1.internal.InternalPhotosLibraryClient;
 import com.google.photos.library.v1.proto.BatchCreateMediaItemsResponse;
+import com.google.photos.library.v1.proto.MediaItemResult;
 import com.google.photos.library.v1.proto.NewMediaItem;
 import com.google.photos.library.v1.proto.NewMediaItemResult;
+import com.google.photos.library.v1.proto.SearchMediaItemsRequest;
+import com.google.photos.library.v1.proto.SearchMediaItemsResponse;
 import com.google.photos.library.v1.upload.UploadMediaItemRequest;
 import com.google.photos.library.v1.upload.UploadMediaItemResponse;
 import com.google.photos.library.v1.util.NewMediaItemFactory;
@@ -22,9 +25,12 @@ import java.io.RandomAccessFile;
 import java.net.URL;
 import java.security.GeneralSecurityException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 
 /**
@@ -39,12 +45,21 @@ public class GooglePhotosComponent implements IMeuralImageSource {
 
 	private String albumId;
 
-	private final GoogleAPICredentialProvider credentialProviderComponent;
+	private final GooglePhotosClientComponent clientComponent;
+
+	private final ImageTransformComponent transformComponent;
 
 	private final FilePersistentIndex currentItem = new FilePersistentIndex("gPhotosIndex");
 
-	public GooglePhotosComponent(GoogleAPICredentialProvider credentialComponent) {
-		credentialProviderComponent = credentialComponent;
+	private final GooglePhotosAlbumIndex albumIndex = new GooglePhotosAlbumIndex("gPhotosAlbumIndex");
+
+	/** Album title to id, so uploads don't need to list every album to find where to save */
+	private final Map<String, String> albumIds = new ConcurrentHashMap<>();
+
+	public GooglePhotosComponent(
+			GooglePhotosClientComponent clientComponent, ImageTransformComponent transformComponent) {
+		this.clientComponent = clientComponent;
+		this.transformComponent = transformComponent;
 	}
 
 	@Override
@@ -57,34 +72,106 @@ public class GooglePhotosComponent implements IMeuralImageSource {
 		return jumpToItem(-1);
 	}
 
+	@Override
+	public void stepBack() {
+		currentItem.set(currentItem.get() - 1);
+	}
+
 	/** Iterate through an album's content and */
 	private Optional<SourceItem> jumpToItem(int jump) {
 		currentItem.set(currentItem.get() + jump);
 		try {
-			PhotosLibrarySettings settings = PhotosLibrarySettings.newBuilder()
-					.setCredentialsProvider(credentialProviderComponent.getCredentialProvider())
-					.build();
-			try (PhotosLibraryClient photosLibraryClient = PhotosLibraryClient.initialize(settings)) {
-				InternalPhotosLibraryClient.SearchMediaItemsPagedResponse aResults =
-						photosLibraryClient.searchMediaItems(findAlbumId(photosLibraryClient));
-				Iterator<MediaItem> items = aResults.iterateAll().iterator();
-				for (int ai = 0; items.hasNext(); ai++) {
-					MediaItem item = items.next();
-					if (ai == currentItem.get()) {
-						log.info("returning item " + currentItem.get() + " from album " + albumTitle);
-						return Optional.of(
-								new SourceItem(item.getFilename(), new URL(item.getBaseUrl() + "=w10000-h10000")));
-					}
+			return clientComponent.execute(photosLibraryClient -> {
+				String id = findAlbumId(photosLibraryClient);
+				if (!albumIndex.isIndexed(id)) {
+					refreshIndex(photosLibraryClient, id);
 				}
-				currentItem.reset();
-				return jumpToItem(1);
-			}
-		} catch (IOException | GeneralSecurityException theE) {
+				Optional<MediaItem> item = getIndexedItem(photosLibraryClient);
+				if (item.isEmpty()) {
+					// Item may have been removed from the album since it was indexed
+					refreshIndex(photosLibraryClient, id);
+					item = getIndexedItem(photosLibraryClient);
+				}
+				if (item.isEmpty()) {
+					return Optional.empty();
+				}
+				log.info("returning item " + currentItem.get() + " from album " + albumTitle);
+				SourceItem sourceItem = new SourceItem(
+						item.get().getFilename(), new URL(item.get().getBaseUrl() + getSizeParameter(item.get())));
+				// Base urls expire, the media item id is what identifies the content
+				sourceItem.setSourceId("gphotos:" + item.get().getId());
+				return Optional.of(sourceItem);
+			});
+		} catch (IOException | GeneralSecurityException | ApiException theE) {
 			log.warn("nextItem:", theE);
 		}
 		return Optional.empty();
 	}
 
+	/**
+	 * Ask for the image already shrunk to cover the frame's panel, rather than sending its full
+	 * size to be shrunk here. Full size when a transform command needs it.
+	 */
+	private String getSizeParameter(MediaItem item) {
+		return transformComponent
+				.getDownloadSize(
+						item.getMediaMetadata().getWidth(),
+						item.getMediaMetadata().getHeight())
+				.map(size -> "=w" + size.width + "-h" + size.height)
+				.orElse("=w10000-h10000");
+	}
+
+	/**
+	 * Look up the item at the current index, wrapping back to the start of the album if past the
+	 * end
+	 */
+	private Optional<MediaItem> getIndexedItem(PhotosLibraryClient client) {
+		if (albumIndex.size() == 0) {
+			log.warn("no items in album " + albumTitle);
+			return Optional.empty();
+		}
+		if (currentItem.get() < 0 || currentItem.get() >= albumIndex.size()) {
+			currentItem.set(0);
+		}
+		return albumIndex
+				.getMediaItemId(currentItem.get())
+				.flatMap(mediaItemId ->
+						client
+								.batchGetMediaItems(Collections.singletonList(mediaItemId))
+								.getMediaItemResultsList()
+								.stream()
+								.filter(MediaItemResult::hasMediaItem)
+								.map(MediaItemResult::getMediaItem)
+								.findFirst());
+	}
+
+	/** Periodically pick up items added to or removed from the album */
+	@Scheduled(cron = "${gPhotos-index-refresh:0 0 0/6 * * ?}")
+	public void refreshAlbumIndex() {
+		try {
+			clientComponent.execute(photosLibraryClient -> {
+				refreshIndex(photosLibraryClient, findAlbumId(photosLibraryClient));
+				return null;
+			});
+		} catch (IOException | GeneralSecurityException | ApiException theE) {
+			log.warn("refreshAlbumIndex:", theE);
+		}
+	}
+
+	private void refreshIndex(PhotosLibraryClient client, String id) {
+		albumIndex.refresh(id, (albumId, pageToken) -> {
+			SearchMediaItemsRequest.Builder request =
+					SearchMediaItemsRequest.newBuilder().setAlbumId(albumId).setPageSize(100);
+			if (pageToken != null) {
+				request.setPageToken(pageToken);
+			}
+			SearchMediaItemsResponse response =
+					client.searchMediaItems(request.build()).getPage().getResponse();
+			return new GooglePhotosAlbumIndex.Page(
+					response.getMediaItemsList().stream().map(MediaItem::getId).toList(), response.getNextPageToken());
+		});
+	}
+
 	private String findAlbumId(PhotosLibraryClient client) {
 		if (albumId == null) {
 			albumId = findOrCreateAlbumId(albumTitle, false, client);
@@ -102,14 +189,14 @@ public class GooglePhotosComponent implements IMeuralImageSource {
 
 		log.info("removing item from google photos album: \"" + item.getFilename() + "\"");
 		try {
-			PhotosLibrarySettings settings = PhotosLibrarySettings.newBuilder()
-					.setCredentialsProvider(credentialProviderComponent.getCredentialProvider())
-					.build();
-			try (PhotosLibraryClient photosLibraryClient = PhotosLibraryClient.initialize(settings)) {
-				photosLibraryClient.batchRemoveMediaItemsFromAlbum(
-						findOrCreateAlbumId(albumName, true, photosLibraryClient),
-						Collections.singletonList(item.getId()));
-			}
+			clientComponent.execute(photosLibraryClient -> {
+				withAlbumId(
+						albumName,
+						photosLibraryClient,
+						id -> photosLibraryClient.batchRemoveMediaItemsFromAlbum(
+								id, Collections.singletonList(item.getId())));
+				return null;
+			});
 		} catch (IOException | GeneralSecurityException | ApiException theE) {
 			log.warn("removeItemFromAlbum:", theE);
 		}
@@ -118,56 +205,87 @@ public class GooglePhotosComponent implements IMeuralImageSource {
 	public NewMediaItemResult uploadItemToAlbum(SourceItem item) {
 		log.info("uploading item to google photos album: \"" + item.getName() + "\"");
 		try {
-			PhotosLibrarySettings settings = PhotosLibrarySettings.newBuilder()
-					.setCredentialsProvider(credentialProviderComponent.getCredentialProvider())
-					.build();
-			try (PhotosLibraryClient photosLibraryClient = PhotosLibraryClient.initialize(settings);
-					RandomAccessFile file = new RandomAccessFile(item.getTempFile(), "r")) {
-				UploadMediaItemRequest request = UploadMediaItemRequest.newBuilder()
-						.setMimeType("image/png")
-						.setDataFile(file)
-						.build();
-				UploadMediaItemResponse response = photosLibraryClient.uploadMediaItem(request);
-				if (response.getError().isPresent()) {
-					UploadMediaItemResponse.Error error = response.getError().get();
-					log.warn("uploadUrlToAlbum error", error.getCause());
-					return null;
-				}
-				if (response.getUploadToken().isEmpty()) {
-					log.warn("uploadUrlToAlbum no upload token exists");
-					return null;
-				}
-				String uploadToken = response.getUploadToken().get();
-				NewMediaItem newMediaItem = NewMediaItemFactory.createNewMediaItem(
-						uploadToken, StringUtils.truncate(item.getName(), 254), item.getName());
-				BatchCreateMediaItemsResponse createItemsResponse = photosLibraryClient.batchCreateMediaItems(
-						findOrCreateAlbumId(item.getAlbumToSaveTo(), true, photosLibraryClient),
-						Collections.singletonList(newMediaItem));
-				for (NewMediaItemResult itemsResponse : createItemsResponse.getNewMediaItemResultsList()) {
-					Status status = itemsResponse.getStatus();
-					if (status.getCode() != Code.OK_VALUE) {
-						log.warn("error creating media item: " + status.getCode() + " " + status.getMessage());
+			return clientComponent.execute(photosLibraryClient -> {
+				try (RandomAccessFile file = new RandomAccessFile(item.getTempFile(), "r")) {
+					UploadMediaItemRequest request = UploadMediaItemRequest.newBuilder()
+							.setMimeType("image/png")
+							.setDataFile(file)
+							.build();
+					UploadMediaItemResponse response = photosLibraryClient.uploadMediaItem(request);
+					if (response.getError().isPresent()) {
+						UploadMediaItemResponse.Error error =
+								response.getError().get();
+						log.warn("uploadUrlToAlbum error", error.getCause());
+						return null;
+					}
+					if (response.getUploadToken().isEmpty()) {
+						log.warn("uploadUrlToAlbum no upload token exists");
+						return null;
+					}
+					String uploadToken = response.getUploadToken().get();
+					NewMediaItem newMediaItem = NewMediaItemFactory.createNewMediaItem(
+							uploadToken, StringUtils.truncate(item.getName(), 254), item.getName());
+					BatchCreateMediaItemsResponse createItemsResponse = withAlbumId(
+							item.getAlbumToSaveTo(),
+							photosLibraryClient,
+							id -> photosLibraryClient.batchCreateMediaItems(
+									id, Collections.singletonList(newMediaItem)));
+					for (NewMediaItemResult itemsResponse : createItemsResponse.getNewMediaItemResultsList()) {
+						Status status = itemsResponse.getStatus();
+						if (status.getCode() != Code.OK_VALUE) {
+							log.warn("error creating media item: " + status.getCode() + " " + status.getMessage());
+						}
+						return itemsResponse;
 					}
-					return itemsResponse;
+					return null;
 				}
-			}
+			});
 		} catch (IOException | GeneralSecurityException | ApiException theE) {
 			log.warn("uploadUrlToAlbum:", theE);
 		}
 		return null;
 	}
 
+	/**
+	 * Run an album operation with the (cached) id for an app created album. If the album id is
+	 * rejected, the cached id is dropped so the next call looks it up again.
+	 */
+	private <T> T withAlbumId(String albumTitle, PhotosLibraryClient client, Function<String, T> command) {
+		String id = findOrCreateAlbumId(albumTitle, true, client);
+		try {
+			return command.apply(id);
+		} catch (ApiException e) {
+			StatusCode.Code code = e.getStatusCode().getCode();
+			if (code == StatusCode.Code.NOT_FOUND || code == StatusCode.Code.INVALID_ARGUMENT) {
+				albumIds.values().remove(id);
+			}
+			throw e;
+		}
+	}
+
 	private String findOrCreateAlbumId(
 			String albumTitle, boolean excludeNonAppCreatedAlbum, PhotosLibraryClient client) {
+		String key = getAlbumKey(albumTitle, excludeNonAppCreatedAlbum);
+		String id = albumIds.get(key);
+		if (id != null) {
+			return id;
+		}
+		// Cache every album we page past, so looking up other titles later is free
 		for (Album album : client.listAlbums(excludeNonAppCreatedAlbum).iterateAll()) {
+			albumIds.putIfAbsent(getAlbumKey(album.getTitle(), excludeNonAppCreatedAlbum), album.getId());
 			if (albumTitle.equalsIgnoreCase(album.getTitle())) {
 				return album.getId();
 			}
 		}
 		Album createdAlbum = client.createAlbum(albumTitle);
+		albumIds.put(key, createdAlbum.getId());
 		return createdAlbum.getId();
 	}
 
+	private String getAlbumKey(String albumTitle, boolean excludeNonAppCreatedAlbum) {
+		return excludeNonAppCreatedAlbum + ":" + albumTitle.toLowerCase();
+	}
+
 	protected int getImageIndex() {
 		return currentItem.get();
 	}
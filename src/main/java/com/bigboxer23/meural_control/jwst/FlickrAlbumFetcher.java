@@ -0,0 +1,135 @@
+package com.bigboxer23.meural_control.jwst;
+
+import com.bigboxer23.meural_control.HttpClientComponent;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import lombok.extern.slf4j.Slf4j;
+import okhttp3.HttpUrl;
+import okhttp3.Response;
+
+/**
+ * Scrapes the JWST Flickr album and its photos' size pages. Pages are handed to each extractor in
+ * turn until one finds what's wanted, so a lighter extractor can be backed by a more forgiving one.
+ */
+@Slf4j
+public class FlickrAlbumFetcher implements JWSTAlbumIndex.AlbumFetcher {
+	private static final String kFlickrAlbumUrl =
+			"https://www.flickr.com/photos/nasawebbtelescope/albums/72177720323168468/";
+	private static final String kFlickrSizesUrl = "https://www.flickr.com/photos/nasawebbtelescope/%s/sizes/o/";
+
+	private static final Pattern kPhotoLink = Pattern.compile(".*/photos/nasawebbtelescope/(\\d+)/?.*");
+
+	private final HttpClientComponent.Client http;
+
+	private final List<HtmlLinkExtractor> extractors;
+
+	public FlickrAlbumFetcher(HttpClientComponent.Client http, List<HtmlLinkExtractor> extractors) {
+		this.http = http;
+		this.extractors = extractors;
+	}
+
+	@Override
+	public Optional<JWSTAlbumIndex.Album> fetchAlbum(String etag, String lastModified) throws IOException {
+		for (int ai = 0; ai < extractors.size(); ai++) {
+			// Only the first fetch is conditional, a fallback needs the page again
+			boolean conditional = ai == 0;
+			try (Response response = http.get(kFlickrAlbumUrl, builder -> {
+				if (conditional && etag != null) {
+					builder.header("If-None-Match", etag);
+				}
+				if (conditional && lastModified != null) {
+					builder.header("If-Modified-Since", lastModified);
+				}
+				return builder;
+			})) {
+				if (response.code() == 304) {
+					return Optional.empty();
+				}
+				if (!response.isSuccessful()) {
+					throw new IOException("can't fetch jwst album, " + response.code());
+				}
+				List<JWSTAlbumIndex.Photo> photos = toPhotos(extractors
+						.get(ai)
+						.extractLinks(response.body().charStream(), kFlickrAlbumUrl, href -> kPhotoLink
+								.matcher(href)
+								.matches()));
+				if (!photos.isEmpty()) {
+					return Optional.of(new JWSTAlbumIndex.Album(
+							photos, response.header("ETag"), response.header("Last-Modified")));
+				}
+				log.warn(extractors.get(ai).getClass().getSimpleName() + " found no photos in jwst album");
+			}
+		}
+		throw new IOException("can't find images in album");
+	}
+
+	/** Photos can be linked more than once, keep the first position and any title given */
+	protected static List<JWSTAlbumIndex.Photo> toPhotos(List<HtmlLinkExtractor.Link> links) {
+		Map<String, String> titles = new LinkedHashMap<>();
+		for (HtmlLinkExtractor.Link link : links) {
+			Matcher matcher = kPhotoLink.matcher(link.href());
+			if (matcher.matches()) {
+				titles.merge(matcher.group(1), link.title().trim(), (first, next) -> first.isEmpty() ? next : first);
+			}
+		}
+		return titles.entrySet().stream()
+				.map(entry -> new JWSTAlbumIndex.Photo(
+						entry.getKey(), entry.getValue().isEmpty() ? "JWST Image " + entry.getKey() : entry.getValue()))
+				.toList();
+	}
+
+	@Override
+	public Optional<String> fetchDownloadUrl(String photoId) {
+		String sizesUrl = String.format(kFlickrSizesUrl, photoId);
+		Predicate<String> linksPhoto = href -> href.contains(photoId);
+		try {
+			for (HtmlLinkExtractor extractor : extractors) {
+				try (Response response = http.get(sizesUrl, null)) {
+					if (!response.isSuccessful()) {
+						log.warn("can't fetch sizes page for photo ID: " + photoId + ", " + response.code());
+						return Optional.empty();
+					}
+					Optional<String> url = findDownloadUrl(
+							extractor.extractLinks(response.body().charStream(), sizesUrl, linksPhoto), photoId);
+					if (url.isPresent()) {
+						return url.map(href -> toAbsolute(sizesUrl, href));
+					}
+				}
+			}
+		} catch (IOException e) {
+			log.warn("Error fetching download URL for photo ID: " + photoId, e);
+		}
+		return Optional.empty();
+	}
+
+	/** Prefer the extra large download, otherwise anything offering a download or the original */
+	protected static Optional<String> findDownloadUrl(List<HtmlLinkExtractor.Link> links, String photoId) {
+		Optional<String> extraLarge = links.stream()
+				.map(HtmlLinkExtractor.Link::href)
+				.filter(href -> href.contains("photo_download.gne")
+						&& href.contains("size=xl")
+						&& href.contains("id=" + photoId))
+				.findFirst();
+		if (extraLarge.isPresent()) {
+			return extraLarge;
+		}
+		return links.stream()
+				.filter(link -> {
+					String text = link.text().toLowerCase();
+					return text.contains("download") || text.contains("original");
+				})
+				.map(HtmlLinkExtractor.Link::href)
+				.findFirst();
+	}
+
+	private String toAbsolute(String pageUrl, String href) {
+		HttpUrl url = HttpUrl.get(pageUrl).resolve(href);
+		return url != null ? url.toString() : href;
+	}
+}
@@ -0,0 +1,24 @@
+package com.bigboxer23.meural_control.jwst;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.List;
+import java.util.function.Predicate;
+
+/** Pulls the links out of a page */
+public interface HtmlLinkExtractor {
+	/**
+	 * @param html the page, read to its end but not closed
+	 * @param pageUrl where the page came from
+	 * @param hrefFilter which links to keep, by their href with entities decoded
+	 * @return the kept links, in the order they're in the page
+	 */
+	List<Link> extractLinks(Reader html, String pageUrl, Predicate<String> hrefFilter) throws IOException;
+
+	/**
+	 * @param href as written in the page, not resolved against its url
+	 * @param title empty if the link has none
+	 * @param text the link's text, including that of any elements inside it
+	 */
+	record Link(String href, String title, String text) {}
+}
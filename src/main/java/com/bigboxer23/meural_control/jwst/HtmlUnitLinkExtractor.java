@@ -0,0 +1,36 @@
+package com.bigboxer23.meural_control.jwst;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.net.URL;
+import java.util.List;
+import java.util.function.Predicate;
+import org.apache.commons.io.IOUtils;
+import org.htmlunit.Page;
+import org.htmlunit.StringWebResponse;
+import org.htmlunit.WebClient;
+import org.htmlunit.html.HtmlPage;
+
+/**
+ * Finds links by building the page's full document with HtmlUnit. Far heavier than {@link
+ * StreamingLinkExtractor}, but copes with any markup a browser would, so is kept as a fallback.
+ */
+public class HtmlUnitLinkExtractor implements HtmlLinkExtractor {
+	@Override
+	public List<Link> extractLinks(Reader html, String pageUrl, Predicate<String> hrefFilter) throws IOException {
+		try (WebClient client = new WebClient()) {
+			client.getOptions().setCssEnabled(false);
+			client.getOptions().setJavaScriptEnabled(false);
+			Page page = client.loadWebResponseInto(
+					new StringWebResponse(IOUtils.toString(html), new URL(pageUrl)), client.getCurrentWindow());
+			if (!(page instanceof HtmlPage htmlPage)) {
+				throw new IOException(pageUrl + " isn't html");
+			}
+			return htmlPage.getAnchors().stream()
+					.filter(anchor -> hrefFilter.test(anchor.getHrefAttribute()))
+					.map(anchor ->
+							new Link(anchor.getHrefAttribute(), anchor.getAttribute("title"), anchor.getTextContent()))
+					.toList();
+		}
+	}
+}
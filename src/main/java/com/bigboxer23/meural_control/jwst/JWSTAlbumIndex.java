@@ -0,0 +1,241 @@
+package com.bigboxer23.meural_control.jwst;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Ordered list of the photos in the album with their titles and download urls, persisted to disk.
+ * Refreshing asks for the album page conditionally so an unchanged album costs nothing, and only
+ * photos new to the index need their download url looked up. Lookups can run concurrently, bounded
+ * by the executor they're given.
+ */
+@Slf4j
+public class JWSTAlbumIndex {
+	private final File file;
+
+	private volatile Snapshot snapshot;
+
+	public JWSTAlbumIndex(String name) {
+		this(new File(System.getProperty("user.dir"), name));
+	}
+
+	protected JWSTAlbumIndex(File file) {
+		this.file = file;
+		snapshot = load();
+	}
+
+	public int size() {
+		return snapshot.photos().size();
+	}
+
+	public Optional<Photo> getPhoto(int index) {
+		List<Photo> photos = snapshot.photos();
+		if (index < 0 || index >= photos.size()) {
+			return Optional.empty();
+		}
+		return Optional.of(photos.get(index));
+	}
+
+	/**
+	 * Fetch the album and replace the index once every photo's download url is known, so lookups
+	 * keep using the previous index while a refresh is in progress. Photos whose title is skipped
+	 * aren't indexed.
+	 *
+	 * @return true if the album had changed
+	 */
+	public boolean refresh(AlbumFetcher fetcher, Predicate<String> skipTitle) throws IOException {
+		return refresh(fetcher, skipTitle, Runnable::run);
+	}
+
+	/**
+	 * @param lookups runs download url lookups, as many at once as it has threads
+	 * @see #refresh(AlbumFetcher, Predicate)
+	 */
+	public synchronized boolean refresh(AlbumFetcher fetcher, Predicate<String> skipTitle, Executor lookups)
+			throws IOException {
+		long start = System.currentTimeMillis();
+		Snapshot current = snapshot;
+		Optional<Album> album = fetcher.fetchAlbum(current.etag(), current.lastModified());
+		if (album.isEmpty()) {
+			log.info("jwst album unchanged since last refresh");
+			return false;
+		}
+		Map<String, String> knownUrls =
+				current.photos().stream().collect(Collectors.toMap(Photo::id, Photo::downloadUrl, (a, b) -> a));
+		List<Photo> candidates = new ArrayList<>();
+		List<CompletableFuture<String>> downloadUrls = new ArrayList<>();
+		int skipped = 0;
+		int looked = 0;
+		for (Photo photo : album.get().photos()) {
+			if (skipTitle.test(photo.title())) {
+				skipped++;
+				continue;
+			}
+			String knownUrl = knownUrls.get(photo.id());
+			if (knownUrl == null) {
+				looked++;
+			}
+			candidates.add(photo);
+			downloadUrls.add(
+					knownUrl != null
+							? CompletableFuture.completedFuture(knownUrl)
+							: CompletableFuture.supplyAsync(() -> lookupDownloadUrl(fetcher, photo.id()), lookups));
+		}
+		List<Photo> photos = new ArrayList<>();
+		boolean complete = true;
+		for (int ai = 0; ai < candidates.size(); ai++) {
+			Photo photo = candidates.get(ai);
+			String downloadUrl = join(downloadUrls.get(ai));
+			if (downloadUrl == null) {
+				log.warn("can't find download link for photo ID: " + photo.id());
+				complete = false;
+				continue;
+			}
+			photos.add(new Photo(photo.id(), clean(photo.title()), downloadUrl));
+		}
+		// Without the validators the album is fetched in full next time, retrying what's missing
+		snapshot = new Snapshot(
+				complete ? album.get().etag() : null,
+				complete ? album.get().lastModified() : null,
+				System.currentTimeMillis(),
+				Collections.unmodifiableList(photos));
+		save(snapshot);
+		log.info("jwst album index has "
+				+ photos.size()
+				+ " photos, skipped "
+				+ skipped
+				+ ", looked up "
+				+ looked
+				+ ", took "
+				+ (System.currentTimeMillis() - start)
+				+ "ms");
+		return true;
+	}
+
+	/**
+	 * @return the photo's download url, null if it has none
+	 */
+	private static String lookupDownloadUrl(AlbumFetcher fetcher, String photoId) {
+		try {
+			return fetcher.fetchDownloadUrl(photoId).orElse(null);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private static String join(CompletableFuture<String> downloadUrl) throws IOException {
+		try {
+			return downloadUrl.join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof UncheckedIOException io) {
+				throw io.getCause();
+			}
+			throw e;
+		}
+	}
+
+	/** Titles are stored on one line between tabs */
+	private static String clean(String title) {
+		return title.replaceAll("\\s+", " ").trim();
+	}
+
+	/**
+	 * File format is the album's etag and last modified time (blank if unknown), refresh time, then
+	 * one photo per line of id, download url and title separated by tabs
+	 */
+	private Snapshot load() {
+		if (!file.exists()) {
+			return new Snapshot(null, null, 0, Collections.emptyList());
+		}
+		try {
+			List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+			if (lines.size() < 3) {
+				throw new IOException("truncated index");
+			}
+			List<Photo> photos = new ArrayList<>(lines.size() - 3);
+			for (String line : lines.subList(3, lines.size())) {
+				String[] parts = line.split("\t", 3);
+				if (parts.length != 3) {
+					throw new IOException("bad index line " + line);
+				}
+				photos.add(new Photo(parts[0], parts[2], parts[1]));
+			}
+			return new Snapshot(
+					emptyToNull(lines.get(0)),
+					emptyToNull(lines.get(1)),
+					Long.parseLong(lines.get(2)),
+					Collections.unmodifiableList(photos));
+		} catch (IOException | NumberFormatException e) {
+			log.warn("can't read jwst album index " + file.getName() + ", will rebuild", e);
+			return new Snapshot(null, null, 0, Collections.emptyList());
+		}
+	}
+
+	private static String emptyToNull(String value) {
+		return value.isEmpty() ? null : value;
+	}
+
+	private void save(Snapshot toSave) {
+		List<String> lines = new ArrayList<>(toSave.photos().size() + 3);
+		lines.add(toSave.etag() == null ? "" : toSave.etag());
+		lines.add(toSave.lastModified() == null ? "" : toSave.lastModified());
+		lines.add(String.valueOf(toSave.refreshed()));
+		toSave.photos().stream()
+				.map(photo -> photo.id() + "\t" + photo.downloadUrl() + "\t" + photo.title())
+				.forEach(lines::add);
+		File tmp = new File(file.getAbsolutePath() + ".tmp");
+		try {
+			Files.write(tmp.toPath(), lines, StandardCharsets.UTF_8);
+			Files.move(
+					tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			log.warn("can't save jwst album index " + file.getName(), e);
+		}
+	}
+
+	/** Fetches the album and looks up where its photos are downloaded from */
+	public interface AlbumFetcher {
+		/**
+		 * @param etag from the last fetch, null if unknown
+		 * @param lastModified from the last fetch, null if unknown
+		 * @return the album's photos in order, with only ids and titles set. Empty if it hasn't
+		 *     changed since the fetch the validators came from
+		 */
+		Optional<Album> fetchAlbum(String etag, String lastModified) throws IOException;
+
+		Optional<String> fetchDownloadUrl(String photoId) throws IOException;
+	}
+
+	/**
+	 * @param etag validator for asking whether the album has changed, null if the server gave none
+	 * @param lastModified validator for asking whether the album has changed, null if the server
+	 *     gave none
+	 */
+	public record Album(List<Photo> photos, String etag, String lastModified) {}
+
+	/**
+	 * @param downloadUrl null until it's been looked up
+	 */
+	public record Photo(String id, String title, String downloadUrl) {
+		public Photo(String id, String title) {
+			this(id, title, null);
+		}
+	}
+
+	private record Snapshot(String etag, String lastModified, long refreshed, List<Photo> photos) {}
+}
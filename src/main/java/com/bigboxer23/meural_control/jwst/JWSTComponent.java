@@ -1,37 +1,34 @@
 package com.bigboxer23.meural_control.jwst;
 
+import com.bigboxer23.meural_control.HttpClientComponent;
 import com.bigboxer23.meural_control.IMeuralImageSource;
 import com.bigboxer23.meural_control.data.SourceItem;
 import com.bigboxer23.utils.file.FilePersistentIndex;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import java.io.IOException;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import lombok.extern.slf4j.Slf4j;
-import org.htmlunit.WebClient;
-import org.htmlunit.html.HtmlAnchor;
-import org.htmlunit.html.HtmlPage;
 import org.springframework.core.env.Environment;
 import org.springframework.stereotype.Component;
 
 /**
  * Scrape content from James Webb Space Telescope Flickr album and display new content as it's
- * published.
+ * published. The album is indexed in the background, items are served from the index.
  */
 @Slf4j
 @Component
 public class JWSTComponent implements IMeuralImageSource {
 	private final FilePersistentIndex lastFetchedImage = new FilePersistentIndex("jwsti");
 
-	private SourceItem newestContent;
-
-	private boolean increasing = true;
-
-	private static final String kFlickrAlbumUrl =
-			"https://www.flickr.com/photos/nasawebbtelescope/albums/72177720323168468/";
-	private static final String kFlickrSizesUrl = "https://www.flickr.com/photos/nasawebbtelescope/%s/sizes/o/";
-	private static final String kFlickrBaseUrl = "https://www.flickr.com";
+	private final JWSTAlbumIndex albumIndex = new JWSTAlbumIndex("jwstAlbumIndex");
 
 	private static final List<String> skipKeywords = new ArrayList<>() {
 		{
@@ -46,143 +43,113 @@ public class JWSTComponent implements IMeuralImageSource {
 
 	private final String albumToSaveTo;
 
-	public JWSTComponent(Environment env) {
+	private final long refreshMinutes;
+
+	private final ScheduledExecutorService refresher;
+
+	private final FlickrAlbumFetcher fetcher;
+
+	/** Bounds how many photos' download links are looked up at once */
+	private final ExecutorService lookups;
+
+	public JWSTComponent(Environment env, HttpClientComponent http) {
 		// need to read here since we need this value before the constructor completes
 		albumToSaveTo = env.getProperty("jwst-save-album");
+		refreshMinutes = env.getProperty("jwst-index-refresh-minutes", Long.class, 360L);
+		// htmlunit builds each page's full document, streaming falls back to it when it finds
+		// nothing
+		List<HtmlLinkExtractor> extractors = "htmlunit".equalsIgnoreCase(env.getProperty("jwst-html-parser"))
+				? List.of(new HtmlUnitLinkExtractor())
+				: List.of(new StreamingLinkExtractor(), new HtmlUnitLinkExtractor());
+		fetcher = new FlickrAlbumFetcher(http.getDownload(), extractors);
 		if (lastFetchedImage.get() == -1) {
 			lastFetchedImage.set(0);
 		}
-		fetchContent();
+		refresher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "jwst-index");
+			thread.setDaemon(true);
+			return thread;
+		});
+		lookups = Executors.newFixedThreadPool(
+				Math.max(1, env.getProperty("jwst-lookup-threads", Integer.class, 4)), runnable -> {
+					Thread thread = new Thread(runnable, "jwst-lookup");
+					thread.setDaemon(true);
+					return thread;
+				});
 	}
 
-	private void fetchContent() {
-		try (WebClient client = new WebClient()) {
-			client.getOptions().setCssEnabled(false);
-			client.getOptions().setJavaScriptEnabled(false);
-
-			HtmlPage page = client.getPage(kFlickrAlbumUrl);
-			List<HtmlAnchor> photoLinks = extractPhotoLinksFromFlickrAlbum(page);
-
-			if (photoLinks.isEmpty()) {
-				log.warn("can't find images in album");
-				return;
-			}
-
-			if (lastFetchedImage.get() >= photoLinks.size()) {
-				lastFetchedImage.set(0);
-			}
-			if (lastFetchedImage.get() < 0) {
-				lastFetchedImage.set(photoLinks.size() - 1);
-			}
-
-			HtmlAnchor photoLink = photoLinks.get(lastFetchedImage.get());
-			String photoId = extractPhotoIdFromLink(photoLink.getHrefAttribute());
-			String photoTitle = photoLink.getAttribute("title");
-
-			if (photoTitle == null || photoTitle.trim().isEmpty()) {
-				photoTitle = "JWST Image " + photoId;
-			}
-
-			log.info("Fetched JWST content: \"" + photoTitle + "\" index:" + getFetchedImageIndex());
-
-			if (shouldSkipLink(photoTitle)) {
-				log.info("Not showing " + photoTitle + ", matches skip keyword");
-				getItem(increasing ? 1 : -1);
-				return;
-			}
-
-			Optional<URL> downloadUrl = getFlickrDownloadUrl(client, photoId);
-			if (downloadUrl.isEmpty()) {
-				log.warn("can't find download link for photo ID: " + photoId);
-				return;
-			}
-
-			newestContent = new SourceItem(photoTitle + ".jpg", downloadUrl.get(), albumToSaveTo);
-
-		} catch (IOException e) {
-			log.warn("JWSTComponent", e);
-		}
+	/** Refresh the album index now and then periodically, without holding up startup */
+	@PostConstruct
+	public void startRefreshing() {
+		refresher.scheduleWithFixedDelay(this::refreshAlbumIndex, 0, Math.max(1, refreshMinutes), TimeUnit.MINUTES);
 	}
 
-	protected boolean shouldSkipLink(String link) {
-		return skipKeywords.stream().anyMatch(word -> link.toLowerCase().contains(word));
+	@PreDestroy
+	public void shutdown() {
+		refresher.shutdownNow();
+		lookups.shutdownNow();
 	}
 
-	private List<HtmlAnchor> extractPhotoLinksFromFlickrAlbum(HtmlPage page) {
-		List<HtmlAnchor> photoLinks = page.getByXPath("//a[contains(@href, '/photos/nasawebbtelescope/')]");
-
-		return photoLinks.stream()
-				.filter(anchor -> anchor.getHrefAttribute().matches(".*/photos/nasawebbtelescope/\\d+/?.*"))
-				.toList();
-	}
-
-	private String extractPhotoIdFromLink(String href) {
-
-		String[] parts = href.split("/");
-		for (String part : parts) {
-			if (part.matches("\\d+")) {
-				return part;
-			}
-		}
-		throw new IllegalArgumentException("Could not extract photo ID from URL: " + href);
-	}
-
-	private Optional<URL> getFlickrDownloadUrl(WebClient client, String photoId) {
+	/** Pick up photos added to or removed from the album */
+	public void refreshAlbumIndex() {
 		try {
-			String sizesUrl = String.format(kFlickrSizesUrl, photoId);
-			HtmlPage sizesPage = client.getPage(sizesUrl);
-
-			List<HtmlAnchor> downloadLinks = sizesPage.getByXPath("//a[contains(@href, 'photo_download.gne')]");
-
-			for (HtmlAnchor link : downloadLinks) {
-				String href = link.getHrefAttribute();
-				if (href.contains("size=xl") && href.contains("id=" + photoId)) {
-					if (href.startsWith("/")) {
-						href = kFlickrBaseUrl + href;
-					} else if (!href.startsWith("http")) {
-						href = kFlickrBaseUrl + "/" + href;
-					}
-					return Optional.of(new URL(href));
-				}
-			}
-
-			List<HtmlAnchor> allLinks = sizesPage.getByXPath("//a");
-			for (HtmlAnchor link : allLinks) {
-				String linkText = link.getTextContent().toLowerCase();
-				String href = link.getHrefAttribute();
-				if ((linkText.contains("download") || linkText.contains("original")) && href.contains(photoId)) {
-					if (href.startsWith("/")) {
-						href = kFlickrBaseUrl + href;
-					} else if (!href.startsWith("http")) {
-						href = kFlickrBaseUrl + "/" + href;
-					}
-					return Optional.of(new URL(href));
-				}
-			}
-
-		} catch (IOException e) {
-			log.warn("Error fetching download URL for photo ID: " + photoId, e);
+			albumIndex.refresh(fetcher, this::shouldSkipLink, lookups);
+		} catch (IOException | RuntimeException e) {
+			log.warn("refreshAlbumIndex", e);
 		}
+	}
 
-		return Optional.empty();
+	protected boolean shouldSkipLink(String link) {
+		return skipKeywords.stream().anyMatch(word -> link.toLowerCase().contains(word));
 	}
 
 	@Override
 	public Optional<SourceItem> nextItem() {
-		increasing = true;
 		return getItem(1);
 	}
 
 	@Override
 	public Optional<SourceItem> prevItem() {
-		increasing = false;
 		return getItem(-1);
 	}
 
+	@Override
+	public void stepBack() {
+		lastFetchedImage.set(lastFetchedImage.get() - 1);
+	}
+
 	private Optional<SourceItem> getItem(int page) {
-		lastFetchedImage.set(lastFetchedImage.get() + page);
-		fetchContent();
-		return Optional.ofNullable(newestContent);
+		if (albumIndex.size() == 0) {
+			// Nothing indexed yet, wait for the first refresh
+			refreshAlbumIndex();
+		}
+		int size = albumIndex.size();
+		if (size == 0) {
+			log.warn("can't find images in album");
+			return Optional.empty();
+		}
+		int index = lastFetchedImage.get() + page;
+		if (index >= size) {
+			index = 0;
+		}
+		if (index < 0) {
+			index = size - 1;
+		}
+		lastFetchedImage.set(index);
+		Optional<JWSTAlbumIndex.Photo> photo = albumIndex.getPhoto(index);
+		if (photo.isEmpty()) {
+			return Optional.empty();
+		}
+		log.info("Fetched JWST content: \"" + photo.get().title() + "\" index:" + getFetchedImageIndex());
+		try {
+			SourceItem item = new SourceItem(
+					photo.get().title() + ".jpg", new URL(photo.get().downloadUrl()), albumToSaveTo);
+			item.setSourceId("jwst:" + photo.get().id());
+			return Optional.of(item);
+		} catch (IOException e) {
+			log.warn("bad download link for photo ID: " + photo.get().id(), e);
+			return Optional.empty();
+		}
 	}
 
 	protected int getFetchedImageIndex() {
@@ -0,0 +1,330 @@
+package com.bigboxer23.meural_control.jwst;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * Finds links by scanning the page's tags as it's read, without building a document. Only the hrefs
+ * of links, and the title and text of links which are kept, are turned into strings. Script and
+ * style content, comments and doctypes are skipped over like a browser would.
+ */
+public class StreamingLinkExtractor implements HtmlLinkExtractor {
+	private static final int kBufferSize = 8192;
+
+	private static final String kScriptEnd = "</script";
+
+	private static final String kStyleEnd = "</style";
+
+	@Override
+	public List<Link> extractLinks(Reader html, String pageUrl, Predicate<String> hrefFilter) throws IOException {
+		return new Tokenizer(html).extractLinks(hrefFilter);
+	}
+
+	/** One pass over a page, state isn't shared between pages */
+	private static class Tokenizer {
+		private final Reader reader;
+
+		private final char[] buffer = new char[kBufferSize];
+
+		private int position;
+
+		private int limit;
+
+		/** Name of the tag or attribute being read, lower case */
+		private final StringBuilder name = new StringBuilder();
+
+		private final StringBuilder href = new StringBuilder();
+
+		private final StringBuilder title = new StringBuilder();
+
+		private boolean hasHref;
+
+		/** Text of the link being kept, null when not inside one */
+		private StringBuilder text;
+
+		private Tokenizer(Reader reader) {
+			this.reader = reader;
+		}
+
+		private List<Link> extractLinks(Predicate<String> hrefFilter) throws IOException {
+			List<Link> links = new ArrayList<>();
+			String keptHref = null;
+			String keptTitle = null;
+			int c;
+			while ((c = next()) != -1) {
+				if (c != '<') {
+					if (text != null) {
+						text.append((char) c);
+					}
+					continue;
+				}
+				c = next();
+				if (c == '!') {
+					skipDeclaration();
+					continue;
+				}
+				boolean closing = c == '/';
+				if (closing) {
+					c = next();
+				}
+				if (!isLetter(c)) {
+					// A '<' which doesn't start a tag is just text
+					if (text != null) {
+						text.append(closing ? "</" : "<");
+						if (c != -1) {
+							text.append((char) c);
+						}
+					}
+					continue;
+				}
+				c = readName(c);
+				boolean anchor = nameIs("a");
+				if (closing) {
+					skipToTagEnd(c);
+					if (anchor && text != null) {
+						links.add(new Link(keptHref, keptTitle, decode(text)));
+						text = null;
+					}
+					continue;
+				}
+				if (!anchor) {
+					boolean script = nameIs("script");
+					boolean style = nameIs("style");
+					readAttributes(c, false);
+					if (script) {
+						skipRawText(kScriptEnd);
+					} else if (style) {
+						skipRawText(kStyleEnd);
+					}
+					continue;
+				}
+				readAttributes(c, true);
+				if (!hasHref) {
+					continue;
+				}
+				String linkHref = decode(href);
+				if (!hrefFilter.test(linkHref)) {
+					continue;
+				}
+				// Links can't nest, a new one ends any left open
+				if (text != null) {
+					links.add(new Link(keptHref, keptTitle, decode(text)));
+				}
+				keptHref = linkHref;
+				keptTitle = decode(title);
+				text = new StringBuilder();
+			}
+			if (text != null) {
+				links.add(new Link(keptHref, keptTitle, decode(text)));
+			}
+			return links;
+		}
+
+		/**
+		 * @return next character, or -1 at the end of the page
+		 */
+		private int next() throws IOException {
+			if (position == limit) {
+				int read = reader.read(buffer, 0, buffer.length);
+				if (read <= 0) {
+					position = limit = 0;
+					return -1;
+				}
+				position = 0;
+				limit = read;
+			}
+			return buffer[position++];
+		}
+
+		/**
+		 * @return the character after the name
+		 */
+		private int readName(int c) throws IOException {
+			name.setLength(0);
+			while (c != -1 && !isWhitespace(c) && c != '>' && c != '/' && c != '=') {
+				name.append((char) toLower(c));
+				c = next();
+			}
+			return c;
+		}
+
+		private boolean nameIs(String value) {
+			if (name.length() != value.length()) {
+				return false;
+			}
+			for (int ai = 0; ai < value.length(); ai++) {
+				if (name.charAt(ai) != value.charAt(ai)) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Read a tag's attributes up to its end
+		 *
+		 * @param keep keep the href and title attributes
+		 */
+		private void readAttributes(int c, boolean keep) throws IOException {
+			hasHref = false;
+			href.setLength(0);
+			title.setLength(0);
+			while (true) {
+				while (isWhitespace(c) || c == '/') {
+					c = next();
+				}
+				if (c == -1 || c == '>') {
+					return;
+				}
+				c = readName(c);
+				while (isWhitespace(c)) {
+					c = next();
+				}
+				if (c != '=') {
+					continue;
+				}
+				StringBuilder value = null;
+				if (keep && nameIs("href")) {
+					hasHref = true;
+					value = href;
+				} else if (keep && nameIs("title")) {
+					value = title;
+				}
+				c = next();
+				while (isWhitespace(c)) {
+					c = next();
+				}
+				if (c == '"' || c == '\'') {
+					int quote = c;
+					while ((c = next()) != -1 && c != quote) {
+						if (value != null) {
+							value.append((char) c);
+						}
+					}
+					c = next();
+				} else {
+					while (c != -1 && !isWhitespace(c) && c != '>') {
+						if (value != null) {
+							value.append((char) c);
+						}
+						c = next();
+					}
+				}
+			}
+		}
+
+		private void skipToTagEnd(int c) throws IOException {
+			while (c != -1 && c != '>') {
+				c = next();
+			}
+		}
+
+		/** Skip a comment, doctype or other declaration, having read its "<!" */
+		private void skipDeclaration() throws IOException {
+			int c = next();
+			if (c != '-') {
+				skipToTagEnd(c);
+				return;
+			}
+			c = next();
+			if (c != '-') {
+				skipToTagEnd(c);
+				return;
+			}
+			// Comment, ends at the first "-->"
+			int dashes = 0;
+			while ((c = next()) != -1) {
+				if (c == '>' && dashes >= 2) {
+					return;
+				}
+				dashes = c == '-' ? dashes + 1 : 0;
+			}
+		}
+
+		/** Skip script or style content, which can hold anything but its end tag */
+		private void skipRawText(String endTag) throws IOException {
+			int matched = 0;
+			int c;
+			while ((c = next()) != -1) {
+				if (toLower(c) == endTag.charAt(matched)) {
+					if (++matched == endTag.length()) {
+						skipToTagEnd(next());
+						return;
+					}
+				} else {
+					matched = c == '<' ? 1 : 0;
+				}
+			}
+		}
+
+		/** Decode character references, leaving anything unrecognised as it is */
+		private static String decode(StringBuilder value) {
+			int ampersand = value.indexOf("&");
+			if (ampersand == -1) {
+				return value.toString();
+			}
+			StringBuilder decoded = new StringBuilder(value.length());
+			decoded.append(value, 0, ampersand);
+			int ai = ampersand;
+			while (ai < value.length()) {
+				char c = value.charAt(ai);
+				int end = c == '&' ? value.indexOf(";", ai) : -1;
+				// Named references are short, a distant ';' belongs to something else
+				if (end == -1 || end - ai > 10) {
+					decoded.append(c);
+					ai++;
+					continue;
+				}
+				int decodedChar = decodeReference(value, ai + 1, end);
+				if (decodedChar == -1) {
+					decoded.append(c);
+					ai++;
+				} else {
+					decoded.appendCodePoint(decodedChar);
+					ai = end + 1;
+				}
+			}
+			return decoded.toString();
+		}
+
+		/**
+		 * @return the referenced character, or -1 if it isn't a reference known here
+		 */
+		private static int decodeReference(StringBuilder value, int start, int end) {
+			String reference = value.substring(start, end);
+			if (reference.startsWith("#")) {
+				try {
+					return reference.startsWith("#x") || reference.startsWith("#X")
+							? Integer.parseInt(reference.substring(2), 16)
+							: Integer.parseInt(reference.substring(1));
+				} catch (IllegalArgumentException e) {
+					return -1;
+				}
+			}
+			return switch (reference) {
+				case "amp" -> '&';
+				case "lt" -> '<';
+				case "gt" -> '>';
+				case "quot" -> '"';
+				case "apos" -> '\'';
+				case "nbsp" -> ' ';
+				default -> -1;
+			};
+		}
+
+		private static boolean isLetter(int c) {
+			return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+		}
+
+		private static boolean isWhitespace(int c) {
+			return c == ' ' || c == '\n' || c == '\t' || c == '\r' || c == '\f';
+		}
+
+		private static int toLower(int c) {
+			return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+		}
+	}
+}
@@ -0,0 +1,41 @@
+package com.bigboxer23.meural_control.transform;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import lombok.extern.slf4j.Slf4j;
+
+/** Runs the transform command as an external process */
+@Slf4j
+public class CommandImageTransformer implements ImageTransformer {
+	@Override
+	public boolean supports(String command) {
+		return command != null && !command.isBlank();
+	}
+
+	@Override
+	public void transform(File input, File output, String command) throws IOException {
+		command = String.format(command, input.getAbsolutePath(), output.getAbsolutePath());
+		ProcessBuilder builder = new ProcessBuilder(command.split(" "));
+		Process process = builder.start();
+		StringBuilder out = new StringBuilder();
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				out.append(line).append("\n");
+			}
+			log.info("command output: " + out);
+		}
+		try {
+			int exitCode = process.waitFor();
+			if (exitCode != 0) {
+				throw new IOException("error exit status from command: " + exitCode);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			process.destroy();
+			throw new IOException("interrupted waiting for command", e);
+		}
+	}
+}
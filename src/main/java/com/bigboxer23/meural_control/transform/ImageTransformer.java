@@ -0,0 +1,21 @@
+package com.bigboxer23.meural_control.transform;
+
+import java.io.File;
+import java.io.IOException;
+
+/** Applies a transform command (in ImageMagick `convert %s ... %s` form) to an image */
+public interface ImageTransformer {
+	/**
+	 * @param command transform command
+	 * @return true if this transformer is able to apply the command
+	 */
+	boolean supports(String command);
+
+	/**
+	 * @param input image to transform
+	 * @param output where to write the transformed image
+	 * @param command transform command
+	 * @throws IOException if the transform fails, output may not exist or be incomplete
+	 */
+	void transform(File input, File output, String command) throws IOException;
+}
@@ -0,0 +1,341 @@
+package com.bigboxer23.meural_control.transform;
+
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import org.apache.commons.io.FilenameUtils;
+
+/**
+ * Applies the common subset of ImageMagick operations in process with ImageIO, avoiding a process
+ * launch per transform. Supports `-crop WxH+X+Y`, `-resize WxH[!^>]`, `-rotate` by multiples of 90
+ * and `-quality`. A leading crop only decodes the cropped region, and a large downscale decodes a
+ * subsampled image, so huge sources are never fully decoded.
+ */
+public class JavaImageTransformer implements ImageTransformer {
+	private static final Pattern kCropGeometry = Pattern.compile("(\\d+)x(\\d+)([+-]\\d+)([+-]\\d+)");
+
+	private static final Pattern kResizeGeometry = Pattern.compile("(\\d*)x?(\\d*)([!^>]?)");
+
+	private static final int kDefaultQuality = 92;
+
+	@Override
+	public boolean supports(String command) {
+		return parse(command).isPresent();
+	}
+
+	@Override
+	public void transform(File input, File output, String command) throws IOException {
+		List<Operation> operations =
+				parse(command).orElseThrow(() -> new IOException("unsupported transform command: " + command));
+		Decoded decoded = read(input, operations);
+		BufferedImage image = decoded.image();
+		int quality = kDefaultQuality;
+		// A leading crop was applied while decoding
+		int start = !operations.isEmpty() && operations.get(0) instanceof Crop ? 1 : 0;
+		for (int ai = start; ai < operations.size(); ai++) {
+			Operation operation = operations.get(ai);
+			if (operation instanceof Crop crop) {
+				image = crop(image, crop);
+			} else if (operation instanceof Resize resize) {
+				// Size from the decoded image's full resolution dimensions, it may have been
+				// subsampled
+				int[] size = ai == start
+						? resize.size(decoded.width(), decoded.height())
+						: resize.size(image.getWidth(), image.getHeight());
+				image = scale(image, size[0], size[1]);
+			} else if (operation instanceof Rotate rotate) {
+				image = rotate(image, rotate.degrees());
+			} else if (operation instanceof Quality q) {
+				quality = q.quality();
+			}
+		}
+		write(image, output, quality);
+	}
+
+	/**
+	 * Read an image's size from its header, without decoding it
+	 *
+	 * @return empty if it isn't an image ImageIO can read
+	 */
+	public static Optional<Dimension> readSize(File input) throws IOException {
+		try (ImageInputStream stream = ImageIO.createImageInputStream(input)) {
+			if (stream == null) {
+				throw new IOException("can't read " + input);
+			}
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+			if (!readers.hasNext()) {
+				return Optional.empty();
+			}
+			ImageReader reader = readers.next();
+			try {
+				reader.setInput(stream, true, true);
+				return Optional.of(new Dimension(reader.getWidth(0), reader.getHeight(0)));
+			} finally {
+				reader.dispose();
+			}
+		}
+	}
+
+	/**
+	 * Decode the input, only reading what's needed for the first operations: the region of a
+	 * leading crop, and every nth pixel if it's then being shrunk by more than n * 2 times
+	 */
+	private Decoded read(File input, List<Operation> operations) throws IOException {
+		try (ImageInputStream stream = ImageIO.createImageInputStream(input)) {
+			if (stream == null) {
+				throw new IOException("can't read " + input);
+			}
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+			if (!readers.hasNext()) {
+				throw new IOException("no image reader for " + input.getName());
+			}
+			ImageReader reader = readers.next();
+			try {
+				reader.setInput(stream, true, true);
+				ImageReadParam param = reader.getDefaultReadParam();
+				Rectangle region = new Rectangle(reader.getWidth(0), reader.getHeight(0));
+				int next = 0;
+				if (!operations.isEmpty() && operations.get(0) instanceof Crop crop) {
+					region = crop.bounds(region.width, region.height);
+					param.setSourceRegion(region);
+					next = 1;
+				}
+				if (operations.size() > next && operations.get(next) instanceof Resize resize) {
+					int[] size = resize.size(region.width, region.height);
+					int factor = Math.min(region.width / size[0], region.height / size[1]) / 2;
+					if (factor > 1) {
+						param.setSourceSubsampling(factor, factor, 0, 0);
+					}
+				}
+				return new Decoded(reader.read(0, param), region.width, region.height);
+			} finally {
+				reader.dispose();
+			}
+		}
+	}
+
+	private void write(BufferedImage image, File output, int quality) throws IOException {
+		String extension = FilenameUtils.getExtension(output.getName()).toLowerCase();
+		boolean jpeg = extension.isEmpty() || extension.equals("jpg") || extension.equals("jpeg");
+		Iterator<ImageWriter> writers = ImageIO.getImageWritersBySuffix(jpeg ? "jpg" : extension);
+		if (!writers.hasNext()) {
+			throw new IOException("no image writer for " + output.getName());
+		}
+		if (jpeg && image.getColorModel().hasAlpha()) {
+			image = copy(image, image.getWidth(), image.getHeight());
+		}
+		ImageWriter writer = writers.next();
+		try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(output.toPath()));
+				ImageOutputStream stream = ImageIO.createImageOutputStream(out)) {
+			ImageWriteParam param = writer.getDefaultWriteParam();
+			if (jpeg) {
+				param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+				param.setCompressionQuality(quality / 100f);
+			}
+			writer.setOutput(stream);
+			writer.write(null, new IIOImage(image, null, null), param);
+		} finally {
+			writer.dispose();
+		}
+	}
+
+	private BufferedImage crop(BufferedImage image, Crop crop) throws IOException {
+		Rectangle bounds = crop.bounds(image.getWidth(), image.getHeight());
+		return image.getSubimage(bounds.x, bounds.y, bounds.width, bounds.height);
+	}
+
+	/** Scale by halving until within 2x of the target so bilinear filtering doesn't alias */
+	private BufferedImage scale(BufferedImage image, int width, int height) {
+		while (image.getWidth() / 2 >= width && image.getHeight() / 2 >= height) {
+			image = copy(image, image.getWidth() / 2, image.getHeight() / 2);
+		}
+		if (image.getWidth() == width && image.getHeight() == height) {
+			return image;
+		}
+		return copy(image, width, height);
+	}
+
+	private BufferedImage copy(BufferedImage image, int width, int height) {
+		BufferedImage scaled = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		Graphics2D graphics = scaled.createGraphics();
+		try {
+			graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+			graphics.drawImage(image, 0, 0, width, height, null);
+		} finally {
+			graphics.dispose();
+		}
+		return scaled;
+	}
+
+	private BufferedImage rotate(BufferedImage image, int degrees) {
+		if (degrees == 0) {
+			return image;
+		}
+		int width = image.getWidth();
+		int height = image.getHeight();
+		boolean swap = degrees != 180;
+		BufferedImage rotated =
+				new BufferedImage(swap ? height : width, swap ? width : height, BufferedImage.TYPE_INT_RGB);
+		Graphics2D graphics = rotated.createGraphics();
+		try {
+			switch (degrees) {
+				case 90 -> graphics.translate(height, 0);
+				case 180 -> graphics.translate(width, height);
+				default -> graphics.translate(0, width);
+			}
+			graphics.rotate(Math.toRadians(degrees));
+			graphics.drawImage(image, 0, 0, null);
+		} finally {
+			graphics.dispose();
+		}
+		return rotated;
+	}
+
+	/**
+	 * Parse a command of the form `convert %s [operations] %s`
+	 *
+	 * @return the operations, or empty if the command uses anything not supported here
+	 */
+	protected static Optional<List<Operation>> parse(String command) {
+		if (command == null || command.isBlank()) {
+			return Optional.empty();
+		}
+		String[] tokens = command.trim().split("\\s+");
+		if (tokens.length < 3 || !tokens[1].equals("%s") || !tokens[tokens.length - 1].equals("%s")) {
+			return Optional.empty();
+		}
+		List<Operation> operations = new ArrayList<>();
+		for (int ai = 2; ai < tokens.length - 1; ai++) {
+			String option = tokens[ai];
+			if (option.equals("+repage") || option.equals("-strip")) {
+				continue;
+			}
+			if (ai + 1 >= tokens.length - 1) {
+				return Optional.empty();
+			}
+			Optional<Operation> operation =
+					switch (option) {
+						case "-crop" -> Crop.parse(tokens[++ai]);
+						case "-resize" -> Resize.parse(tokens[++ai]);
+						case "-rotate" -> Rotate.parse(tokens[++ai]);
+						case "-quality" -> Quality.parse(tokens[++ai]);
+						default -> Optional.empty();
+					};
+			if (operation.isEmpty()) {
+				return Optional.empty();
+			}
+			operations.add(operation.get());
+		}
+		return Optional.of(operations);
+	}
+
+	/** Decoded image, and its size before any subsampling */
+	private record Decoded(BufferedImage image, int width, int height) {}
+
+	protected sealed interface Operation permits Crop, Resize, Rotate, Quality {}
+
+	protected record Crop(int width, int height, int x, int y) implements Operation {
+		static Optional<Operation> parse(String geometry) {
+			Matcher matcher = kCropGeometry.matcher(geometry);
+			if (!matcher.matches()) {
+				return Optional.empty();
+			}
+			return Optional.of(new Crop(
+					Integer.parseInt(matcher.group(1)),
+					Integer.parseInt(matcher.group(2)),
+					Integer.parseInt(matcher.group(3)),
+					Integer.parseInt(matcher.group(4))));
+		}
+
+		/** Crop area clipped to the image, like ImageMagick does */
+		Rectangle bounds(int imageWidth, int imageHeight) throws IOException {
+			Rectangle bounds = new Rectangle(x, y, width, height).intersection(new Rectangle(imageWidth, imageHeight));
+			if (bounds.isEmpty()) {
+				throw new IOException("crop " + this + " is outside of image " + imageWidth + "x" + imageHeight);
+			}
+			return bounds;
+		}
+	}
+
+	/**
+	 * Resize to fit within width x height keeping aspect ratio. `!` ignores aspect ratio, `^` fills
+	 * the area instead of fitting within it and `>` only ever shrinks
+	 */
+	protected record Resize(int width, int height, char flag) implements Operation {
+		static Optional<Operation> parse(String geometry) {
+			Matcher matcher = kResizeGeometry.matcher(geometry);
+			if (!matcher.matches()
+					|| (matcher.group(1).isEmpty() && matcher.group(2).isEmpty())) {
+				return Optional.empty();
+			}
+			int width = matcher.group(1).isEmpty() ? 0 : Integer.parseInt(matcher.group(1));
+			int height = matcher.group(2).isEmpty() ? 0 : Integer.parseInt(matcher.group(2));
+			char flag = matcher.group(3).isEmpty() ? ' ' : matcher.group(3).charAt(0);
+			if ((flag == '!' || flag == '^') && (width == 0 || height == 0)) {
+				return Optional.empty();
+			}
+			return Optional.of(new Resize(width, height, flag));
+		}
+
+		int[] size(int imageWidth, int imageHeight) {
+			if (flag == '!') {
+				return new int[] {width, height};
+			}
+			double widthScale = width == 0 ? Double.MAX_VALUE : (double) width / imageWidth;
+			double heightScale = height == 0 ? Double.MAX_VALUE : (double) height / imageHeight;
+			double scale = flag == '^' ? Math.max(widthScale, heightScale) : Math.min(widthScale, heightScale);
+			if (flag == '>' && scale >= 1) {
+				scale = 1;
+			}
+			return new int[] {
+				Math.max(1, (int) Math.round(imageWidth * scale)), Math.max(1, (int) Math.round(imageHeight * scale))
+			};
+		}
+	}
+
+	protected record Rotate(int degrees) implements Operation {
+		static Optional<Operation> parse(String degrees) {
+			try {
+				double value = Double.parseDouble(degrees);
+				if (value % 90 != 0) {
+					return Optional.empty();
+				}
+				return Optional.of(new Rotate((int) (((value % 360) + 360) % 360)));
+			} catch (NumberFormatException e) {
+				return Optional.empty();
+			}
+		}
+	}
+
+	protected record Quality(int quality) implements Operation {
+		static Optional<Operation> parse(String quality) {
+			try {
+				int value = Integer.parseInt(quality);
+				return value >= 1 && value <= 100 ? Optional.of(new Quality(value)) : Optional.empty();
+			} catch (NumberFormatException e) {
+				return Optional.empty();
+			}
+		}
+	}
+}
@@ -0,0 +1,60 @@
+package com.bigboxer23.meural_control.transform;
+
+import java.io.File;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Result of a transform. The transformed output belongs to this handle and is deleted on close,
+ * unless it's been released to the caller.
+ */
+@Slf4j
+public class TransformedImage implements AutoCloseable {
+	private final File source;
+
+	private final File output;
+
+	private boolean released;
+
+	private TransformedImage(File source, File output) {
+		this.source = source;
+		this.output = output;
+	}
+
+	/** The transform produced a new image in output */
+	public static TransformedImage of(File source, File output) {
+		return new TransformedImage(source, output);
+	}
+
+	/** No transform was applied, the image is the untouched source */
+	public static TransformedImage untransformed(File source) {
+		return new TransformedImage(source, null);
+	}
+
+	public boolean isTransformed() {
+		return output != null;
+	}
+
+	/**
+	 * @return the transformed image, or the source if no transform was applied
+	 */
+	public File getFile() {
+		return isTransformed() ? output : source;
+	}
+
+	/**
+	 * Take ownership of the file, it will no longer be deleted on close
+	 *
+	 * @return the transformed image, or the source if no transform was applied
+	 */
+	public synchronized File release() {
+		released = true;
+		return getFile();
+	}
+
+	@Override
+	public synchronized void close() {
+		if (isTransformed() && !released && output.exists() && !output.delete()) {
+			log.warn("can't delete transformed file " + output);
+		}
+	}
+}
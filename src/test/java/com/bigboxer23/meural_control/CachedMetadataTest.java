@@ -0,0 +1,175 @@
+package com.bigboxer23.meural_control;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.bigboxer23.meural_control.data.Device;
+import com.bigboxer23.meural_control.data.FrameStatus;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class CachedMetadataTest {
+	private final AtomicInteger loads = new AtomicInteger();
+
+	private final ExecutorService executor = Executors.newCachedThreadPool();
+
+	@TempDir
+	private File tempDir;
+
+	@AfterEach
+	public void tearDown() {
+		executor.shutdownNow();
+	}
+
+	private CompletableFuture<String> getAsync(CachedMetadata<String> cached) {
+		return CompletableFuture.supplyAsync(
+				() -> {
+					try {
+						return cached.get();
+					} catch (IOException e) {
+						throw new RuntimeException(e);
+					}
+				},
+				executor);
+	}
+
+	/** Loaders can only throw IOException */
+	private static void sleep(long millis) throws IOException {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			throw new IOException(e);
+		}
+	}
+
+	private static void await(CountDownLatch latch) throws IOException {
+		try {
+			latch.await();
+		} catch (InterruptedException e) {
+			throw new IOException(e);
+		}
+	}
+
+	@Test
+	public void testConcurrentCallersShareOneLoad() throws Exception {
+		CachedMetadata<String> cached = new CachedMetadata<>("test", () -> Duration.ofMinutes(1), () -> {
+			sleep(200);
+			return "value" + loads.incrementAndGet();
+		});
+		List<CompletableFuture<String>> results = new ArrayList<>();
+		for (int ai = 0; ai < 10; ai++) {
+			results.add(getAsync(cached));
+		}
+		for (CompletableFuture<String> result : results) {
+			assertEquals("value1", result.get(5, TimeUnit.SECONDS));
+		}
+		assertEquals(1, loads.get());
+	}
+
+	@Test
+	public void testExpires() throws Exception {
+		CachedMetadata<String> cached =
+				new CachedMetadata<>("test", () -> Duration.ofMillis(50), () -> "value" + loads.incrementAndGet());
+		assertEquals("value1", cached.get());
+		assertEquals("value1", cached.get());
+		Thread.sleep(100);
+		assertEquals("value2", cached.get());
+	}
+
+	@Test
+	public void testInvalidateDuringLoadNotKept() throws Exception {
+		CountDownLatch loading = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		CachedMetadata<String> cached = new CachedMetadata<>("test", () -> Duration.ofMinutes(1), () -> {
+			if (loads.incrementAndGet() == 1) {
+				loading.countDown();
+				await(release);
+			}
+			return "value" + loads.get();
+		});
+		CompletableFuture<String> first = getAsync(cached);
+		loading.await();
+		cached.invalidate();
+		release.countDown();
+		assertEquals("value1", first.get(5, TimeUnit.SECONDS));
+		assertEquals("value2", cached.get());
+		assertEquals("value2", cached.get());
+	}
+
+	@Test
+	public void testFailedLoadNotCached() throws Exception {
+		CachedMetadata<String> cached = new CachedMetadata<>("test", () -> Duration.ofMinutes(1), () -> {
+			if (loads.incrementAndGet() == 1) {
+				throw new IOException("failed");
+			}
+			return "value";
+		});
+		assertThrows(IOException.class, cached::get);
+		assertEquals("value", cached.get());
+		cached.set("updated");
+		assertEquals("updated", cached.get());
+		assertEquals(2, loads.get());
+	}
+
+	@Test
+	public void testPersisted() throws IOException {
+		File file = new File(tempDir, "device");
+		CachedMetadata<Device> cached = new CachedMetadata<>(
+				"test",
+				() -> Duration.ofMinutes(1),
+				() -> new Device("id" + loads.incrementAndGet(), new FrameStatus("10.0.0.5")));
+		cached.persistTo(file, Device.class);
+		assertEquals("id1", cached.get().getId());
+
+		// A restart uses what was saved rather than loading again
+		CachedMetadata<Device> restarted = new CachedMetadata<>(
+				"test",
+				() -> Duration.ofMinutes(1),
+				() -> new Device("id" + loads.incrementAndGet(), new FrameStatus("10.0.0.6")));
+		restarted.persistTo(file, Device.class);
+		assertEquals("id1", restarted.get().getId());
+		assertEquals("10.0.0.5", restarted.get().getFrameStatus().getLocalIp());
+		assertEquals(1, loads.get());
+
+		restarted.invalidate();
+		assertFalse(file.exists());
+		assertEquals("id2", restarted.get().getId());
+		assertTrue(file.exists());
+	}
+
+	@Test
+	public void testPersistedExpires() throws Exception {
+		File file = new File(tempDir, "ip");
+		CachedMetadata<String> cached =
+				new CachedMetadata<>("test", () -> Duration.ofMillis(50), () -> "value" + loads.incrementAndGet());
+		cached.persistTo(file, String.class);
+		assertEquals("value1", cached.get());
+		Thread.sleep(100);
+		CachedMetadata<String> restarted =
+				new CachedMetadata<>("test", () -> Duration.ofMinutes(1), () -> "value" + loads.incrementAndGet());
+		restarted.persistTo(file, String.class);
+		assertEquals("value2", restarted.get());
+	}
+
+	@Test
+	public void testCorruptPersistedIgnored() throws IOException {
+		File file = new File(tempDir, "ip");
+		Files.writeString(file.toPath(), "{\"expires\":");
+		CachedMetadata<String> cached =
+				new CachedMetadata<>("test", () -> Duration.ofMinutes(1), () -> "value" + loads.incrementAndGet());
+		cached.persistTo(file, String.class);
+		assertEquals("value1", cached.get());
+	}
+}
@@ -0,0 +1,113 @@
+package com.bigboxer23.meural_control;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+/** Test checking the frame's state in the background */
+public class FrameStatePollerTest {
+	private void awaitChecks(AtomicInteger checks, int count) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (checks.get() < count && System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+		assertTrue(checks.get() >= count);
+	}
+
+	@Test
+	public void testStateServedBetweenChecks() throws InterruptedException {
+		AtomicInteger checks = new AtomicInteger();
+		try (FrameStatePoller poller = new FrameStatePoller(
+				() -> {
+					checks.incrementAndGet();
+					return true;
+				},
+				new SimpleMeterRegistry())) {
+			assertTrue(poller.getState().isEmpty());
+			poller.start(Duration.ofMinutes(1), Duration.ofMinutes(10));
+			awaitChecks(checks, 1);
+			Thread.sleep(50);
+			for (int ai = 0; ai < 1000; ai++) {
+				assertTrue(poller.getState().orElseThrow().asleep());
+			}
+			assertEquals(1, checks.get());
+
+			poller.update(false);
+			assertFalse(poller.getState().orElseThrow().asleep());
+		}
+	}
+
+	@Test
+	public void testBackoffWhileUnreachable() throws InterruptedException {
+		AtomicInteger checks = new AtomicInteger();
+		AtomicBoolean reachable = new AtomicBoolean();
+		try (FrameStatePoller poller = new FrameStatePoller(
+				() -> {
+					checks.incrementAndGet();
+					if (!reachable.get()) {
+						throw new IOException("unreachable");
+					}
+					return false;
+				},
+				new SimpleMeterRegistry())) {
+			poller.start(Duration.ofMillis(10), Duration.ofMillis(80));
+			awaitChecks(checks, 6);
+			assertFalse(poller.getState().orElseThrow().reachable());
+			assertEquals(80, poller.getDelayMillis());
+
+			reachable.set(true);
+			long deadline = System.currentTimeMillis() + 5000;
+			while (poller.getDelayMillis() != 10 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(5);
+			}
+			assertEquals(10, poller.getDelayMillis());
+			assertTrue(poller.getState().orElseThrow().reachable());
+		}
+	}
+
+	@Test
+	public void testUpdateResetsBackoff() throws InterruptedException {
+		AtomicInteger checks = new AtomicInteger();
+		AtomicBoolean reachable = new AtomicBoolean();
+		try (FrameStatePoller poller = new FrameStatePoller(
+				() -> {
+					checks.incrementAndGet();
+					if (!reachable.get()) {
+						throw new IOException("unreachable");
+					}
+					return false;
+				},
+				new SimpleMeterRegistry())) {
+			poller.start(Duration.ofMillis(50), Duration.ofMinutes(10));
+			awaitChecks(checks, 3);
+			assertTrue(poller.getDelayMillis() >= 200);
+
+			// Reached some other way, checks go back to the usual interval straight away
+			reachable.set(true);
+			poller.update(true);
+			assertEquals(50, poller.getDelayMillis());
+			int before = checks.get();
+			awaitChecks(checks, before + 3);
+			assertEquals(50, poller.getDelayMillis());
+			assertTrue(poller.getState().orElseThrow().reachable());
+
+			// Only one chain of checks is running
+			Thread.sleep(500);
+			int counted = checks.get() - before;
+			assertTrue(counted <= 15, counted + " checks");
+		}
+	}
+
+	@Test
+	public void testNotStartedAsksFrame() {
+		try (FrameStatePoller poller = new FrameStatePoller(() -> true, new SimpleMeterRegistry())) {
+			poller.update(true);
+			assertTrue(poller.getState().isEmpty());
+		}
+	}
+}
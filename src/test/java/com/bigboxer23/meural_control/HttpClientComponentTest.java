@@ -0,0 +1,123 @@
+package com.bigboxer23.meural_control;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import okhttp3.Response;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.env.MockEnvironment;
+
+/** Test the per host http clients against a local server */
+public class HttpClientComponentTest {
+	private HttpServer server;
+
+	private String url;
+
+	private SimpleMeterRegistry registry;
+
+	private HttpClientComponent http;
+
+	@BeforeEach
+	public void setup() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/", exchange -> {
+			exchange.getRequestBody().readAllBytes();
+			byte[] body = "{}".getBytes();
+			exchange.sendResponseHeaders(
+					exchange.getRequestURI().getPath().equals("/missing") ? 404 : 200, body.length);
+			exchange.getResponseBody().write(body);
+			exchange.close();
+		});
+		server.start();
+		url = "http://127.0.0.1:" + server.getAddress().getPort();
+		registry = new SimpleMeterRegistry();
+		http = new HttpClientComponent(
+				new MockEnvironment().withProperty("http.frame.connect-timeout-ms", "500"), registry);
+	}
+
+	@AfterEach
+	public void tearDown() {
+		server.stop(0);
+	}
+
+	@Test
+	public void testTimeouts() {
+		assertEquals(500, http.getFrame().getClient().connectTimeoutMillis());
+		assertEquals(10000, http.getFrame().getClient().readTimeoutMillis());
+		assertEquals(10000, http.getCloud().getClient().connectTimeoutMillis());
+		assertEquals(180000, http.getOpenAI().getClient().readTimeoutMillis());
+		assertNotSame(
+				http.getFrame().getClient().connectionPool(),
+				http.getCloud().getClient().connectionPool());
+	}
+
+	@Test
+	public void testConnectionKeptAlive() throws IOException {
+		for (int ai = 0; ai < 5; ai++) {
+			try (Response response = http.getFrame().get(url + "/remote/control_check/sleep", null)) {
+				assertTrue(response.isSuccessful());
+				response.body().string();
+			}
+		}
+		assertEquals(
+				5,
+				registry.get("http.client.calls")
+						.tag("client", "frame")
+						.tag("outcome", "success")
+						.timer()
+						.count());
+		assertEquals(
+				1,
+				registry.get("http.client.connects")
+						.tag("client", "frame")
+						.timer()
+						.count());
+		assertEquals(
+				1,
+				registry.get("http.client.pool.connections")
+						.tag("client", "frame")
+						.tag("state", "idle")
+						.gauge()
+						.value());
+		// Each client keeps its own
+		assertEquals(
+				0,
+				registry.get("http.client.pool.connections")
+						.tag("client", "cloud")
+						.tag("state", "open")
+						.gauge()
+						.value());
+	}
+
+	@Test
+	public void testFailureRecorded() throws IOException {
+		int closedPort;
+		try (ServerSocket socket = new ServerSocket(0)) {
+			closedPort = socket.getLocalPort();
+		}
+		assertThrows(IOException.class, () -> http.getFrame().get("http://127.0.0.1:" + closedPort, null));
+		try (Response response = http.getCloud().delete(url + "/missing", null)) {
+			assertEquals(404, response.code());
+		}
+		assertEquals(
+				1,
+				registry.get("http.client.calls")
+						.tag("client", "frame")
+						.tag("outcome", "failure")
+						.timer()
+						.count());
+		assertEquals(
+				1,
+				registry.get("http.client.calls")
+						.tag("client", "cloud")
+						.tag("outcome", "success")
+						.timer()
+						.count());
+	}
+}
@@ -0,0 +1,149 @@
+package com.bigboxer23.meural_control;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+public class ImageCacheComponentTest {
+	private static final int kItemSize = 400 * 1024;
+
+	@TempDir
+	private File tempDir;
+
+	private File cacheDir;
+
+	private ImageCacheComponent cache;
+
+	@BeforeEach
+	public void setup() {
+		cacheDir = new File(tempDir, "cache");
+		cache = createCache();
+	}
+
+	private ImageCacheComponent createCache() {
+		ImageCacheComponent component = new ImageCacheComponent(new SimpleMeterRegistry());
+		ReflectionTestUtils.setField(component, "cacheDirectory", cacheDir.getAbsolutePath());
+		ReflectionTestUtils.setField(component, "maxMegabytes", 1L);
+		component.load();
+		return component;
+	}
+
+	private File createItem(String name, byte fill) throws IOException {
+		byte[] content = new byte[kItemSize];
+		Arrays.fill(content, fill);
+		File file = new File(tempDir, name);
+		Files.write(file.toPath(), content);
+		return file;
+	}
+
+	@Test
+	public void testGetReturnsPrivateCopy() throws IOException {
+		String key = ImageCacheComponent.key("gphotos:1", null);
+		assertTrue(cache.get(key).isEmpty());
+		cache.put(key, createItem("item.jpg", (byte) 1));
+
+		Optional<File> cached = cache.get(key);
+		assertTrue(cached.isPresent());
+		assertTrue(cached.get().getName().endsWith(".jpg"));
+		assertEquals(kItemSize, cached.get().length());
+		// Caller deleting its file doesn't affect the cache
+		cached.get().delete();
+		assertTrue(cache.get(key).isPresent());
+
+		assertEquals(2d / 3d, cache.getHitRatio(), 0.001);
+		assertEquals(kItemSize * 2L, cache.getBytesSaved());
+	}
+
+	@Test
+	public void testKeyIncludesTransform() {
+		assertNotEquals(
+				ImageCacheComponent.key("gphotos:1", null),
+				ImageCacheComponent.key("gphotos:1", "convert %s -crop 960x1440+0+0 %s"));
+		assertEquals(ImageCacheComponent.key("gphotos:1", "convert"), ImageCacheComponent.key("gphotos:1", "convert"));
+	}
+
+	@Test
+	public void testLeastRecentlyUsedEvicted() throws IOException {
+		cache.put("a", createItem("a.jpg", (byte) 1));
+		cache.put("b", createItem("b.jpg", (byte) 2));
+		cache.get("a").ifPresent(File::delete);
+		// Third item puts the cache over 1MB, b is least recently used
+		cache.put("c", createItem("c.jpg", (byte) 3));
+		assertTrue(cache.get("a").isPresent());
+		assertTrue(cache.get("b").isEmpty());
+		assertTrue(cache.get("c").isPresent());
+		assertEquals(kItemSize * 2L, cache.getSize());
+	}
+
+	@Test
+	public void testIndexRecoveredOnStartup() throws IOException {
+		cache.put("a", createItem("a.jpg", (byte) 1));
+		cache.put("b", createItem("b.jpg", (byte) 2));
+		// Simulate a crash part way through writing an entry
+		Files.write(new File(cacheDir, "c.tmp").toPath(), new byte[] {1, 2, 3});
+
+		ImageCacheComponent restarted = createCache();
+		assertFalse(new File(cacheDir, "c.tmp").exists());
+		assertEquals(kItemSize * 2L, restarted.getSize());
+		assertTrue(restarted.get("a").isPresent());
+		assertTrue(restarted.get("b").isPresent());
+		assertTrue(restarted.get("c").isEmpty());
+	}
+
+	/** Concurrent puts of one key, like a prefetch racing a display, each leave a whole file */
+	@Test
+	public void testConcurrentPutsOfKey() throws Exception {
+		ReflectionTestUtils.setField(cache, "maxMegabytes", 64L);
+		int size = 4 * 1024 * 1024;
+		File[] items = new File[4];
+		for (int ai = 0; ai < items.length; ai++) {
+			byte[] content = new byte[size];
+			Arrays.fill(content, (byte) ai);
+			items[ai] = new File(tempDir, ai + ".jpg");
+			Files.write(items[ai].toPath(), content);
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(items.length);
+		try {
+			for (int ai = 0; ai < 20; ai++) {
+				CountDownLatch start = new CountDownLatch(1);
+				List<Future<?>> puts = new ArrayList<>();
+				for (File item : items) {
+					puts.add(executor.submit(() -> {
+						start.await();
+						cache.put("a", item);
+						return null;
+					}));
+				}
+				start.countDown();
+				for (Future<?> put : puts) {
+					put.get(10, TimeUnit.SECONDS);
+				}
+				byte[] cached = Files.readAllBytes(cache.get("a").orElseThrow().toPath());
+				assertEquals(size, cached.length);
+				for (byte value : cached) {
+					assertEquals(cached[0], value);
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		assertEquals(size, cache.getSize());
+		assertArrayEquals(new String[] {"a.jpg"}, cacheDir.list());
+	}
+}
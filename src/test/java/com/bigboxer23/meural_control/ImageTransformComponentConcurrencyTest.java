@@ -0,0 +1,134 @@
+package com.bigboxer23.meural_control;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.bigboxer23.meural_control.transform.TransformedImage;
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import javax.imageio.ImageIO;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+public class ImageTransformComponentConcurrencyTest {
+	private ImageTransformComponent component;
+
+	@TempDir
+	private File tempDir;
+
+	@BeforeEach
+	public void setup() {
+		component = new ImageTransformComponent();
+		ReflectionTestUtils.setField(component, "command", "convert %s -crop 200x300+0+0 %s");
+		ReflectionTestUtils.setField(component, "previewCommand", "");
+		ReflectionTestUtils.setField(component, "engine", "java");
+	}
+
+	@AfterEach
+	public void tearDown() {
+		component.shutdown();
+	}
+
+	private File createImage(String name, Color color) throws IOException {
+		BufferedImage image = new BufferedImage(1000, 1000, BufferedImage.TYPE_INT_RGB);
+		for (int y = 0; y < image.getHeight(); y++) {
+			for (int x = 0; x < image.getWidth(); x++) {
+				image.setRGB(x, y, color.getRGB());
+			}
+		}
+		File file = new File(tempDir, name);
+		ImageIO.write(image, "jpg", file);
+		return file;
+	}
+
+	@Test
+	public void testConcurrentTransformsDontShareOutput() throws Exception {
+		Color[] colors = {
+			Color.RED, Color.GREEN, Color.BLUE, Color.YELLOW, Color.CYAN, Color.MAGENTA, Color.WHITE, Color.BLACK
+		};
+		List<File> inputs = new ArrayList<>();
+		for (int ai = 0; ai < colors.length; ai++) {
+			inputs.add(createImage("in" + ai + ".jpg", colors[ai]));
+		}
+		ExecutorService callers = Executors.newFixedThreadPool(colors.length);
+		CountDownLatch start = new CountDownLatch(1);
+		List<CompletableFuture<TransformedImage>> results = new ArrayList<>();
+		for (File input : inputs) {
+			results.add(CompletableFuture.supplyAsync(
+					() -> {
+						try {
+							start.await();
+						} catch (InterruptedException e) {
+							throw new RuntimeException(e);
+						}
+						return component.transformItem(input);
+					},
+					callers));
+		}
+		start.countDown();
+		Set<File> outputs = new HashSet<>();
+		for (int ai = 0; ai < colors.length; ai++) {
+			try (TransformedImage image = results.get(ai).join()) {
+				assertTrue(image.isTransformed());
+				assertTrue(outputs.add(image.getFile()));
+				BufferedImage transformed = ImageIO.read(image.getFile());
+				assertEquals(200, transformed.getWidth());
+				assertEquals(300, transformed.getHeight());
+				Color color = new Color(transformed.getRGB(100, 100));
+				assertEquals(colors[ai].getRed(), color.getRed(), 10);
+				assertEquals(colors[ai].getGreen(), color.getGreen(), 10);
+				assertEquals(colors[ai].getBlue(), color.getBlue(), 10);
+			}
+		}
+		callers.shutdown();
+		// Closing the handles cleaned up every output
+		outputs.forEach(file -> assertFalse(file.exists()));
+	}
+
+	@Test
+	public void testReleaseKeepsOutput() throws IOException {
+		File input = createImage("in.jpg", Color.RED);
+		File released;
+		try (TransformedImage image = component.transformItem(input)) {
+			released = image.release();
+		}
+		assertTrue(released.exists());
+		assertNotEquals(input, released);
+		released.delete();
+	}
+
+	@Test
+	public void testNoCommandReturnsSource() throws IOException {
+		File input = createImage("in.jpg", Color.RED);
+		try (TransformedImage image = component.transformPreviewItem(input)) {
+			assertFalse(image.isTransformed());
+			assertEquals(input, image.getFile());
+		}
+		// The source is never deleted by the handle
+		assertTrue(input.exists());
+	}
+
+	@Test
+	public void testFailedTransformReturnsSource() throws IOException {
+		File input = new File(tempDir, "notAnImage.jpg");
+		Files.writeString(input.toPath(), "not an image");
+		try (TransformedImage image = component.transformItem(input)) {
+			assertFalse(image.isTransformed());
+			assertEquals(input, image.getFile());
+		}
+		assertTrue(input.exists());
+	}
+}
@@ -4,6 +4,7 @@ import static org.junit.jupiter.api.Assertions.*;
 
 import com.bigboxer23.meural_control.data.SourceItem;
 import com.bigboxer23.meural_control.google.GooglePhotosComponent;
+import com.bigboxer23.meural_control.transform.TransformedImage;
 import java.io.File;
 import java.io.IOException;
 import java.util.Optional;
@@ -27,12 +28,20 @@ public class ImageTransformComponentTest {
 
 	@Test
 	public void testTransformPreviewItem() throws IOException {
-		internalTest(original -> assertNotEquals(component.transformPreviewItem(original), original));
+		internalTest(original -> {
+			try (TransformedImage image = component.transformPreviewItem(original)) {
+				assertNotEquals(image.getFile(), original);
+			}
+		});
 	}
 
 	@Test
 	public void testTransformItem() throws IOException {
-		internalTest(original -> assertEquals(component.transformItem(original), original));
+		internalTest(original -> {
+			try (TransformedImage image = component.transformItem(original)) {
+				assertEquals(image.getFile(), original);
+			}
+		});
 	}
 
 	private void internalTest(Command command) throws IOException {
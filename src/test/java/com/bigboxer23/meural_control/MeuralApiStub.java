@@ -0,0 +1,239 @@
+package com.bigboxer23.meural_control;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * Local stand in for the api.meural.com/v0 endpoints used by MeuralComponent, plus the frame's own
+ * local http server (the device's local ip points back here). Keeps one gallery and its items in
+ * memory, and counts requests by "METHOD path" with numeric ids replaced by {id}.
+ */
+public class MeuralApiStub implements AutoCloseable {
+	public static final String kDeviceId = "3";
+
+	public static final String kPlaylistId = "7";
+
+	private final HttpServer server;
+
+	private final AtomicInteger nextItemId = new AtomicInteger(100);
+
+	/** Items that exist on the service */
+	private final Map<Integer, Long> items = new ConcurrentHashMap<>();
+
+	/** Items in the gallery, in order added */
+	private final List<Integer> playlistItems = new CopyOnWriteArrayList<>();
+
+	private final Map<String, AtomicInteger> requests = new ConcurrentHashMap<>();
+
+	private final AtomicLong uploadedBytes = new AtomicLong();
+
+	/** Bytes of request bodies received, by request */
+	private final Map<String, AtomicLong> requestBytes = new ConcurrentHashMap<>();
+
+	private final String playlistName;
+
+	private volatile long delayMillis;
+
+	private volatile long millisPerMegabyte;
+
+	private volatile boolean asleep;
+
+	private volatile String frameAddress;
+
+	/** Extra delay for particular requests, like "DELETE /items/{id}" */
+	private final Map<String, Long> requestDelays = new ConcurrentHashMap<>();
+
+	/** Content served from /download/{name}, for items to fetch */
+	private final Map<String, byte[]> downloads = new ConcurrentHashMap<>();
+
+	/** One time failure status codes to return, by request */
+	private final Map<String, Integer> failures = new ConcurrentHashMap<>();
+
+	public MeuralApiStub(String playlistName) throws IOException {
+		this.playlistName = playlistName;
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.createContext("/", this::handle);
+		server.start();
+		frameAddress = "127.0.0.1:" + server.getAddress().getPort();
+	}
+
+	public String getApiUrl() {
+		return "http://127.0.0.1:" + server.getAddress().getPort() + "/v0/";
+	}
+
+	/** Delay every response, to simulate network latency */
+	public void setDelayMillis(long delayMillis) {
+		this.delayMillis = delayMillis;
+	}
+
+	/** Delay responses by the size of the request body, to simulate a slow link */
+	public void setMillisPerMegabyte(long millisPerMegabyte) {
+		this.millisPerMegabyte = millisPerMegabyte;
+	}
+
+	/** Delay responses to matching requests (like "DELETE /items/{id}") */
+	public void setDelayMillis(String request, long delayMillis) {
+		requestDelays.put(request, delayMillis);
+	}
+
+	/**
+	 * @return url the content can be downloaded from
+	 */
+	public URL addDownload(String name, byte[] content) throws IOException {
+		downloads.put(name, content);
+		return new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/download/" + name);
+	}
+
+	public void setAsleep(boolean asleep) {
+		this.asleep = asleep;
+	}
+
+	/** Local address the device list gives for the frame, defaults to this server */
+	public void setFrameAddress(String frameAddress) {
+		this.frameAddress = frameAddress;
+	}
+
+	/** Respond to the next matching request (like "GET /user/galleries") with the status code */
+	public void failNext(String request, int code) {
+		failures.put(request, code);
+	}
+
+	public int getRequestCount(String request) {
+		AtomicInteger count = requests.get(request);
+		return count == null ? 0 : count.get();
+	}
+
+	public long getUploadedBytes() {
+		return uploadedBytes.get();
+	}
+
+	/**
+	 * @return bytes of request bodies received for matching requests (like "POST /remote/postcard")
+	 */
+	public long getRequestBytes(String request) {
+		AtomicLong bytes = requestBytes.get(request);
+		return bytes == null ? 0 : bytes.get();
+	}
+
+	public List<Integer> getPlaylistItems() {
+		return playlistItems;
+	}
+
+	public boolean itemExists(int itemId) {
+		return items.containsKey(itemId);
+	}
+
+	/** Remove an item behind the app's back, like deleting it in the Meural app */
+	public void deleteItem(int itemId) {
+		items.remove(itemId);
+		playlistItems.remove(Integer.valueOf(itemId));
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		try {
+			byte[] body = exchange.getRequestBody().readAllBytes();
+			String path = exchange.getRequestURI().getPath().replaceFirst("^/v0", "");
+			String[] parts = path.split("/");
+			String request = exchange.getRequestMethod() + " " + path.replaceAll("/\\d+", "/{id}");
+			requests.computeIfAbsent(request, key -> new AtomicInteger()).incrementAndGet();
+			requestBytes.computeIfAbsent(request, key -> new AtomicLong()).addAndGet(body.length);
+			long delay = delayMillis
+					+ requestDelays.getOrDefault(request, 0L)
+					+ body.length * millisPerMegabyte / (1024 * 1024);
+			if (delay > 0) {
+				Thread.sleep(delay);
+			}
+			Integer failure = failures.remove(request);
+			if (failure != null) {
+				respond(exchange, failure, "{\"detail\":\"failed\"}");
+				return;
+			}
+			String method = exchange.getRequestMethod();
+			if (path.startsWith("/download/")) {
+				byte[] content = downloads.get(path.substring("/download/".length()));
+				if (content == null) {
+					respond(exchange, 404, "{}");
+				} else {
+					exchange.sendResponseHeaders(200, content.length);
+					exchange.getResponseBody().write(content);
+				}
+			} else if (path.equals("/user/devices")) {
+				respond(
+						exchange,
+						200,
+						"{\"data\":[{\"id\":\""
+								+ kDeviceId
+								+ "\",\"frameStatus\":{\"localIp\":\""
+								+ frameAddress
+								+ "\"}}]}");
+			} else if (path.equals("/user/galleries")) {
+				respond(exchange, 200, "{\"data\":[" + getPlaylistJson() + "]}");
+			} else if (path.equals("/items") && method.equals("POST")) {
+				int id = nextItemId.incrementAndGet();
+				items.put(id, (long) body.length);
+				uploadedBytes.addAndGet(body.length);
+				respond(exchange, 200, "{\"data\":{\"id\":\"" + id + "\"}}");
+			} else if (parts.length == 3 && parts[1].equals("items")) {
+				int id = Integer.parseInt(parts[2]);
+				if (!items.containsKey(id)) {
+					respond(exchange, 404, "{\"detail\":\"Not found.\"}");
+				} else if (method.equals("DELETE")) {
+					deleteItem(id);
+					respond(exchange, 200, "{}");
+				} else {
+					respond(exchange, 200, "{\"data\":{\"id\":\"" + id + "\"}}");
+				}
+			} else if (parts.length == 5 && parts[1].equals("galleries") && parts[3].equals("items")) {
+				playlistItems.add(Integer.parseInt(parts[4]));
+				respond(exchange, 200, "{\"data\":" + getPlaylistJson() + "}");
+			} else if (parts.length == 5 && parts[1].equals("devices")) {
+				respond(exchange, 200, "{}");
+			} else if (path.equals("/remote/control_check/sleep")) {
+				respond(exchange, 200, "{\"status\":\"pass\",\"response\":" + asleep + "}");
+			} else if (path.startsWith("/remote/")) {
+				respond(exchange, 200, "{\"status\":\"pass\",\"response\":\"ok\"}");
+			} else {
+				respond(exchange, 404, "{}");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private String getPlaylistJson() {
+		return "{\"id\":\""
+				+ kPlaylistId
+				+ "\",\"name\":\""
+				+ playlistName
+				+ "\",\"itemIds\":["
+				+ playlistItems.stream().map(String::valueOf).collect(Collectors.joining(","))
+				+ "]}";
+	}
+
+	private void respond(HttpExchange exchange, int code, String body) throws IOException {
+		byte[] response = body.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().add("Content-Type", "application/json");
+		exchange.sendResponseHeaders(code, response.length);
+		exchange.getResponseBody().write(response);
+	}
+
+	@Override
+	public void close() {
+		server.stop(0);
+	}
+}
@@ -0,0 +1,223 @@
+package com.bigboxer23.meural_control;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+import com.bigboxer23.meural_control.data.SourceItem;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.test.util.ReflectionTestUtils;
+
+/** Test device, address and playlist caching against a local stub of the Meural service */
+@ExtendWith(MockitoExtension.class)
+public class MeuralComponentMetadataTest {
+	@Mock
+	private S3UploadQueue mockS3Queue;
+
+	@Mock
+	private MeuralTokenComponent mockToken;
+
+	@TempDir
+	private File tempDir;
+
+	private MeuralApiStub stub;
+
+	private ImageTransformComponent transformComponent;
+
+	private BlockingTaskExecutor executor;
+
+	private MeuralComponent component;
+
+	@BeforeEach
+	public void setup() throws IOException {
+		stub = new MeuralApiStub("Test Playlist");
+		lenient().when(mockToken.getToken()).thenReturn("token");
+		transformComponent = new ImageTransformComponent();
+		ReflectionTestUtils.setField(transformComponent, "command", "");
+		ImageCacheComponent imageCache = new ImageCacheComponent(new SimpleMeterRegistry());
+		executor = BlockingTaskExecutor.create(false);
+		component = new MeuralComponent(
+				mockS3Queue,
+				transformComponent,
+				mockToken,
+				imageCache,
+				executor,
+				new HttpClientComponent(new MockEnvironment(), new SimpleMeterRegistry()),
+				new StartupTasks(false, executor),
+				new SimpleMeterRegistry());
+		ReflectionTestUtils.setField(component, "apiUrl", stub.getApiUrl());
+		ReflectionTestUtils.setField(component, "playlistName", "Test Playlist");
+		ReflectionTestUtils.setField(component, "meuralOrientation", "vertical");
+		ReflectionTestUtils.setField(component, "deviceCacheMinutes", 60L);
+		ReflectionTestUtils.setField(component, "ipCacheMinutes", 60L);
+		ReflectionTestUtils.setField(component, "playlistCacheMinutes", 60L);
+		ReflectionTestUtils.setField(component, "uploadIndex", new MeuralUploadIndex(new File(tempDir, "uploads")));
+	}
+
+	@AfterEach
+	public void tearDown() {
+		component.shutdown();
+		transformComponent.shutdown();
+		executor.close();
+		stub.close();
+	}
+
+	private SourceItem createItem(byte fill) throws IOException {
+		byte[] content = new byte[1024];
+		Arrays.fill(content, fill);
+		File file = File.createTempFile("item", ".jpg", tempDir);
+		Files.write(file.toPath(), content);
+		SourceItem item = new SourceItem("item.jpg", null);
+		item.setTempFile(file);
+		item.setCleanupTempFile(false);
+		return item;
+	}
+
+	@Test
+	public void testMetadataReusedAcrossDisplays() throws IOException, InterruptedException {
+		for (byte ai = 0; ai < 3; ai++) {
+			assertTrue(component.changePicture(createItem(ai)).isSuccessful());
+			assertTrue(component.isAsleep().isSuccessful());
+		}
+		assertEquals(3, stub.getRequestCount("POST /items"));
+		assertEquals(1, stub.getRequestCount("GET /user/devices"));
+		assertEquals(1, stub.getRequestCount("GET /user/galleries"));
+		// Old items are removed from the playlist in the background
+		long deadline = System.currentTimeMillis() + 10000;
+		while (component.getPendingCleanupCount() > 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(1, stub.getPlaylistItems().size());
+	}
+
+	@Test
+	public void testResetKeepsTokenAndDevice() throws IOException {
+		component.changePicture(createItem((byte) 1));
+		component.reset();
+		component.changePicture(createItem((byte) 2));
+		assertEquals(2, stub.getRequestCount("GET /user/galleries"));
+		assertEquals(1, stub.getRequestCount("GET /user/devices"));
+		verify(mockToken, never()).invalidate();
+	}
+
+	@Test
+	public void testResetKeepsLocalIp() throws IOException {
+		assertTrue(component.isAsleep().isSuccessful());
+		component.reset();
+		assertTrue(component.isAsleep().isSuccessful());
+		assertEquals(1, stub.getRequestCount("GET /user/devices"));
+	}
+
+	@Test
+	public void testUnauthorizedDropsToken() throws IOException {
+		stub.failNext("GET /user/galleries", 401);
+		assertNotNull(component.getOrCreatePlaylist());
+		verify(mockToken).invalidate();
+		assertEquals(2, stub.getRequestCount("GET /user/galleries"));
+	}
+
+	@Test
+	public void testUnreachableFrameDropsLocalIp() throws IOException {
+		String frameAddress = URI.create(stub.getApiUrl()).getAuthority();
+		int closedPort;
+		try (ServerSocket socket = new ServerSocket(0)) {
+			closedPort = socket.getLocalPort();
+		}
+		stub.setFrameAddress("127.0.0.1:" + closedPort);
+		assertThrows(IOException.class, () -> component.isAsleep());
+
+		stub.setFrameAddress(frameAddress);
+		assertTrue(component.isAsleep().isSuccessful());
+		assertEquals(2, stub.getRequestCount("GET /user/devices"));
+		verify(mockToken, never()).invalidate();
+	}
+
+	@Test
+	public void testConcurrentCallersShareFetch() throws Exception {
+		stub.setDelayMillis(200);
+		ExecutorService callers = Executors.newFixedThreadPool(8);
+		List<CompletableFuture<String>> results = new ArrayList<>();
+		for (int ai = 0; ai < 8; ai++) {
+			results.add(CompletableFuture.supplyAsync(
+					() -> {
+						try {
+							return component.getDevice().getId();
+						} catch (IOException e) {
+							throw new RuntimeException(e);
+						}
+					},
+					callers));
+		}
+		for (CompletableFuture<String> result : results) {
+			assertEquals(MeuralApiStub.kDeviceId, result.get());
+		}
+		callers.shutdown();
+		assertEquals(1, stub.getRequestCount("GET /user/devices"));
+	}
+
+	@Test
+	public void testIsAsleepServedFromPoll() throws IOException {
+		ReflectionTestUtils.setField(component, "statePollSeconds", 60L);
+		ReflectionTestUtils.setField(component, "stateMaxBackoffSeconds", 600L);
+		component.startPolling();
+		long deadline = System.currentTimeMillis() + 5000;
+		while (component.getFrameState().isEmpty() && System.currentTimeMillis() < deadline) {
+			Thread.onSpinWait();
+		}
+		assertTrue(component.getFrameState().orElseThrow().reachable());
+		for (int ai = 0; ai < 100; ai++) {
+			assertFalse(component.isAsleep().isResponse());
+		}
+		assertEquals(1, stub.getRequestCount("GET /remote/control_check/sleep"));
+
+		// Known as soon as it's changed from here
+		assertTrue(component.sleep().isSuccessful());
+		assertTrue(component.isAsleep().isResponse());
+		assertTrue(component.wakeup().isSuccessful());
+		assertFalse(component.isAsleep().isResponse());
+		assertEquals(1, stub.getRequestCount("GET /remote/control_check/sleep"));
+	}
+
+	@Test
+	public void testIsAsleepAsksFrameAfterUnreachableCheck() throws IOException, InterruptedException {
+		String frameAddress = URI.create(stub.getApiUrl()).getAuthority();
+		int closedPort;
+		try (ServerSocket socket = new ServerSocket(0)) {
+			closedPort = socket.getLocalPort();
+		}
+		// The device's address is cached, so the closed port is kept while the poller backs off
+		stub.setFrameAddress("127.0.0.1:" + closedPort);
+		ReflectionTestUtils.setField(component, "statePollSeconds", 60L);
+		ReflectionTestUtils.setField(component, "stateMaxBackoffSeconds", 600L);
+		component.startPolling();
+		long deadline = System.currentTimeMillis() + 5000;
+		while (component.getFrameState().isEmpty() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+		assertFalse(component.getFrameState().orElseThrow().reachable());
+
+		// Back online, answered straight away rather than failing until the next check
+		stub.setFrameAddress(frameAddress);
+		assertTrue(component.isAsleep().isSuccessful());
+		assertTrue(component.getFrameState().orElseThrow().reachable());
+		assertFalse(component.isAsleep().isResponse());
+	}
+}
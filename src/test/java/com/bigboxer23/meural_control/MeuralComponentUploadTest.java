@@ -0,0 +1,190 @@
+package com.bigboxer23.meural_control;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+import com.bigboxer23.meural_control.data.SourceItem;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.Random;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.test.util.ReflectionTestUtils;
+
+/** Test displaying content against a local stub of the Meural service */
+@ExtendWith(MockitoExtension.class)
+public class MeuralComponentUploadTest {
+	@Mock
+	private S3UploadQueue mockS3Queue;
+
+	@Mock
+	private MeuralTokenComponent mockToken;
+
+	@TempDir
+	private File tempDir;
+
+	private MeuralApiStub stub;
+
+	private ImageTransformComponent transformComponent;
+
+	private BlockingTaskExecutor executor;
+
+	private MeuralComponent component;
+
+	@BeforeEach
+	public void setup() throws IOException {
+		stub = new MeuralApiStub("Test Playlist");
+		when(mockToken.getToken()).thenReturn("token");
+		transformComponent = new ImageTransformComponent();
+		ReflectionTestUtils.setField(transformComponent, "command", "");
+		ImageCacheComponent imageCache = new ImageCacheComponent(new SimpleMeterRegistry());
+		ReflectionTestUtils.setField(imageCache, "maxMegabytes", 0L);
+		executor = BlockingTaskExecutor.create(false);
+		component = new MeuralComponent(
+				mockS3Queue,
+				transformComponent,
+				mockToken,
+				imageCache,
+				executor,
+				new HttpClientComponent(new MockEnvironment(), new SimpleMeterRegistry()),
+				new StartupTasks(false, executor),
+				new SimpleMeterRegistry());
+		ReflectionTestUtils.setField(component, "apiUrl", stub.getApiUrl());
+		ReflectionTestUtils.setField(component, "playlistName", "Test Playlist");
+		ReflectionTestUtils.setField(component, "meuralOrientation", "vertical");
+		ReflectionTestUtils.setField(component, "uploadIndex", new MeuralUploadIndex(new File(tempDir, "uploads")));
+	}
+
+	@AfterEach
+	public void tearDown() {
+		component.shutdown();
+		transformComponent.shutdown();
+		executor.close();
+		stub.close();
+	}
+
+	private void awaitCleanup() throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000;
+		while (component.getPendingCleanupCount() > 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(0, component.getPendingCleanupCount());
+	}
+
+	/** A new item each time, like a source hands out, with the given content */
+	private SourceItem createItem(String name, byte fill) throws IOException {
+		byte[] content = new byte[64 * 1024];
+		Arrays.fill(content, fill);
+		File file = File.createTempFile("item", ".jpg", tempDir);
+		Files.write(file.toPath(), content);
+		SourceItem item = new SourceItem(name, null);
+		item.setTempFile(file);
+		item.setCleanupTempFile(false);
+		return item;
+	}
+
+	@Test
+	public void testRepeatedContentNotUploaded() throws IOException {
+		assertTrue(component.changePicture(createItem("a.jpg", (byte) 1)).isSuccessful());
+		long uploaded = stub.getUploadedBytes();
+		assertTrue(uploaded > 0);
+
+		assertTrue(component.changePicture(createItem("a.jpg", (byte) 1)).isSuccessful());
+		assertEquals(uploaded, stub.getUploadedBytes());
+		assertEquals(1, stub.getRequestCount("POST /items"));
+		assertEquals(1, component.getUploads());
+		assertEquals(1, component.getUploadsAvoided());
+		// In the playlist, so no need to check it exists
+		assertEquals(0, stub.getRequestCount("GET /items/{id}"));
+
+		assertEquals(1, new MeuralUploadIndex(new File(tempDir, "uploads")).size());
+	}
+
+	@Test
+	public void testReplacedContentUploadedAgain() throws IOException, InterruptedException {
+		component.changePicture(createItem("a.jpg", (byte) 1));
+		// Displaying b deletes a from the service
+		component.changePicture(createItem("b.jpg", (byte) 2));
+		awaitCleanup();
+		assertEquals(1, stub.getPlaylistItems().size());
+		component.changePicture(createItem("a.jpg", (byte) 1));
+		assertEquals(3, stub.getRequestCount("POST /items"));
+		assertEquals(0, component.getUploadsAvoided());
+		assertEquals(0, stub.getRequestCount("GET /items/{id}"));
+	}
+
+	@Test
+	public void testCleanupDoesNotDelayDisplay() throws IOException, InterruptedException {
+		component.changePicture(createItem("a.jpg", (byte) 1));
+		Integer first = stub.getPlaylistItems().get(0);
+		stub.setDelayMillis("DELETE /items/{id}", 2000);
+		long start = System.currentTimeMillis();
+		assertTrue(component.changePicture(createItem("b.jpg", (byte) 2)).isSuccessful());
+		assertTrue(System.currentTimeMillis() - start < 1500);
+		assertEquals(1, component.getPendingCleanupCount());
+		assertTrue(stub.itemExists(first));
+
+		// Showing a again while its delete is in flight shouldn't reuse it
+		component.changePicture(createItem("a.jpg", (byte) 1));
+		assertEquals(3, stub.getRequestCount("POST /items"));
+		awaitCleanup();
+		assertFalse(stub.itemExists(first));
+	}
+
+	@Test
+	public void testStreamedWithoutTempFile() throws IOException, NoSuchAlgorithmException {
+		ReflectionTestUtils.setField(component, "streamingUpload", true);
+		byte[] content = new byte[1024 * 1024];
+		new Random(1).nextBytes(content);
+		ByteArrayOutputStream savedToS3 = new ByteArrayOutputStream();
+		doAnswer(invocation -> invocation.getArgument(1, InputStream.class).transferTo(savedToS3))
+				.when(mockS3Queue)
+				.enqueue(any(), any(InputStream.class));
+		SourceItem item = new SourceItem("streamed.jpg", stub.addDownload("streamed.jpg", content), "album");
+		item.setSourceId("test:streamed");
+
+		assertTrue(component.changePicture(item).isSuccessful());
+		assertNull(item.getTempFile());
+		assertArrayEquals(content, savedToS3.toByteArray());
+		assertTrue(stub.getUploadedBytes() > content.length);
+		assertEquals(1, stub.getPlaylistItems().size());
+		verify(mockS3Queue, never()).enqueue(any());
+
+		// Seen before, so downloaded to check the content and reuse the item
+		SourceItem again = new SourceItem("streamed.jpg", item.getUrl(), "album");
+		again.setSourceId("test:streamed");
+		assertTrue(component.changePicture(again).isSuccessful());
+		assertEquals(1, stub.getRequestCount("POST /items"));
+		assertEquals(1, component.getUploadsAvoided());
+		verify(mockS3Queue).enqueue(again);
+		// Hashed while downloading, for the queue to use
+		assertEquals(
+				HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(content)), again.getContentHash());
+	}
+
+	@Test
+	public void testItemDeletedElsewhereUploadedAgain() throws IOException {
+		component.changePicture(createItem("a.jpg", (byte) 1));
+		stub.deleteItem(stub.getPlaylistItems().get(0));
+		component.changePicture(createItem("a.jpg", (byte) 1));
+		assertEquals(1, stub.getRequestCount("GET /items/{id}"));
+		assertEquals(2, stub.getRequestCount("POST /items"));
+		assertEquals(0, component.getUploadsAvoided());
+		assertTrue(stub.itemExists(stub.getPlaylistItems().get(0)));
+	}
+}
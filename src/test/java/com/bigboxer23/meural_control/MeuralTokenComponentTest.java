@@ -0,0 +1,127 @@
+package com.bigboxer23.meural_control;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+/** Test token caching and refresh against a local stub of the Cognito InitiateAuth endpoint */
+public class MeuralTokenComponentTest {
+	private HttpServer server;
+
+	private final AtomicInteger passwordAuthCount = new AtomicInteger();
+
+	private final AtomicInteger refreshAuthCount = new AtomicInteger();
+
+	private volatile int expiresIn = 3600;
+
+	private MeuralTokenComponent component;
+
+	@TempDir
+	private File tempDir;
+
+	@BeforeEach
+	public void setup() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/", exchange -> {
+			String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+			String token;
+			if (body.contains("REFRESH_TOKEN_AUTH")) {
+				token = "refreshed" + refreshAuthCount.incrementAndGet();
+			} else {
+				token = "access" + passwordAuthCount.incrementAndGet();
+			}
+			byte[] response = ("{\"AuthenticationResult\":{\"AccessToken\":\""
+							+ token
+							+ "\",\"ExpiresIn\":"
+							+ expiresIn
+							+ ",\"IdToken\":\"id\","
+							+ (body.contains("REFRESH_TOKEN_AUTH") ? "" : "\"RefreshToken\":\"refresh\",")
+							+ "\"TokenType\":\"Bearer\"},\"ChallengeParameters\":{}}")
+					.getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().add("Content-Type", "application/x-amz-json-1.1");
+			exchange.sendResponseHeaders(200, response.length);
+			exchange.getResponseBody().write(response);
+			exchange.close();
+		});
+		server.start();
+		component = new MeuralTokenComponent();
+		ReflectionTestUtils.setField(component, "username", "user@example.com");
+		ReflectionTestUtils.setField(component, "password", "password");
+		ReflectionTestUtils.setField(
+				component,
+				"cognitoEndpoint",
+				"http://127.0.0.1:" + server.getAddress().getPort());
+		ReflectionTestUtils.setField(component, "refreshAheadSeconds", 1L);
+	}
+
+	@AfterEach
+	public void tearDown() {
+		component.close();
+		server.stop(0);
+	}
+
+	@Test
+	public void testSingleAuthPerDisplayChange() {
+		// A display change requests the token for each upload/playlist/device call
+		for (int ai = 0; ai < 6; ai++) {
+			assertEquals("access1", component.getToken());
+		}
+		assertEquals(1, passwordAuthCount.get());
+		assertEquals(0, refreshAuthCount.get());
+	}
+
+	@Test
+	public void testInvalidateUsesRefreshToken() {
+		assertEquals("access1", component.getToken());
+		component.invalidate();
+		assertEquals("refreshed1", component.getToken());
+		assertEquals(1, passwordAuthCount.get());
+		assertEquals(1, refreshAuthCount.get());
+	}
+
+	@Test
+	public void testProactiveRefresh() throws InterruptedException {
+		expiresIn = 2;
+		assertEquals("access1", component.getToken());
+		Thread.sleep(1500); // refresh is scheduled a second ahead of expiry
+		assertEquals(1, refreshAuthCount.get());
+		assertEquals("refreshed1", component.getToken());
+		assertEquals(1, passwordAuthCount.get());
+	}
+
+	@Test
+	public void testSavedTokenUsedAfterRestart() throws IOException {
+		File file = new File(tempDir, "token");
+		Files.write(file.toPath(), List.of("saved", String.valueOf(System.currentTimeMillis() + 3600000), "refresh"));
+		ReflectionTestUtils.setField(component, "tokenFile", file.getAbsolutePath());
+		component.loadToken();
+		assertEquals("saved", component.getToken());
+		assertEquals(0, passwordAuthCount.get());
+		assertEquals(0, refreshAuthCount.get());
+
+		// The refresh token outlives the access token it's saved with
+		component.invalidate();
+		assertEquals(List.of("", "0", "refresh"), Files.readAllLines(file.toPath()));
+	}
+
+	@Test
+	public void testExpiredSavedTokenNotUsed() throws IOException {
+		File file = new File(tempDir, "token");
+		Files.write(file.toPath(), List.of("saved", String.valueOf(System.currentTimeMillis() - 1000), ""));
+		ReflectionTestUtils.setField(component, "tokenFile", file.getAbsolutePath());
+		component.loadToken();
+		assertNotEquals("saved", component.getToken());
+	}
+}
@@ -0,0 +1,157 @@
+package com.bigboxer23.meural_control;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+import com.bigboxer23.meural_control.data.SourceItem;
+import com.bigboxer23.meural_control.google.GooglePhotosComponent;
+import com.bigboxer23.meural_control.jwst.JWSTComponent;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Optional;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.util.ReflectionTestUtils;
+
+/**
+ * Time /nextPicture against local stubs of the Meural service, the frame and a download, each
+ * adding latency, with the component's independent calls made one after another and at the same
+ * time.
+ */
+@Slf4j
+@ExtendWith(MockitoExtension.class)
+public class NextPictureLatencyTest {
+	private static final long kLatencyMillis = 300;
+
+	@Mock
+	private S3UploadQueue mockS3Queue;
+
+	@Mock
+	private MeuralTokenComponent mockToken;
+
+	@Mock
+	private GooglePhotosComponent mockGPhotos;
+
+	@Mock
+	private OpenAIComponent mockOpenAI;
+
+	@Mock
+	private JWSTComponent mockJWST;
+
+	@TempDir
+	private File tempDir;
+
+	@Test
+	public void testIndependentCallsOverlap() throws IOException {
+		when(mockToken.getToken()).thenReturn("token");
+		// Warm up class loading and connections so neither timed run pays for it
+		timeNextPicture(BlockingTaskExecutor.create(false), "warmup", Map.of());
+
+		long sequential =
+				timeNextPicture(new BlockingTaskExecutor(Runnable::run), "sequential", delayAll("sequential"));
+		long concurrent = timeNextPicture(BlockingTaskExecutor.create(false), "concurrent", delayAll("concurrent"));
+		log.info("nextPicture sequential: " + sequential + "ms, concurrent: " + concurrent + "ms");
+		// Five slow calls one after another, the playlist lookup, download and upload overlap the
+		// others
+		assertTrue(sequential >= 5 * kLatencyMillis);
+		assertTrue(concurrent < sequential - kLatencyMillis, concurrent + "ms vs " + sequential + "ms");
+	}
+
+	@Test
+	public void testSleepCheckOverlapsDownload() throws IOException {
+		when(mockToken.getToken()).thenReturn("token");
+		timeNextPicture(BlockingTaskExecutor.create(false), "warmup", Map.of());
+
+		long sequential = timeNextPicture(
+				new BlockingTaskExecutor(Runnable::run), "sequential", delaySleepCheckAndDownload("sequential"));
+		long concurrent = timeNextPicture(
+				BlockingTaskExecutor.create(false), "concurrent", delaySleepCheckAndDownload("concurrent"));
+		log.info("nextPicture with slow sleep check and download, sequential: "
+				+ sequential
+				+ "ms, concurrent: "
+				+ concurrent
+				+ "ms");
+		assertTrue(sequential >= 2 * kLatencyMillis);
+		assertTrue(concurrent < sequential - kLatencyMillis / 2, concurrent + "ms vs " + sequential + "ms");
+	}
+
+	private Map<String, Long> delaySleepCheckAndDownload(String name) {
+		return Map.of(
+				"GET /remote/control_check/sleep", kLatencyMillis, "GET /download/" + name + ".jpg", kLatencyMillis);
+	}
+
+	private Map<String, Long> delayAll(String name) {
+		return Map.of(
+				"GET /user/devices",
+				kLatencyMillis,
+				"GET /user/galleries",
+				kLatencyMillis,
+				"GET /remote/control_check/sleep",
+				kLatencyMillis,
+				"GET /download/" + name + ".jpg",
+				kLatencyMillis,
+				"POST /items",
+				kLatencyMillis);
+	}
+
+	/**
+	 * @return time taken to display the next item with empty caches
+	 */
+	private long timeNextPicture(BlockingTaskExecutor executor, String name, Map<String, Long> delays)
+			throws IOException {
+		ImageTransformComponent transformComponent = new ImageTransformComponent();
+		ReflectionTestUtils.setField(transformComponent, "command", "");
+		ReflectionTestUtils.setField(transformComponent, "previewCommand", "");
+		ImageCacheComponent imageCache = new ImageCacheComponent(new SimpleMeterRegistry());
+		ReflectionTestUtils.setField(imageCache, "maxMegabytes", 0L);
+		MeuralComponent component = new MeuralComponent(
+				mockS3Queue,
+				transformComponent,
+				mockToken,
+				imageCache,
+				executor,
+				new HttpClientComponent(new MockEnvironment(), new SimpleMeterRegistry()),
+				new StartupTasks(false, executor),
+				new SimpleMeterRegistry());
+		SchedulerComponent scheduler = new SchedulerComponent(
+				mockGPhotos, component, mockOpenAI, mockJWST, executor, new SimpleMeterRegistry());
+		try (MeuralApiStub stub = new MeuralApiStub("Test Playlist")) {
+			ReflectionTestUtils.setField(component, "apiUrl", stub.getApiUrl());
+			ReflectionTestUtils.setField(component, "playlistName", "Test Playlist");
+			ReflectionTestUtils.setField(component, "meuralOrientation", "vertical");
+			ReflectionTestUtils.setField(component, "deviceCacheMinutes", 60L);
+			ReflectionTestUtils.setField(component, "ipCacheMinutes", 60L);
+			ReflectionTestUtils.setField(component, "playlistCacheMinutes", 60L);
+			ReflectionTestUtils.setField(
+					component, "uploadIndex", new MeuralUploadIndex(new File(tempDir, name + "Uploads")));
+			byte[] content = new byte[64 * 1024];
+			Arrays.fill(content, (byte) name.length());
+			SourceItem item = new SourceItem(name + ".jpg", stub.addDownload(name + ".jpg", content));
+			when(mockGPhotos.nextItem()).thenReturn(Optional.of(item), Optional.empty());
+			scheduler.changeSource(0);
+			delays.forEach(stub::setDelayMillis);
+			MeuralController controller = new MeuralController(component, scheduler, mockOpenAI, mockGPhotos);
+			MockHttpServletResponse servletResponse = new MockHttpServletResponse();
+			long start = System.currentTimeMillis();
+			assertTrue(controller.nextPicture(servletResponse).isSuccessful());
+			long elapsed = System.currentTimeMillis() - start;
+			assertEquals(200, servletResponse.getStatus());
+			assertEquals(1, stub.getPlaylistItems().size());
+			return elapsed;
+		} finally {
+			scheduler.shutdown();
+			component.shutdown();
+			transformComponent.shutdown();
+			executor.close();
+		}
+	}
+}
@@ -19,13 +19,15 @@ public class OpenAIComponentTest {
 
 	@ParameterizedTest
 	@ValueSource(ints = {1, 2, 3})
-	public void testGenerateItem(int mode) {
+	public void testNextItem(int mode) {
 		component.setMode(mode);
 		assertTrue(component.getPrompt().isPresent());
+		// A new prompt throws away anything stocked, so the item is generated now
+		component.updatePrompt(component.getPrompt().get() + " " + mode);
 		String prompt = component.getPrompt().get();
-		Optional<SourceItem> item = component.generateItem();
+		Optional<SourceItem> item = component.nextItem();
 		assertTrue(item.isPresent());
-		assertNotNull(item.get().getUrl());
+		assertTrue(item.get().getTempFile().exists());
 		assertNotEquals(prompt, component.getPrompt().get());
 	}
 }
@@ -0,0 +1,139 @@
+package com.bigboxer23.meural_control;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/** Test stocking, showing and going back through generated images, and keeping them on disk */
+public class OpenAIImagePoolTest {
+	@TempDir
+	private File tempDir;
+
+	private Path stock(OpenAIImagePool pool, String prompt) throws IOException {
+		Path file = pool.newImageFile();
+		Files.writeString(file, prompt);
+		assertTrue(pool.add(file, prompt, pool.getGeneration(), true));
+		return file;
+	}
+
+	private String prompt(Optional<OpenAIImagePool.Image> image) {
+		return image.map(OpenAIImagePool.Image::prompt).orElse(null);
+	}
+
+	@Test
+	public void testNextAndPrevious() throws IOException {
+		OpenAIImagePool pool = new OpenAIImagePool(tempDir, 10);
+		assertTrue(pool.next().isEmpty());
+		stock(pool, "cats");
+		stock(pool, "dogs");
+		stock(pool, "birds");
+		assertEquals(3, pool.getStockSize());
+
+		assertEquals("cats", prompt(pool.next()));
+		assertEquals("dogs", prompt(pool.next()));
+		assertEquals(1, pool.getStockSize());
+		assertEquals("cats", prompt(pool.previous()));
+		assertTrue(pool.previous().isEmpty());
+
+		// Forward walks history before taking from stock
+		assertEquals("dogs", prompt(pool.next()));
+		assertEquals(1, pool.getStockSize());
+		assertEquals("birds", prompt(pool.next()));
+		assertEquals(0, pool.getStockSize());
+		assertTrue(pool.next().isEmpty());
+		assertEquals("dogs", prompt(pool.previous()));
+	}
+
+	@Test
+	public void testStepBack() throws IOException {
+		OpenAIImagePool pool = new OpenAIImagePool(tempDir, 10);
+		stock(pool, "cats");
+		stock(pool, "dogs");
+		pool.next();
+		pool.next();
+		pool.stepBack();
+		assertEquals(1, pool.getStockSize());
+		assertEquals("dogs", prompt(pool.next()));
+
+		pool.previous();
+		pool.next();
+		pool.stepBack();
+		assertEquals(0, pool.getStockSize());
+		assertEquals("dogs", prompt(pool.next()));
+	}
+
+	@Test
+	public void testFlush() throws IOException {
+		OpenAIImagePool pool = new OpenAIImagePool(tempDir, 10);
+		stock(pool, "cats");
+		pool.next();
+		Path stocked = stock(pool, "dogs");
+		long generation = pool.getGeneration();
+		Path generating = pool.newImageFile();
+		pool.flush();
+		assertEquals(0, pool.getStockSize());
+		assertFalse(Files.exists(stocked));
+
+		// Generated with the old parameters, so not stocked
+		assertFalse(pool.add(generating, "dogs", generation, true));
+		assertFalse(Files.exists(generating));
+		assertEquals(0, pool.getStockSize());
+
+		// History is kept
+		stock(pool, "birds");
+		assertEquals("birds", prompt(pool.next()));
+		assertEquals("cats", prompt(pool.previous()));
+	}
+
+	@Test
+	public void testHistorySize() throws IOException {
+		OpenAIImagePool pool = new OpenAIImagePool(tempDir, 2);
+		Path first = stock(pool, "cats");
+		stock(pool, "dogs");
+		stock(pool, "birds");
+		pool.next();
+		pool.next();
+		pool.next();
+		assertFalse(Files.exists(first));
+		assertEquals("dogs", prompt(pool.previous()));
+		assertTrue(pool.previous().isEmpty());
+	}
+
+	@Test
+	public void testPersisted() throws IOException {
+		OpenAIImagePool pool = new OpenAIImagePool(tempDir, 10);
+		stock(pool, "cats");
+		stock(pool, "dogs\nand\tmore dogs");
+		stock(pool, "birds");
+		pool.next();
+		pool.next();
+		pool.previous();
+		Path orphan = pool.newImageFile();
+
+		pool = new OpenAIImagePool(tempDir, 10);
+		assertFalse(Files.exists(orphan));
+		assertEquals(1, pool.getStockSize());
+		assertEquals(3, pool.getStockedToday());
+		assertEquals("dogs and more dogs", prompt(pool.next()));
+		assertEquals("birds", prompt(pool.next()));
+		assertEquals(
+				"dogs\nand\tmore dogs",
+				Files.readString(pool.getFile(pool.previous().orElseThrow()).toPath()));
+	}
+
+	@Test
+	public void testBudget() throws IOException {
+		OpenAIImagePool pool = new OpenAIImagePool(tempDir, 10);
+		stock(pool, "cats");
+		Path file = pool.newImageFile();
+		assertTrue(pool.add(file, "dogs", pool.getGeneration(), false));
+		assertEquals(1, pool.getStockedToday());
+		assertEquals(2, pool.getStockSize());
+	}
+}
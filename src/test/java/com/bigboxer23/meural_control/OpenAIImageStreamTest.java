@@ -0,0 +1,172 @@
+package com.bigboxer23.meural_control;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.bigboxer23.meural_control.data.OpenAIImageGenerationResponse;
+import com.squareup.moshi.Moshi;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Base64;
+import java.util.List;
+import java.util.Random;
+import lombok.extern.slf4j.Slf4j;
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.Okio;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/** Test generated images are decoded from OpenAI's response as it's read */
+@Slf4j
+public class OpenAIImageStreamTest {
+	/** About the size of a high quality 1536x1024 png */
+	private static final int kImageBytes = 3 * 1024 * 1024;
+
+	@TempDir
+	private File tempDir;
+
+	private byte[] createImage(int size) {
+		byte[] image = new byte[size];
+		new Random(size).nextBytes(image);
+		return image;
+	}
+
+	/** A generation response with the image between other fields, like OpenAI sends */
+	private File createResponse(byte[] image, boolean escapeSlashes) throws IOException {
+		String base64 = Base64.getEncoder().encodeToString(image);
+		if (escapeSlashes) {
+			base64 = base64.replace("/", "\\/");
+		}
+		String json = "{\"created\":1713833628,\"background\":\"opaque\",\"data\":[{\"b64_json\":\""
+				+ base64
+				+ "\",\"revised_prompt\":\"cats\"}],\"output_format\":\"png\",\"quality\":\"high\","
+				+ "\"size\":\"1536x1024\",\"usage\":{\"input_tokens\":50,\"output_tokens\":6208}}";
+		File file = new File(tempDir, "response" + System.nanoTime() + ".json");
+		Files.writeString(file.toPath(), json, StandardCharsets.UTF_8);
+		return file;
+	}
+
+	private BufferedSource open(File file) throws IOException {
+		return Okio.buffer(Okio.source(file));
+	}
+
+	private BufferedSource open(String json) {
+		return new Buffer().writeUtf8(json);
+	}
+
+	@Test
+	public void testWriteImage() throws IOException {
+		byte[] image = createImage(100_000);
+		for (boolean escapeSlashes : new boolean[] {false, true}) {
+			File output = new File(tempDir, "image" + escapeSlashes + ".png");
+			try (BufferedSource json = open(createResponse(image, escapeSlashes))) {
+				assertTrue(OpenAIComponent.writeImage(json, output.toPath()));
+			}
+			assertArrayEquals(image, Files.readAllBytes(output.toPath()));
+		}
+	}
+
+	@Test
+	public void testNoImage() throws IOException {
+		File output = new File(tempDir, "image.png");
+		assertFalse(OpenAIComponent.writeImage(open("{\"created\":1,\"data\":[]}"), output.toPath()));
+		assertFalse(OpenAIComponent.writeImage(open("{\"data\":[{\"url\":\"x\"}]}"), output.toPath()));
+		assertThrows(
+				IOException.class,
+				() -> OpenAIComponent.writeImage(open("{\"data\":[{\"b64_json\":\"AAA"), output.toPath()));
+	}
+
+	@Test
+	public void testWriteImages() throws IOException {
+		byte[] first = createImage(1000);
+		byte[] second = createImage(2000);
+		String json = "{\"data\":[{\"b64_json\":\""
+				+ Base64.getEncoder().encodeToString(first)
+				+ "\"},{\"url\":\"x\"},{\"revised_prompt\":\"dogs\",\"b64_json\":\""
+				+ Base64.getEncoder().encodeToString(second)
+				+ "\"},{\"b64_json\":\"AAAA\"}]}";
+		int[] count = {0};
+		List<Path> written = OpenAIComponent.writeImages(
+				open(json), 2, () -> new File(tempDir, "image" + count[0]++ + ".jpg").toPath());
+		assertEquals(2, written.size());
+		assertArrayEquals(first, Files.readAllBytes(written.get(0)));
+		assertArrayEquals(second, Files.readAllBytes(written.get(1)));
+
+		// Images already written are deleted if a later one fails
+		String truncated =
+				"{\"data\":[{\"b64_json\":\"" + Base64.getEncoder().encodeToString(first) + "\"},{\"b64_json\":\"AAA";
+		assertThrows(
+				IOException.class,
+				() -> OpenAIComponent.writeImages(
+						open(truncated), 2, () -> new File(tempDir, "image" + count[0]++ + ".jpg").toPath()));
+		assertFalse(new File(tempDir, "image2.jpg").exists());
+		assertFalse(new File(tempDir, "image3.jpg").exists());
+	}
+
+	/**
+	 * Compare memory allocated saving the image by streaming it, and by reading the whole response
+	 * then decoding the whole image
+	 */
+	@Test
+	public void testStreamingAllocation() throws IOException {
+		File response = createResponse(createImage(kImageBytes), false);
+		File output = new File(tempDir, "image.png");
+		// Warm up so class loading isn't counted
+		streamed(response, output);
+		buffered(response, output);
+
+		long streamed = Long.MAX_VALUE;
+		long buffered = Long.MAX_VALUE;
+		for (int ai = 0; ai < 3; ai++) {
+			streamed = Math.min(streamed, streamed(response, output));
+			buffered = Math.min(buffered, buffered(response, output));
+		}
+		log.info("saving a "
+				+ response.length()
+				+ " byte response allocated "
+				+ streamed
+				+ " bytes streamed, "
+				+ buffered
+				+ " bytes buffered");
+		assertEquals(kImageBytes, output.length());
+		// Each base64 byte is held as a char, then decoded into a whole image
+		assertTrue(buffered > 2L * kImageBytes);
+		// Only fixed size buffers, whatever the image's size
+		assertTrue(streamed < 1024 * 1024, streamed + " bytes");
+	}
+
+	/**
+	 * @return bytes allocated by this thread saving the image with the streaming decoder
+	 */
+	private long streamed(File response, File output) throws IOException {
+		long start = getAllocatedBytes();
+		try (BufferedSource json = open(response)) {
+			assertTrue(OpenAIComponent.writeImage(json, output.toPath()));
+		}
+		return getAllocatedBytes() - start;
+	}
+
+	/**
+	 * @return bytes allocated by this thread saving the image by deserializing the whole response
+	 */
+	private long buffered(File response, File output) throws IOException {
+		long start = getAllocatedBytes();
+		try (BufferedSource json = open(response)) {
+			OpenAIImageGenerationResponse parsed = new Moshi.Builder()
+					.build()
+					.adapter(OpenAIImageGenerationResponse.class)
+					.fromJson(json);
+			parsed.getData()[0].toFile(output.toString());
+		}
+		return getAllocatedBytes() - start;
+	}
+
+	private long getAllocatedBytes() {
+		return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+				.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+}
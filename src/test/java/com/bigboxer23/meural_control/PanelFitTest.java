@@ -0,0 +1,220 @@
+package com.bigboxer23.meural_control;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+import com.bigboxer23.meural_control.data.SourceItem;
+import com.bigboxer23.meural_control.transform.JavaImageTransformer;
+import com.bigboxer23.meural_control.transform.TransformedImage;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Optional;
+import java.util.Random;
+import javax.imageio.ImageIO;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.test.util.ReflectionTestUtils;
+
+/** Test images are shrunk to the frame's panel before they're sent to it or uploaded */
+@Slf4j
+@ExtendWith(MockitoExtension.class)
+public class PanelFitTest {
+	/** Roughly a 20Mbit/s Wi-Fi link to the frame */
+	private static final long kMillisPerMegabyte = 400;
+
+	@Mock
+	private S3UploadQueue mockS3Queue;
+
+	@Mock
+	private MeuralTokenComponent mockToken;
+
+	@TempDir
+	private File tempDir;
+
+	private ImageTransformComponent transformComponent;
+
+	@BeforeEach
+	public void setup() {
+		transformComponent = new ImageTransformComponent();
+		ReflectionTestUtils.setField(transformComponent, "command", "");
+		ReflectionTestUtils.setField(transformComponent, "previewCommand", "");
+		ReflectionTestUtils.setField(transformComponent, "engine", "java");
+		ReflectionTestUtils.setField(transformComponent, "panelResolution", "1920x1080");
+		ReflectionTestUtils.setField(transformComponent, "orientation", "horizontal");
+	}
+
+	@AfterEach
+	public void tearDown() {
+		transformComponent.shutdown();
+	}
+
+	/** A photo sized image, noisy so it compresses like one */
+	private File createImage(int width, int height) throws IOException {
+		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		Random random = new Random(width);
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				image.setRGB(x, y, (x * 127 / width) << 16 | (y * 127 / height) << 8 | random.nextInt(0x808080));
+			}
+		}
+		File file = File.createTempFile("photo", ".jpg", tempDir);
+		ImageIO.write(image, "jpg", file);
+		return file;
+	}
+
+	@Test
+	public void testPanelSize() {
+		assertEquals(Optional.of(new Dimension(1920, 1080)), transformComponent.getPanelSize());
+		ReflectionTestUtils.setField(transformComponent, "orientation", "vertical");
+		assertEquals(Optional.of(new Dimension(1080, 1920)), transformComponent.getPanelSize());
+		ReflectionTestUtils.setField(transformComponent, "panelResolution", "1080x1920");
+		assertEquals(Optional.of(new Dimension(1080, 1920)), transformComponent.getPanelSize());
+		ReflectionTestUtils.setField(transformComponent, "panelResolution", "");
+		assertEquals(Optional.empty(), transformComponent.getPanelSize());
+		assertEquals("", transformComponent.getPanelFit());
+		ReflectionTestUtils.setField(transformComponent, "panelResolution", "big");
+		assertEquals(Optional.empty(), transformComponent.getPanelSize());
+	}
+
+	@Test
+	public void testFittedSizeCoversPanel() {
+		assertEquals(Optional.of(new Dimension(1920, 1440)), transformComponent.getFittedSize(4000, 3000));
+		assertEquals(Optional.of(new Dimension(1920, 2560)), transformComponent.getFittedSize(3000, 4000));
+		ReflectionTestUtils.setField(transformComponent, "orientation", "vertical");
+		assertEquals(Optional.of(new Dimension(2560, 1920)), transformComponent.getFittedSize(4000, 3000));
+		// Never enlarged, and not worth re-encoding when already close to the panel's size
+		assertEquals(Optional.empty(), transformComponent.getFittedSize(1000, 800));
+		assertEquals(Optional.empty(), transformComponent.getFittedSize(1140, 2000));
+		assertEquals(Optional.empty(), transformComponent.getFittedSize(0, 0));
+	}
+
+	@Test
+	public void testFullSizeDownloadedForTransformCommands() {
+		assertEquals(Optional.of(new Dimension(1920, 1440)), transformComponent.getDownloadSize(4000, 3000));
+		// Pixel geometry in commands is relative to the full size image
+		ReflectionTestUtils.setField(transformComponent, "command", "convert %s -crop 960x1440+0+0 %s");
+		assertEquals(Optional.empty(), transformComponent.getDownloadSize(4000, 3000));
+		ReflectionTestUtils.setField(transformComponent, "command", "");
+		ReflectionTestUtils.setField(transformComponent, "previewCommand", "convert %s -crop 960x1440+0+0 %s");
+		assertEquals(Optional.empty(), transformComponent.getDownloadSize(4000, 3000));
+	}
+
+	@Test
+	public void testFitToPanel() throws IOException {
+		File original = createImage(4000, 3000);
+		try (TransformedImage image = transformComponent.fitToPanel(original)) {
+			assertTrue(image.isTransformed());
+			assertEquals(Optional.of(new Dimension(1920, 1440)), JavaImageTransformer.readSize(image.getFile()));
+			assertTrue(image.getFile().length() < original.length());
+		}
+		File small = createImage(1600, 900);
+		try (TransformedImage image = transformComponent.fitToPanel(small)) {
+			assertFalse(image.isTransformed());
+			assertEquals(small, image.getFile());
+		}
+		File notImage = File.createTempFile("item", ".jpg", tempDir);
+		try (TransformedImage image = transformComponent.fitToPanel(notImage)) {
+			assertFalse(image.isTransformed());
+		}
+	}
+
+	@Test
+	public void testPreviewBytesAndLatency() throws IOException {
+		when(mockToken.getToken()).thenReturn("token");
+		File original = createImage(4000, 3000);
+		// Warm up so neither timed preview pays for class loading or connecting
+		preview(original, "");
+
+		long[] full = preview(original, "");
+		long[] fitted = preview(original, "1920x1080");
+		log.info("preview of "
+				+ original.length()
+				+ " byte image, full size: "
+				+ full[0]
+				+ " bytes in "
+				+ full[1]
+				+ "ms, fitted to panel: "
+				+ fitted[0]
+				+ " bytes in "
+				+ fitted[1]
+				+ "ms");
+		assertTrue(full[0] > original.length());
+		assertTrue(fitted[0] < full[0] / 2, fitted[0] + " vs " + full[0] + " bytes");
+		assertTrue(fitted[1] < full[1], fitted[1] + "ms vs " + full[1] + "ms");
+	}
+
+	/**
+	 * @return bytes sent to the frame and time taken to preview the image on it
+	 */
+	private long[] preview(File original, String panelResolution) throws IOException {
+		ReflectionTestUtils.setField(transformComponent, "panelResolution", panelResolution);
+		try (MeuralApiStub stub = new MeuralApiStub("Test Playlist");
+				BlockingTaskExecutor executor = BlockingTaskExecutor.create(false)) {
+			stub.setMillisPerMegabyte(kMillisPerMegabyte);
+			MeuralComponent component = createComponent(stub, executor);
+			try {
+				SourceItem item = new SourceItem("photo.jpg", null);
+				item.setTempFile(original);
+				item.setCleanupTempFile(false);
+				long start = System.currentTimeMillis();
+				assertTrue(component.changePictureWithPreview(item, false).isSuccessful());
+				long elapsed = System.currentTimeMillis() - start;
+				assertTrue(original.exists());
+				return new long[] {stub.getRequestBytes("POST /remote/postcard"), elapsed};
+			} finally {
+				component.shutdown();
+			}
+		}
+	}
+
+	@Test
+	public void testUploadFittedToPanel() throws IOException {
+		when(mockToken.getToken()).thenReturn("token");
+		File original = createImage(4000, 3000);
+		try (MeuralApiStub stub = new MeuralApiStub("Test Playlist");
+				BlockingTaskExecutor executor = BlockingTaskExecutor.create(false)) {
+			MeuralComponent component = createComponent(stub, executor);
+			try {
+				SourceItem item = new SourceItem("photo.jpg", null);
+				item.setTempFile(File.createTempFile("item", ".jpg", tempDir));
+				Files.copy(original.toPath(), item.getTempFile().toPath(), StandardCopyOption.REPLACE_EXISTING);
+				assertTrue(component.changePicture(item).isSuccessful());
+				assertTrue(stub.getUploadedBytes() < original.length() / 2);
+			} finally {
+				component.shutdown();
+			}
+		}
+	}
+
+	private MeuralComponent createComponent(MeuralApiStub stub, BlockingTaskExecutor executor) {
+		ImageCacheComponent imageCache = new ImageCacheComponent(new SimpleMeterRegistry());
+		ReflectionTestUtils.setField(imageCache, "maxMegabytes", 0L);
+		MeuralComponent component = new MeuralComponent(
+				mockS3Queue,
+				transformComponent,
+				mockToken,
+				imageCache,
+				executor,
+				new HttpClientComponent(new MockEnvironment(), new SimpleMeterRegistry()),
+				new StartupTasks(false, executor),
+				new SimpleMeterRegistry());
+		ReflectionTestUtils.setField(component, "apiUrl", stub.getApiUrl());
+		ReflectionTestUtils.setField(component, "playlistName", "Test Playlist");
+		ReflectionTestUtils.setField(component, "meuralOrientation", "horizontal");
+		ReflectionTestUtils.setField(
+				component, "uploadIndex", new MeuralUploadIndex(new File(tempDir, "uploads" + System.nanoTime())));
+		return component;
+	}
+}
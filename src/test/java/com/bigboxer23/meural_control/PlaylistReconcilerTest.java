@@ -0,0 +1,130 @@
+package com.bigboxer23.meural_control;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+/** Test deleting playlist items in the background */
+public class PlaylistReconcilerTest {
+	private void awaitEmpty(PlaylistReconciler reconciler) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (reconciler.getPendingCount() > 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+		assertEquals(0, reconciler.getPendingCount());
+	}
+
+	@Test
+	public void testParallelismBounded() throws InterruptedException {
+		AtomicInteger running = new AtomicInteger();
+		AtomicInteger maxRunning = new AtomicInteger();
+		Set<Integer> deleted = ConcurrentHashMap.newKeySet();
+		try (PlaylistReconciler reconciler = new PlaylistReconciler(
+				itemId -> {
+					maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+					try {
+						Thread.sleep(20);
+					} catch (InterruptedException e) {
+						throw new IOException(e);
+					}
+					running.decrementAndGet();
+					deleted.add(itemId);
+				},
+				3,
+				new SimpleMeterRegistry())) {
+			reconciler.deleteItems(List.of(1, 2, 3, 4, 5, 6, 7, 8, 9, 10));
+			awaitEmpty(reconciler);
+			assertEquals(10, deleted.size());
+			assertTrue(maxRunning.get() <= 3);
+			assertTrue(maxRunning.get() > 1);
+		}
+	}
+
+	@Test
+	public void testQueuedItemsNotDuplicated() throws InterruptedException {
+		CountDownLatch release = new CountDownLatch(1);
+		AtomicInteger deletes = new AtomicInteger();
+		SimpleMeterRegistry registry = new SimpleMeterRegistry();
+		try (PlaylistReconciler reconciler = new PlaylistReconciler(
+				itemId -> {
+					deletes.incrementAndGet();
+					try {
+						release.await(5, TimeUnit.SECONDS);
+					} catch (InterruptedException e) {
+						throw new IOException(e);
+					}
+				},
+				2,
+				registry)) {
+			reconciler.deleteItems(List.of(1, 2));
+			reconciler.deleteItems(List.of(1, 2));
+			assertTrue(reconciler.isPending(1));
+			assertEquals(
+					2, registry.get("meural.playlist.cleanup.pending").gauge().value());
+			release.countDown();
+			awaitEmpty(reconciler);
+			assertEquals(2, deletes.get());
+			assertFalse(reconciler.isPending(1));
+		}
+	}
+
+	@Test
+	public void testFailedDeleteRetriedNextTime() throws InterruptedException {
+		AtomicInteger attempts = new AtomicInteger();
+		try (PlaylistReconciler reconciler = new PlaylistReconciler(
+				itemId -> {
+					if (attempts.incrementAndGet() == 1) {
+						throw new IOException("failed");
+					}
+				},
+				1,
+				new SimpleMeterRegistry())) {
+			reconciler.deleteItems(List.of(1));
+			awaitEmpty(reconciler);
+			reconciler.deleteItems(List.of(1));
+			awaitEmpty(reconciler);
+			assertEquals(2, attempts.get());
+		}
+	}
+
+	/**
+	 * The cached playlist drops items once queued, so a failed one must be retried without being
+	 * asked again
+	 */
+	@Test
+	public void testFailedDeleteRetriedWithNextItems() throws InterruptedException {
+		Set<Integer> failing = ConcurrentHashMap.newKeySet();
+		failing.add(1);
+		List<Integer> deleted = new CopyOnWriteArrayList<>();
+		try (PlaylistReconciler reconciler = new PlaylistReconciler(
+				itemId -> {
+					if (failing.remove(itemId)) {
+						throw new IOException("failed");
+					}
+					deleted.add(itemId);
+				},
+				1,
+				new SimpleMeterRegistry())) {
+			reconciler.deleteItems(List.of(1));
+			awaitEmpty(reconciler);
+			assertTrue(deleted.isEmpty());
+			reconciler.deleteItems(List.of(2));
+			awaitEmpty(reconciler);
+			assertEquals(Set.of(1, 2), Set.copyOf(deleted));
+			// Not retried again once it's gone
+			reconciler.deleteItems(List.of(3));
+			awaitEmpty(reconciler);
+			assertEquals(3, deleted.size());
+			assertEquals(3, deleted.get(2));
+		}
+	}
+}
@@ -0,0 +1,299 @@
+package com.bigboxer23.meural_control;
+
+import com.bigboxer23.meural_control.data.S3ArchiveEntry;
+import com.squareup.moshi.Moshi;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Local stand in for an S3 compatible service, keeping objects put into it in memory. Supports
+ * single puts, copies within the stand in and multipart uploads. Clients need path style
+ * addressing, like http://127.0.0.1:port/bucket/key.
+ */
+public class S3StandIn implements AutoCloseable {
+	private final HttpServer server;
+
+	/** Object content, by "bucket/key" */
+	private final Map<String, byte[]> objects = new ConcurrentHashMap<>();
+
+	private final AtomicInteger heads = new AtomicInteger();
+
+	private final AtomicInteger failures = new AtomicInteger();
+
+	private final AtomicInteger puts = new AtomicInteger();
+
+	private final AtomicInteger copies = new AtomicInteger();
+
+	private final AtomicInteger nextUploadId = new AtomicInteger();
+
+	/** Parts of multipart uploads in progress, by upload id then part number */
+	private final Map<String, Map<Integer, byte[]>> uploads = new ConcurrentHashMap<>();
+
+	private final AtomicInteger parts = new AtomicInteger();
+
+	private final AtomicInteger concurrentParts = new AtomicInteger();
+
+	private final AtomicInteger maxConcurrentParts = new AtomicInteger();
+
+	private volatile long delayMillis;
+
+	private volatile long bytesPerSecond;
+
+	public S3StandIn() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.createContext("/", this::handle);
+		server.start();
+	}
+
+	public String getEndpoint() {
+		return "http://127.0.0.1:" + server.getAddress().getPort();
+	}
+
+	/** Deny the next puts, with a status the client doesn't retry itself */
+	public void failNext(int count) {
+		failures.set(count);
+	}
+
+	/** Delay every response, to simulate a slow connection */
+	public void setDelayMillis(long delayMillis) {
+		this.delayMillis = delayMillis;
+	}
+
+	/** Limit how fast each request's body is received, like a single connection to S3 */
+	public void setBytesPerSecond(long bytesPerSecond) {
+		this.bytesPerSecond = bytesPerSecond;
+	}
+
+	public Map<String, byte[]> getObjects() {
+		return objects;
+	}
+
+	/** Content named by the archive index entry at "bucket/key" */
+	public byte[] getIndexedContent(String object) throws IOException {
+		S3ArchiveEntry entry = new Moshi.Builder()
+				.build()
+				.adapter(S3ArchiveEntry.class)
+				.fromJson(new String(objects.get(object), StandardCharsets.UTF_8));
+		return objects.get(object.substring(0, object.indexOf('/') + 1) + entry.getContentKey());
+	}
+
+	public int getHeadCount() {
+		return heads.get();
+	}
+
+	/**
+	 * @return number of single put requests, including failed ones, not counting copies
+	 */
+	public int getPutCount() {
+		return puts.get();
+	}
+
+	/**
+	 * @return number of copy requests
+	 */
+	public int getCopyCount() {
+		return copies.get();
+	}
+
+	/**
+	 * @return number of multipart upload parts received
+	 */
+	public int getPartCount() {
+		return parts.get();
+	}
+
+	/**
+	 * @return most multipart upload parts received at once
+	 */
+	public int getMaxConcurrentParts() {
+		return maxConcurrentParts.get();
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		try {
+			String object = exchange.getRequestURI().getPath().substring(1);
+			Map<String, String> query = getQuery(exchange);
+			String uploadId = query.get("uploadId");
+			boolean part = uploadId != null && query.containsKey("partNumber");
+			if (part) {
+				maxConcurrentParts.accumulateAndGet(concurrentParts.incrementAndGet(), Math::max);
+			}
+			byte[] body;
+			try {
+				body = readBody(exchange);
+				long delay = delayMillis + (bytesPerSecond > 0 ? body.length * 1000L / bytesPerSecond : 0);
+				if (delay > 0) {
+					Thread.sleep(delay);
+				}
+			} finally {
+				if (part) {
+					concurrentParts.decrementAndGet();
+				}
+			}
+			switch (exchange.getRequestMethod()) {
+				case "POST" -> {
+					if (query.containsKey("uploads")) {
+						String id = String.valueOf(nextUploadId.incrementAndGet());
+						uploads.put(id, new ConcurrentHashMap<>());
+						respond(
+								exchange,
+								200,
+								"<InitiateMultipartUploadResult><Bucket>"
+										+ object.substring(0, object.indexOf('/'))
+										+ "</Bucket><Key>"
+										+ object.substring(object.indexOf('/') + 1)
+										+ "</Key><UploadId>"
+										+ id
+										+ "</UploadId></InitiateMultipartUploadResult>");
+						return;
+					}
+					Map<Integer, byte[]> uploadParts = uploads.remove(uploadId);
+					if (uploadParts == null) {
+						respond(exchange, 404, "<Error><Code>NoSuchUpload</Code></Error>");
+						return;
+					}
+					ByteArrayOutputStream content = new ByteArrayOutputStream();
+					for (int i = 1; i <= uploadParts.size(); i++) {
+						content.write(uploadParts.get(i));
+					}
+					objects.put(object, content.toByteArray());
+					respond(
+							exchange,
+							200,
+							"<CompleteMultipartUploadResult><Key>"
+									+ object
+									+ "</Key><ETag>\"complete\"</ETag></CompleteMultipartUploadResult>");
+				}
+				case "PUT" -> {
+					if (part) {
+						parts.incrementAndGet();
+						uploads.get(uploadId).put(Integer.parseInt(query.get("partNumber")), body);
+						exchange.getResponseHeaders().add("ETag", "\"part" + query.get("partNumber") + "\"");
+						exchange.sendResponseHeaders(200, -1);
+						return;
+					}
+					String copySource = exchange.getRequestHeaders().getFirst("x-amz-copy-source");
+					if (copySource != null) {
+						copies.incrementAndGet();
+						byte[] source = objects.get(URLDecoder.decode(copySource, StandardCharsets.UTF_8)
+								.replaceFirst("^/", ""));
+						if (source == null) {
+							respond(exchange, 404, "<Error><Code>NoSuchKey</Code><Message>missing</Message></Error>");
+							return;
+						}
+						objects.put(object, source);
+						respond(
+								exchange,
+								200,
+								"<CopyObjectResult><ETag>\"copy\"</ETag><LastModified>2024-01-01T00:00:00.000Z"
+										+ "</LastModified></CopyObjectResult>");
+						return;
+					}
+					puts.incrementAndGet();
+					if (failures.getAndUpdate(count -> Math.max(0, count - 1)) > 0) {
+						respond(exchange, 403, "<Error><Code>AccessDenied</Code><Message>denied</Message></Error>");
+						return;
+					}
+					objects.put(object, body);
+					exchange.getResponseHeaders().add("ETag", "\"" + Integer.toHexString(object.hashCode()) + "\"");
+					exchange.sendResponseHeaders(200, -1);
+				}
+				case "GET" -> {
+					byte[] content = objects.get(object);
+					if (content == null) {
+						respond(exchange, 404, "<Error><Code>NoSuchKey</Code><Message>missing</Message></Error>");
+						return;
+					}
+					exchange.sendResponseHeaders(200, content.length);
+					exchange.getResponseBody().write(content);
+				}
+				case "HEAD" -> {
+					heads.incrementAndGet();
+					byte[] content = objects.get(object);
+					if (content == null) {
+						exchange.sendResponseHeaders(404, -1);
+						return;
+					}
+					exchange.getResponseHeaders().add("Content-Length", String.valueOf(content.length));
+					exchange.sendResponseHeaders(200, -1);
+				}
+				case "DELETE" -> {
+					uploads.remove(uploadId);
+					exchange.sendResponseHeaders(204, -1);
+				}
+				default -> respond(exchange, 405, "<Error><Code>MethodNotAllowed</Code></Error>");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private Map<String, String> getQuery(HttpExchange exchange) {
+		Map<String, String> query = new HashMap<>();
+		String raw = exchange.getRequestURI().getRawQuery();
+		if (raw != null) {
+			for (String parameter : raw.split("&")) {
+				String[] parts = parameter.split("=", 2);
+				query.put(parts[0], parts.length > 1 ? URLDecoder.decode(parts[1], StandardCharsets.UTF_8) : "");
+			}
+		}
+		return query;
+	}
+
+	/** Read the body, undoing the aws-chunked encoding the SDK uses to send checksums */
+	private byte[] readBody(HttpExchange exchange) throws IOException {
+		InputStream in = exchange.getRequestBody();
+		if (exchange.getRequestHeaders().getFirst("x-amz-decoded-content-length") == null) {
+			return in.readAllBytes();
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		while (true) {
+			String header = readLine(in);
+			int size = Integer.parseInt(header.split(";")[0].trim(), 16);
+			if (size == 0) {
+				// Trailing checksum headers
+				in.readAllBytes();
+				return out.toByteArray();
+			}
+			out.write(in.readNBytes(size));
+			readLine(in);
+		}
+	}
+
+	private String readLine(InputStream in) throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		int read;
+		while ((read = in.read()) != -1 && read != '\n') {
+			if (read != '\r') {
+				line.write(read);
+			}
+		}
+		return line.toString(StandardCharsets.US_ASCII);
+	}
+
+	private void respond(HttpExchange exchange, int code, String body) throws IOException {
+		byte[] response = body.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().add("Content-Type", "application/xml");
+		exchange.sendResponseHeaders(code, response.length);
+		exchange.getResponseBody().write(response);
+	}
+
+	@Override
+	public void close() {
+		server.stop(0);
+	}
+}
@@ -0,0 +1,245 @@
+package com.bigboxer23.meural_control;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.bigboxer23.meural_control.data.SourceItem;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+/** Test single and multipart uploads against a local stand in for S3 */
+@Slf4j
+public class S3UploadComponentStandInTest {
+	private static final int kMB = 1024 * 1024;
+
+	@TempDir
+	private File tempDir;
+
+	private S3StandIn s3;
+
+	@BeforeAll
+	public static void setupCredentials() {
+		System.setProperty("aws.accessKeyId", "test");
+		System.setProperty("aws.secretAccessKey", "test");
+	}
+
+	@BeforeEach
+	public void setup() throws IOException {
+		s3 = new S3StandIn();
+	}
+
+	@AfterEach
+	public void tearDown() {
+		s3.close();
+	}
+
+	private S3UploadComponent createComponent(boolean multipart) {
+		return createComponent(multipart, new SimpleMeterRegistry());
+	}
+
+	private S3UploadComponent createComponent(boolean multipart, SimpleMeterRegistry registry) {
+		S3UploadComponent component = new S3UploadComponent(registry);
+		ReflectionTestUtils.setField(component, "bucketName", "bucket");
+		ReflectionTestUtils.setField(component, "region", "us-east-1");
+		ReflectionTestUtils.setField(component, "endpoint", s3.getEndpoint());
+		ReflectionTestUtils.setField(component, "multipart", multipart);
+		ReflectionTestUtils.setField(component, "partSizeMegabytes", 5L);
+		ReflectionTestUtils.setField(component, "multipartParallelism", 4);
+		ReflectionTestUtils.setField(component, "checksumAlgorithm", "CRC32");
+		return component;
+	}
+
+	private SourceItem createItem(String name, int size) throws IOException {
+		byte[] content = new byte[size];
+		new Random(size).nextBytes(content);
+		File file = new File(tempDir, name);
+		Files.write(file.toPath(), content);
+		SourceItem item = new SourceItem(name, null);
+		item.setTempFile(file);
+		return item;
+	}
+
+	private byte[] getUploaded(String key) throws IOException {
+		return s3.getIndexedContent("bucket/" + key);
+	}
+
+	@Test
+	public void testSinglePut() throws IOException {
+		S3UploadComponent component = createComponent(false);
+		try {
+			SourceItem item = createItem("single.jpg", 3 * kMB);
+			String key = component.uploadItem(item);
+			assertNotNull(key);
+			assertArrayEquals(Files.readAllBytes(item.getTempFile().toPath()), getUploaded(key));
+			// Content is put, then the dated entry naming it
+			assertEquals(2, s3.getPutCount());
+			assertEquals(0, s3.getCopyCount());
+			assertEquals(0, s3.getPartCount());
+		} finally {
+			component.close();
+		}
+	}
+
+	@Test
+	public void testMultipart() throws IOException {
+		S3UploadComponent component = createComponent(true);
+		try {
+			SourceItem item = createItem("large.jpg", 22 * kMB);
+			String key = component.uploadItem(item);
+			assertNotNull(key);
+			assertArrayEquals(Files.readAllBytes(item.getTempFile().toPath()), getUploaded(key));
+			// Only the dated entry is a single put
+			assertEquals(1, s3.getPutCount());
+			assertEquals(5, s3.getPartCount());
+			assertTrue(s3.getMaxConcurrentParts() <= 4);
+
+			// Small files aren't split
+			String smallKey = component.uploadItem(createItem("small.jpg", kMB));
+			assertNotNull(smallKey);
+			assertEquals(kMB, getUploaded(smallKey).length);
+			assertEquals(5, s3.getPartCount());
+		} finally {
+			component.close();
+		}
+	}
+
+	@Test
+	public void testSameContentUploadedOnce() throws IOException {
+		SimpleMeterRegistry registry = new SimpleMeterRegistry();
+		S3UploadComponent component = createComponent(false, registry);
+		S3UploadComponent restarted = createComponent(false, new SimpleMeterRegistry());
+		try {
+			SourceItem item = createItem("art.jpg", kMB);
+			String first = component.uploadItem(item);
+			SourceItem again = new SourceItem("art again.jpg", null);
+			again.setTempFile(item.getTempFile());
+			again.setContentHash(MeuralUploadIndex.hash(item.getTempFile()));
+			String second = component.uploadItem(again);
+			assertNotEquals(first, second);
+			// Both dated entries name the content, which was only stored once
+			assertArrayEquals(Files.readAllBytes(item.getTempFile().toPath()), getUploaded(first));
+			assertArrayEquals(getUploaded(first), getUploaded(second));
+			assertEquals(3, s3.getPutCount());
+			assertEquals(0, s3.getCopyCount());
+			assertEquals(3, s3.getObjects().size());
+			assertTrue(s3.getObjects().get("bucket/" + second).length < 1024);
+			assertEquals(1, s3.getHeadCount());
+			assertEquals(
+					1,
+					registry.get("s3.upload.content")
+							.tag("result", "uploaded")
+							.counter()
+							.count());
+			assertEquals(
+					1,
+					registry.get("s3.upload.content")
+							.tag("result", "deduplicated")
+							.counter()
+							.count());
+			assertEquals(
+					kMB,
+					registry.get("s3.upload.deduplicated.bytes")
+							.functionCounter()
+							.count());
+
+			// Without a local record, the bucket is checked
+			restarted.uploadItem(createItem("art.jpg", kMB));
+			assertEquals(4, s3.getObjects().size());
+			assertEquals(2, s3.getHeadCount());
+		} finally {
+			component.close();
+			restarted.close();
+		}
+	}
+
+	@Test
+	public void testContentKeyFromContentType() throws IOException {
+		S3UploadComponent component = createComponent(false);
+		try {
+			SourceItem item = createItem("art.jpg", kMB);
+			File jpeg = new File(tempDir, "art.JPEG");
+			Files.copy(item.getTempFile().toPath(), jpeg.toPath());
+			SourceItem again = new SourceItem("art.JPEG", null);
+			again.setTempFile(jpeg);
+			String first = component.uploadItem(item);
+			String second = component.uploadItem(again);
+			assertTrue(second.endsWith(".JPEG.json"));
+			assertArrayEquals(getUploaded(first), getUploaded(second));
+			// Stored under one .jpg content key
+			assertEquals(3, s3.getPutCount());
+			assertEquals(
+					1,
+					s3.getObjects().keySet().stream()
+							.filter(key -> key.startsWith("bucket/meural-uploads/content/"))
+							.filter(key -> key.endsWith(".jpg"))
+							.count());
+		} finally {
+			component.close();
+		}
+	}
+
+	@Test
+	public void testFailedUploadReturnsNull() throws IOException {
+		S3UploadComponent component = createComponent(true);
+		try {
+			s3.close();
+			assertNull(component.uploadItem(createItem("large.jpg", 6 * kMB)));
+		} finally {
+			component.close();
+		}
+	}
+
+	@Test
+	public void testBenchmarkSingleVersusMultipart() throws IOException {
+		// Latency and bandwidth per request, like real connections to S3
+		s3.setDelayMillis(50);
+		s3.setBytesPerSecond(20L * kMB);
+		S3UploadComponent single = createComponent(false);
+		S3UploadComponent multipart = createComponent(true);
+		try {
+			for (int size : new int[] {5, 20, 50}) {
+				SourceItem item = createItem("bench" + size + ".jpg", size * kMB);
+				// Warm up clients and connections
+				single.uploadItem(createItem("warm.jpg", kMB));
+				multipart.uploadItem(createItem("warm.jpg", kMB));
+				long singleMillis = time(single, item);
+				// Otherwise the content's already there
+				s3.getObjects().clear();
+				long multipartMillis = time(multipart, item);
+				log.info(size
+						+ "MB upload, single put: "
+						+ singleMillis
+						+ "ms ("
+						+ throughput(size, singleMillis)
+						+ "MB/s), multipart: "
+						+ multipartMillis
+						+ "ms ("
+						+ throughput(size, multipartMillis)
+						+ "MB/s)");
+				s3.getObjects().clear();
+			}
+		} finally {
+			single.close();
+			multipart.close();
+		}
+	}
+
+	private long time(S3UploadComponent component, SourceItem item) {
+		long start = System.currentTimeMillis();
+		assertNotNull(component.uploadItem(item));
+		return System.currentTimeMillis() - start;
+	}
+
+	private String throughput(int megabytes, long millis) {
+		return String.format("%.1f", megabytes * 1000d / Math.max(1, millis));
+	}
+}
@@ -43,7 +43,7 @@ public class S3UploadComponentTest {
 			assertNotNull(s3Key, "S3 key should not be null for successful upload");
 			assertTrue(s3Key.contains("meural-uploads"), "S3 key should contain prefix");
 			assertTrue(s3Key.contains(expectedDateFolder), "S3 key should contain date folder (YYYY-MM)");
-			assertTrue(s3Key.endsWith(".jpg"), "S3 key should have correct extension");
+			assertTrue(s3Key.endsWith(".jpg.json"), "S3 key should have correct extension");
 		} catch (Exception e) {
 			// If AWS credentials are not configured, the test should pass gracefully
 			// This allows tests to run in environments without AWS setup
@@ -97,7 +97,7 @@ public class S3UploadComponentTest {
 				String expectedDateFolder = LocalDate.now().format(DateTimeFormatter.ofPattern("yyyy-MM"));
 				assertTrue(s3Key.contains("meural-uploads"), "S3 key should contain correct prefix");
 				assertTrue(s3Key.contains(expectedDateFolder), "S3 key should contain date folder (YYYY-MM)");
-				assertTrue(s3Key.endsWith(".png"), "S3 key should preserve file extension");
+				assertTrue(s3Key.endsWith(".png.json"), "S3 key should preserve file extension");
 			}
 		} catch (Exception e) {
 			// Gracefully handle missing AWS credentials
@@ -0,0 +1,171 @@
+package com.bigboxer23.meural_control;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.bigboxer23.meural_control.data.SourceItem;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+/** Test saving items to S3 in the background, against a local stand in for S3 */
+public class S3UploadQueueTest {
+	@TempDir
+	private File tempDir;
+
+	private S3StandIn s3;
+
+	private S3UploadComponent s3Upload;
+
+	private SimpleMeterRegistry registry;
+
+	private S3UploadQueue queue;
+
+	@BeforeAll
+	public static void setupCredentials() {
+		System.setProperty("aws.accessKeyId", "test");
+		System.setProperty("aws.secretAccessKey", "test");
+	}
+
+	@BeforeEach
+	public void setup() throws IOException {
+		s3 = new S3StandIn();
+		registry = new SimpleMeterRegistry();
+		s3Upload = new S3UploadComponent(registry);
+		ReflectionTestUtils.setField(s3Upload, "bucketName", "bucket");
+		ReflectionTestUtils.setField(s3Upload, "region", "us-east-1");
+		ReflectionTestUtils.setField(s3Upload, "endpoint", s3.getEndpoint());
+		queue = createQueue(registry);
+	}
+
+	@AfterEach
+	public void tearDown() {
+		queue.shutdown();
+		s3.close();
+	}
+
+	private S3UploadQueue createQueue(SimpleMeterRegistry registry) {
+		S3UploadQueue queue = new S3UploadQueue(s3Upload, registry);
+		ReflectionTestUtils.setField(queue, "queueDirectory", new File(tempDir, "queue").getAbsolutePath());
+		ReflectionTestUtils.setField(queue, "retryMillis", 10L);
+		queue.load();
+		return queue;
+	}
+
+	private SourceItem createItem(String name, byte[] content) throws IOException {
+		File file = new File(tempDir, name);
+		Files.write(file.toPath(), content);
+		SourceItem item = new SourceItem(name, null, "album");
+		item.setTempFile(file);
+		return item;
+	}
+
+	private static byte[] content(int size) {
+		byte[] content = new byte[size];
+		new Random(size).nextBytes(content);
+		return content;
+	}
+
+	/**
+	 * @return dated keys added to the bucket
+	 */
+	private List<String> getIndexKeys() {
+		return s3.getObjects().keySet().stream()
+				.filter(key -> !key.contains("/content/"))
+				.toList();
+	}
+
+	private void awaitEmpty(S3UploadQueue queue) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000;
+		while (queue.getDepth() > 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(0, queue.getDepth());
+	}
+
+	@Test
+	public void testQueuedItemUploaded() throws IOException, InterruptedException {
+		byte[] content = content(300 * 1024);
+		SourceItem item = createItem("art.jpg", content);
+		queue.enqueue(item);
+		// The queue has its own copy
+		item.getTempFile().delete();
+		awaitEmpty(queue);
+
+		// Content plus the dated entry naming it
+		assertEquals(2, s3.getObjects().size());
+		String key = getIndexKeys().get(0);
+		assertTrue(key.startsWith("bucket/meural-uploads/"));
+		assertTrue(key.endsWith("_art.jpg.json"));
+		assertArrayEquals(content, s3.getIndexedContent(key));
+		assertEquals(1, registry.get("s3.upload.latency").timer().count());
+		assertEquals(1, registry.get("s3.upload.duration").timer().count());
+		assertEquals(0, registry.get("s3.upload.queue.depth").gauge().value());
+		// Spooled file removed once uploaded
+		assertArrayEquals(new String[] {"journal.properties"}, new File(tempDir, "queue").list());
+	}
+
+	@Test
+	public void testStreamedItemUploaded() throws IOException, InterruptedException {
+		byte[] content = content(100 * 1024);
+		queue.enqueue(new SourceItem("streamed.png", null, "album"), new ByteArrayInputStream(content));
+		awaitEmpty(queue);
+		assertArrayEquals(content, s3.getIndexedContent(getIndexKeys().get(0)));
+	}
+
+	@Test
+	public void testFailedUploadRetried() throws IOException, InterruptedException {
+		s3.failNext(2);
+		queue.enqueue(createItem("art.jpg", content(1024)));
+		awaitEmpty(queue);
+		// Two failed, then the content and the dated entry naming it
+		assertEquals(4, s3.getPutCount());
+		assertEquals(0, s3.getCopyCount());
+		assertEquals(1, getIndexKeys().size());
+		assertEquals(
+				2, registry.get("s3.upload").tag("result", "retry").counter().count());
+		assertEquals(
+				1, registry.get("s3.upload").tag("result", "uploaded").counter().count());
+	}
+
+	@Test
+	public void testSlowUploadDoesNotBlockEnqueue() throws IOException, InterruptedException {
+		s3.setDelayMillis(500);
+		long start = System.currentTimeMillis();
+		queue.enqueue(createItem("a.jpg", content(1024)));
+		queue.enqueue(createItem("b.jpg", content(2048)));
+		assertTrue(System.currentTimeMillis() - start < 400);
+		assertEquals(2, queue.getDepth());
+		awaitEmpty(queue);
+		assertEquals(2, getIndexKeys().size());
+	}
+
+	@Test
+	public void testQueueSurvivesRestart() throws IOException, InterruptedException {
+		// Stopped before anything is uploaded
+		queue.shutdown();
+		byte[] content = content(1024);
+		queue.enqueue(createItem("art.jpg", content));
+		assertEquals(0, s3.getPutCount());
+		File queueDir = new File(tempDir, "queue");
+		Files.write(new File(queueDir, "leftover.jpg.tmp").toPath(), content(10));
+
+		S3UploadQueue restarted = createQueue(new SimpleMeterRegistry());
+		try {
+			awaitEmpty(restarted);
+			assertArrayEquals(content, s3.getIndexedContent(getIndexKeys().get(0)));
+			assertFalse(new File(queueDir, "leftover.jpg.tmp").exists());
+		} finally {
+			restarted.shutdown();
+		}
+	}
+}
@@ -0,0 +1,202 @@
+package com.bigboxer23.meural_control;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.Mockito.*;
+
+import com.bigboxer23.meural_control.data.MeuralStatusResponse;
+import com.bigboxer23.meural_control.data.MeuralStringResponse;
+import com.bigboxer23.meural_control.data.SourceItem;
+import com.bigboxer23.meural_control.google.GooglePhotosComponent;
+import com.bigboxer23.meural_control.jwst.JWSTComponent;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.IOException;
+import java.util.Optional;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+@ExtendWith(MockitoExtension.class)
+public class SchedulerComponentTest {
+	@Mock
+	private GooglePhotosComponent mockGPhotos;
+
+	@Mock
+	private MeuralComponent mockApi;
+
+	@Mock
+	private OpenAIComponent mockOpenAI;
+
+	@Mock
+	private JWSTComponent mockJWST;
+
+	private BlockingTaskExecutor executor;
+
+	private SchedulerComponent scheduler;
+
+	private final SourceItem first = new SourceItem("first.jpg", null);
+
+	private final SourceItem second = new SourceItem("second.jpg", null);
+
+	private final SourceItem third = new SourceItem("third.jpg", null);
+
+	@BeforeEach
+	public void setup() throws IOException {
+		executor = BlockingTaskExecutor.create(false);
+		scheduler =
+				new SchedulerComponent(mockGPhotos, mockApi, mockOpenAI, mockJWST, executor, new SimpleMeterRegistry());
+		scheduler.changeSource(0);
+		MeuralStatusResponse awake = new MeuralStatusResponse();
+		awake.setStatus("pass");
+		when(mockApi.isAsleep()).thenReturn(awake);
+		MeuralStringResponse pass = new MeuralStringResponse();
+		pass.setStatus("pass");
+		when(mockApi.previewItem(any(), anyBoolean())).thenReturn(pass);
+		when(mockApi.changePicture(any())).thenReturn(pass);
+		when(mockGPhotos.nextItem()).thenReturn(Optional.of(first), Optional.of(second), Optional.of(third));
+	}
+
+	@AfterEach
+	public void tearDown() {
+		scheduler.shutdown();
+		executor.close();
+	}
+
+	@Test
+	public void testNextItemUsesPrefetch() throws IOException {
+		assertTrue(scheduler.nextItem().isSuccessful());
+		verify(mockApi).changePicture(first);
+		assertEquals(0, scheduler.getPrefetchHits());
+		assertEquals(1, scheduler.getPrefetchMisses());
+
+		verify(mockApi, timeout(1000)).prepareItem(second);
+		assertTrue(scheduler.nextItem().isSuccessful());
+		verify(mockApi).changePicture(second);
+		assertEquals(1, scheduler.getPrefetchHits());
+		assertEquals(1, scheduler.getPrefetchMisses());
+	}
+
+	@Test
+	public void testChangeSourceInvalidatesPrefetch() throws IOException {
+		scheduler.nextItem();
+		verify(mockApi, timeout(1000)).prepareItem(second);
+		scheduler.changeSource(0);
+		verify(mockGPhotos, timeout(1000)).stepBack();
+
+		scheduler.nextItem();
+		verify(mockApi).changePicture(third);
+		assertEquals(0, scheduler.getPrefetchHits());
+		assertEquals(2, scheduler.getPrefetchMisses());
+	}
+
+	/** A source being reset straight after invalidating mustn't be stepped back afterwards */
+	@Test
+	public void testInvalidateStepsBackBeforeReturning() throws IOException {
+		scheduler.nextItem();
+		verify(mockGPhotos, timeout(1000).times(2)).nextItem();
+		scheduler.invalidatePrefetch();
+		doAnswer(invocation -> {
+					Thread.sleep(300);
+					return Optional.of(third);
+				})
+				.when(mockGPhotos)
+				.nextItem();
+		scheduler.nextItem();
+		verify(mockGPhotos, timeout(1000).times(4)).nextItem();
+		scheduler.invalidatePrefetch();
+		verify(mockGPhotos, times(2)).stepBack();
+	}
+
+	@Test
+	public void testPrevItemDiscardsPrefetch() throws IOException {
+		when(mockGPhotos.prevItem()).thenReturn(Optional.of(first));
+		scheduler.nextItem();
+		verify(mockApi, timeout(1000)).prepareItem(second);
+		scheduler.prevItem();
+		verify(mockGPhotos).stepBack();
+		verify(mockApi, times(2)).changePicture(first);
+	}
+
+	@Test
+	public void testAsleepKeepsPrefetchedItem() throws IOException {
+		scheduler.nextItem();
+		verify(mockApi, timeout(1000)).prepareItem(second);
+		when(mockApi.isAsleep()).thenReturn(asleep());
+		assertTrue(((MeuralStatusResponse) scheduler.nextItem()).isResponse());
+		verify(mockApi, never()).changePicture(second);
+
+		when(mockApi.isAsleep()).thenReturn(awake());
+		assertTrue(scheduler.nextItem().isSuccessful());
+		verify(mockApi).changePicture(second);
+		verify(mockGPhotos, never()).stepBack();
+	}
+
+	@Test
+	public void testAsleepSkipsDownload() throws IOException {
+		scheduler.nextItem();
+		verify(mockApi, timeout(1000)).prepareItem(second);
+		// Drop the prefetched item so the next one is fetched on demand, slower than the sleep
+		// check
+		scheduler.changeSource(0);
+		verify(mockGPhotos, timeout(1000)).stepBack();
+		SourceItem slow = new SourceItem("slow.jpg", null);
+		doAnswer(invocation -> {
+					Thread.sleep(200);
+					return Optional.of(slow);
+				})
+				.doReturn(Optional.of(third))
+				.when(mockGPhotos)
+				.nextItem();
+		when(mockApi.isAsleep()).thenReturn(asleep());
+		assertTrue(((MeuralStatusResponse) scheduler.nextItem()).isResponse());
+		verify(mockApi, after(400).never()).prepareItem(slow);
+
+		// Downloaded once the frame's awake
+		when(mockApi.isAsleep()).thenReturn(awake());
+		assertTrue(scheduler.nextItem().isSuccessful());
+		verify(mockApi).prepareItem(slow);
+		verify(mockApi).changePicture(slow);
+		verify(mockGPhotos, times(1)).stepBack();
+	}
+
+	@Test
+	public void testCostlySourceNotAskedWhileAsleep() throws IOException {
+		scheduler.nextItem();
+		scheduler.changeSource(1);
+		when(mockOpenAI.isCostly()).thenReturn(true);
+		when(mockApi.isAsleep()).thenReturn(asleep());
+		assertTrue(((MeuralStatusResponse) scheduler.nextItem()).isResponse());
+		verify(mockOpenAI, never()).nextItem();
+	}
+
+	@Test
+	public void testCostlySourceNotPrefetched() throws IOException {
+		scheduler.nextItem();
+		scheduler.changeSource(1);
+		when(mockOpenAI.isCostly()).thenReturn(true);
+		when(mockOpenAI.nextItem()).thenReturn(Optional.of(third));
+		assertTrue(scheduler.nextItem().isSuccessful());
+		verify(mockApi).changePicture(third);
+
+		// Not paid for until a tick finds the frame awake
+		when(mockApi.isAsleep()).thenReturn(asleep());
+		assertTrue(((MeuralStatusResponse) scheduler.nextItem()).isResponse());
+		verify(mockOpenAI, after(300).times(1)).nextItem();
+	}
+
+	private MeuralStatusResponse awake() {
+		MeuralStatusResponse response = new MeuralStatusResponse();
+		response.setStatus("pass");
+		return response;
+	}
+
+	private MeuralStatusResponse asleep() {
+		MeuralStatusResponse response = awake();
+		response.setResponse(true);
+		return response;
+	}
+}
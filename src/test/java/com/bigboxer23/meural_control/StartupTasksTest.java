@@ -0,0 +1,69 @@
+package com.bigboxer23.meural_control;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.health.contributor.Health;
+import org.springframework.boot.health.contributor.Status;
+
+public class StartupTasksTest {
+	private final BlockingTaskExecutor executor = BlockingTaskExecutor.create(false);
+
+	@AfterEach
+	public void tearDown() {
+		executor.close();
+	}
+
+	@Test
+	public void testBackgroundDoesNotBlock() throws Exception {
+		StartupTasks tasks = new StartupTasks(true, executor);
+		StartupHealthIndicator health = new StartupHealthIndicator(tasks);
+		CountDownLatch release = new CountDownLatch(1);
+		CountDownLatch finished = new CountDownLatch(2);
+		long start = System.currentTimeMillis();
+		tasks.run("slow", () -> {
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				throw new IOException(e);
+			} finally {
+				finished.countDown();
+			}
+		});
+		tasks.run("broken", () -> {
+			finished.countDown();
+			throw new IOException("unreachable");
+		});
+		assertTrue(System.currentTimeMillis() - start < 1000);
+		tasks.onReady();
+		assertFalse(tasks.isFinished());
+		assertEquals(Status.OUT_OF_SERVICE, health.health().getStatus());
+
+		release.countDown();
+		assertTrue(finished.await(5, TimeUnit.SECONDS));
+		long deadline = System.currentTimeMillis() + 5000;
+		while (!tasks.isFinished() && System.currentTimeMillis() < deadline) {
+			Thread.onSpinWait();
+		}
+		// Failures are reported, but don't keep the application out of service
+		Health finishedHealth = health.health();
+		assertEquals(Status.UP, finishedHealth.getStatus());
+		assertEquals("done", tasks.getTasks().get(0).getState());
+		assertEquals("failed", tasks.getTasks().get(1).getState());
+		assertTrue(finishedHealth.getDetails().get("broken").toString().contains("unreachable"));
+	}
+
+	@Test
+	public void testBlockingRunsInline() {
+		StartupTasks tasks = new StartupTasks(false, executor);
+		Thread caller = Thread.currentThread();
+		tasks.run("inline", () -> assertSame(caller, Thread.currentThread()));
+		assertTrue(tasks.isFinished());
+		assertEquals("done", tasks.getTasks().get(0).getState());
+		assertEquals(Status.UP, new StartupHealthIndicator(tasks).health().getStatus());
+	}
+}
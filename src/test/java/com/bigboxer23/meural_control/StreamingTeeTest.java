@@ -0,0 +1,104 @@
+package com.bigboxer23.meural_control;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Test;
+
+/** Test copying one stream to several readers */
+public class StreamingTeeTest {
+	private static byte[] content(int size) {
+		byte[] content = new byte[size];
+		new Random(size).nextBytes(content);
+		return content;
+	}
+
+	private static CompletableFuture<byte[]> readAll(InputStream in) {
+		return CompletableFuture.supplyAsync(() -> {
+			try (in) {
+				return in.readAllBytes();
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		});
+	}
+
+	@Test
+	public void testEveryBranchGetsContent() throws Exception {
+		byte[] content = content(1000 * 1000);
+		StreamingTee tee = new StreamingTee(new ByteArrayInputStream(content), 2);
+		CompletableFuture<byte[]> first = readAll(tee.branch());
+		CompletableFuture<byte[]> second = readAll(tee.branch());
+		assertEquals(content.length, tee.pump());
+		assertArrayEquals(content, first.get(5, TimeUnit.SECONDS));
+		assertArrayEquals(content, second.get(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testSourceReadNoFasterThanReader() throws Exception {
+		byte[] content = content(1000 * 1000);
+		AtomicLong sourceRead = new AtomicLong();
+		InputStream source = new ByteArrayInputStream(content) {
+			@Override
+			public synchronized int read(byte[] b, int off, int len) {
+				int read = super.read(b, off, len);
+				sourceRead.addAndGet(Math.max(read, 0));
+				return read;
+			}
+		};
+		StreamingTee tee = new StreamingTee(source, 2);
+		InputStream branch = tee.branch();
+		CompletableFuture<Long> pumped = CompletableFuture.supplyAsync(() -> {
+			try {
+				return tee.pump();
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		});
+		Thread.sleep(200);
+		// Two buffered chunks, plus the one waiting to be handed over
+		assertTrue(sourceRead.get() <= 3 * 64 * 1024);
+		assertFalse(pumped.isDone());
+		assertArrayEquals(content, branch.readAllBytes());
+		assertEquals(content.length, pumped.get(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testClosedBranchDropped() throws Exception {
+		byte[] content = content(1000 * 1000);
+		StreamingTee tee = new StreamingTee(new ByteArrayInputStream(content), 1);
+		InputStream abandoned = tee.branch();
+		CompletableFuture<byte[]> reader = readAll(tee.branch());
+		abandoned.close();
+		assertEquals(content.length, tee.pump());
+		assertArrayEquals(content, reader.get(5, TimeUnit.SECONDS));
+		assertThrows(IOException.class, abandoned::read);
+	}
+
+	@Test
+	public void testSourceFailureSeenByBranches() {
+		InputStream failing = new InputStream() {
+			private int count;
+
+			@Override
+			public int read() throws IOException {
+				if (++count > 100) {
+					throw new IOException("connection reset");
+				}
+				return 1;
+			}
+		};
+		StreamingTee tee = new StreamingTee(failing, 4);
+		CompletableFuture<byte[]> reader = readAll(tee.branch());
+		assertThrows(IOException.class, tee::pump);
+		ExecutionException e = assertThrows(ExecutionException.class, () -> reader.get(5, TimeUnit.SECONDS));
+		assertInstanceOf(IOException.class, e.getCause().getCause());
+	}
+}
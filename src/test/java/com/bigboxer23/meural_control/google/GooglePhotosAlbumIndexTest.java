@@ -0,0 +1,128 @@
+package com.bigboxer23.meural_control.google;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/** Test the album index against a fake album holding 10k items, returned in pages of 100 */
+@Slf4j
+public class GooglePhotosAlbumIndexTest {
+	private static final int kAlbumSize = 10000;
+
+	private static final int kPageSize = 100;
+
+	private final List<String> album = new ArrayList<>();
+
+	private final AtomicInteger pageFetches = new AtomicInteger();
+
+	@TempDir
+	private File tempDir;
+
+	@BeforeEach
+	public void setup() {
+		for (int ai = 0; ai < kAlbumSize; ai++) {
+			album.add("media" + ai);
+		}
+	}
+
+	private GooglePhotosAlbumIndex.Page fetchPage(String albumId, String pageToken) {
+		pageFetches.incrementAndGet();
+		int start = pageToken == null ? 0 : Integer.parseInt(pageToken);
+		int end = Math.min(start + kPageSize, album.size());
+		return new GooglePhotosAlbumIndex.Page(
+				new ArrayList<>(album.subList(start, end)), end < album.size() ? String.valueOf(end) : "");
+	}
+
+	/** What jumpToItem used to do, page from the start of the album until reaching the index */
+	private String walkToItem(int index) {
+		String pageToken = null;
+		int position = 0;
+		do {
+			GooglePhotosAlbumIndex.Page page = fetchPage("album", pageToken);
+			for (String id : page.mediaItemIds()) {
+				if (position++ == index) {
+					return id;
+				}
+			}
+			pageToken = page.nextPageToken();
+		} while (!pageToken.isEmpty());
+		return null;
+	}
+
+	@Test
+	public void testIndexLookup() {
+		GooglePhotosAlbumIndex index = new GooglePhotosAlbumIndex(new File(tempDir, "index"));
+		assertFalse(index.isIndexed("album"));
+		index.refresh("album", this::fetchPage);
+		assertTrue(index.isIndexed("album"));
+		assertFalse(index.isIndexed("otherAlbum"));
+		assertEquals(kAlbumSize, index.size());
+		assertEquals(kAlbumSize / kPageSize, pageFetches.get());
+		assertEquals("media0", index.getMediaItemId(0).orElse(null));
+		assertEquals("media9999", index.getMediaItemId(9999).orElse(null));
+		assertTrue(index.getMediaItemId(kAlbumSize).isEmpty());
+		assertTrue(index.getMediaItemId(-1).isEmpty());
+	}
+
+	@Test
+	public void testIndexPersisted() {
+		new GooglePhotosAlbumIndex(new File(tempDir, "index")).refresh("album", this::fetchPage);
+		pageFetches.set(0);
+		GooglePhotosAlbumIndex index = new GooglePhotosAlbumIndex(new File(tempDir, "index"));
+		assertTrue(index.isIndexed("album"));
+		assertEquals(kAlbumSize, index.size());
+		assertEquals("media5000", index.getMediaItemId(5000).orElse(null));
+		assertEquals(0, pageFetches.get());
+	}
+
+	@Test
+	public void testCorruptIndexIgnored() throws Exception {
+		File file = new File(tempDir, "index");
+		Files.writeString(file.toPath(), "album\nnot a number\n");
+		assertFalse(new GooglePhotosAlbumIndex(file).isIndexed("album"));
+	}
+
+	@Test
+	public void testBenchmarkJumpDeepIntoAlbum() {
+		int jumps = 50;
+		int startIndex = 9000;
+
+		long start = System.nanoTime();
+		for (int ai = 0; ai < jumps; ai++) {
+			assertEquals("media" + (startIndex + ai), walkToItem(startIndex + ai));
+		}
+		long walkNanos = System.nanoTime() - start;
+		int walkPages = pageFetches.getAndSet(0);
+
+		GooglePhotosAlbumIndex index = new GooglePhotosAlbumIndex(new File(tempDir, "index"));
+		start = System.nanoTime();
+		index.refresh("album", this::fetchPage);
+		for (int ai = 0; ai < jumps; ai++) {
+			assertEquals(
+					"media" + (startIndex + ai),
+					index.getMediaItemId(startIndex + ai).orElse(null));
+		}
+		long indexNanos = System.nanoTime() - start;
+		int indexPages = pageFetches.get();
+
+		log.info("walk: "
+				+ walkPages
+				+ " pages, "
+				+ walkNanos / 1000
+				+ "us; index: "
+				+ indexPages
+				+ " pages (one time build), "
+				+ indexNanos / 1000
+				+ "us");
+		assertEquals(jumps * (startIndex / kPageSize + 1), walkPages);
+		assertEquals(kAlbumSize / kPageSize, indexPages);
+	}
+}
@@ -0,0 +1,166 @@
+package com.bigboxer23.meural_control.jwst;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.sun.management.ThreadMXBean;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.Predicate;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Test both extractors find the same links in pages modelled on Flickr's album and sizes pages, and
+ * compare what each costs to parse them
+ */
+@Slf4j
+public class HtmlLinkExtractorTest {
+	private static final String kAlbumUrl = "https://www.flickr.com/photos/nasawebbtelescope/albums/72177720323168468/";
+
+	private static final String kSizesUrl = "https://www.flickr.com/photos/nasawebbtelescope/53592235761/sizes/o/";
+
+	private static final String kPhotoId = "53592235761";
+
+	private static final Predicate<String> kAlbumFilter = href -> href.matches(".*/photos/nasawebbtelescope/\\d+/?.*");
+
+	private static final Predicate<String> kSizesFilter = href -> href.contains(kPhotoId);
+
+	private final HtmlLinkExtractor streaming = new StreamingLinkExtractor();
+
+	private final HtmlLinkExtractor htmlUnit = new HtmlUnitLinkExtractor();
+
+	private static Reader fixture(String name) {
+		InputStream stream = HtmlLinkExtractorTest.class.getResourceAsStream("/jwst/" + name);
+		assertNotNull(stream, name);
+		return new InputStreamReader(stream, StandardCharsets.UTF_8);
+	}
+
+	private List<HtmlLinkExtractor.Link> extract(
+			HtmlLinkExtractor extractor, String fixture, String url, Predicate<String> filter) throws IOException {
+		try (Reader reader = fixture(fixture)) {
+			return extractor.extractLinks(reader, url, filter);
+		}
+	}
+
+	@Test
+	public void testAlbumPhotos() throws IOException {
+		List<JWSTAlbumIndex.Photo> photos =
+				FlickrAlbumFetcher.toPhotos(extract(streaming, "album.html", kAlbumUrl, kAlbumFilter));
+		assertEquals(120, photos.size());
+		assertEquals("53000000000", photos.get(0).id());
+		// Links in scripts and comments aren't links
+		assertTrue(photos.stream().noneMatch(photo -> photo.id().equals("99999999999")));
+		assertTrue(photos.stream().noneMatch(photo -> photo.id().equals("88888888888")));
+		assertTrue(
+				photos.get(5).title().startsWith("Webb & Hubble view of "),
+				photos.get(5).title());
+		assertTrue(photos.get(7).title().endsWith(" \"compass\""), photos.get(7).title());
+		assertEquals(photos, FlickrAlbumFetcher.toPhotos(extract(htmlUnit, "album.html", kAlbumUrl, kAlbumFilter)));
+	}
+
+	@Test
+	public void testSizesDownloadUrl() throws IOException {
+		String expected =
+				"https://www.flickr.com/photo_download.gne?id=53592235761&secret=0f1e2d&size=xl&source=photoPageEngagement";
+		List<HtmlLinkExtractor.Link> links = extract(streaming, "sizes.html", kSizesUrl, kSizesFilter);
+		assertEquals(Optional.of(expected), FlickrAlbumFetcher.findDownloadUrl(links, kPhotoId));
+		assertEquals(
+				Optional.of(expected),
+				FlickrAlbumFetcher.findDownloadUrl(extract(htmlUnit, "sizes.html", kSizesUrl, kSizesFilter), kPhotoId));
+		assertEquals(
+				"Download the X-Large 4K size of this photo",
+				links.stream()
+						.filter(link -> link.href().equals(expected))
+						.findFirst()
+						.orElseThrow()
+						.text()
+						.trim());
+	}
+
+	@Test
+	public void testLinksMatchHtmlUnit() throws IOException {
+		for (String fixture : List.of("album.html", "sizes.html")) {
+			List<HtmlLinkExtractor.Link> expected = extract(htmlUnit, fixture, kAlbumUrl, href -> true);
+			List<HtmlLinkExtractor.Link> actual = extract(streaming, fixture, kAlbumUrl, href -> true);
+			assertEquals(expected.size(), actual.size(), fixture);
+			for (int ai = 0; ai < expected.size(); ai++) {
+				assertEquals(expected.get(ai).href(), actual.get(ai).href(), fixture);
+				assertEquals(expected.get(ai).title(), actual.get(ai).title(), fixture);
+				// HtmlUnit normalises whitespace in text
+				assertEquals(
+						expected.get(ai).text().replaceAll("\\s+", " ").trim(),
+						actual.get(ai).text().replaceAll("\\s+", " ").trim(),
+						fixture);
+			}
+		}
+	}
+
+	@Test
+	public void testMarkup() throws IOException {
+		String html = "<p>a < b</p><A HREF=/photos/1/ Title='it&#39;s &#x263A; &bogus; &amp'>one"
+				+ " <b>bold</b></a><a href=\"/photos/2/\"><!-- </a> -->two<a"
+				+ " href='/photos/3/'>three</a><script>var s = '</scr' + 'ipt><a"
+				+ " href=\"/photos/4/\">';</script><style>a::after { content: \"</a>\""
+				+ " }</style><a href=\"/photos/5/\" disabled>five";
+		List<HtmlLinkExtractor.Link> links =
+				streaming.extractLinks(new StringReader(html), kAlbumUrl, href -> href.startsWith("/photos/"));
+		assertEquals(
+				List.of(
+						new HtmlLinkExtractor.Link("/photos/1/", "it's \u263A &bogus; &amp", "one bold"),
+						new HtmlLinkExtractor.Link("/photos/2/", "", "two"),
+						new HtmlLinkExtractor.Link("/photos/3/", "", "three"),
+						new HtmlLinkExtractor.Link("/photos/5/", "", "five")),
+				links);
+	}
+
+	/**
+	 * Parse time and allocation per page, standing in for a jmh benchmark. Each extractor is warmed
+	 * up, then the best of several runs kept.
+	 */
+	@Test
+	public void testCost() throws IOException {
+		for (String[] page : new String[][] {{"album.html", kAlbumUrl}, {"sizes.html", kSizesUrl}}) {
+			long[] streamingCost = measure(streaming, page[0], page[1]);
+			long[] htmlUnitCost = measure(htmlUnit, page[0], page[1]);
+			log.info(page[0]
+					+ " streaming: "
+					+ streamingCost[0] / 1000
+					+ "us, "
+					+ streamingCost[1] / 1024
+					+ "KB allocated, htmlunit: "
+					+ htmlUnitCost[0] / 1000
+					+ "us, "
+					+ htmlUnitCost[1] / 1024
+					+ "KB allocated");
+			assertTrue(streamingCost[1] * 10 < htmlUnitCost[1], page[0]);
+			assertTrue(streamingCost[0] < htmlUnitCost[0], page[0]);
+		}
+	}
+
+	/**
+	 * @return best nanoseconds and bytes allocated to extract every link from the page
+	 */
+	private long[] measure(HtmlLinkExtractor extractor, String fixture, String url) throws IOException {
+		ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long thread = Thread.currentThread().getId();
+		for (int ai = 0; ai < 5; ai++) {
+			extract(extractor, fixture, url, href -> true);
+		}
+		long[] best = {Long.MAX_VALUE, Long.MAX_VALUE};
+		for (int ai = 0; ai < 5; ai++) {
+			long allocated = threads.getThreadAllocatedBytes(thread);
+			long start = System.nanoTime();
+			extract(extractor, fixture, url, href -> true);
+			best[0] = Math.min(best[0], System.nanoTime() - start);
+			best[1] = Math.min(best[1], threads.getThreadAllocatedBytes(thread) - allocated);
+		}
+		return best;
+	}
+}
@@ -0,0 +1,208 @@
+package com.bigboxer23.meural_control.jwst;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/** Test the album index against a fake album which supports conditional requests */
+public class JWSTAlbumIndexTest {
+	@TempDir
+	private File tempDir;
+
+	private final List<JWSTAlbumIndex.Photo> album = new ArrayList<>();
+
+	private final AtomicInteger albumFetches = new AtomicInteger();
+
+	private final AtomicInteger fullAlbumFetches = new AtomicInteger();
+
+	private final List<String> urlLookups = new ArrayList<>();
+
+	/** Photos whose download url can't be found */
+	private final Set<String> missingUrls = new HashSet<>();
+
+	private String etag = "\"v1\"";
+
+	private final JWSTAlbumIndex.AlbumFetcher fetcher = new JWSTAlbumIndex.AlbumFetcher() {
+		@Override
+		public Optional<JWSTAlbumIndex.Album> fetchAlbum(String ifNoneMatch, String lastModified) {
+			albumFetches.incrementAndGet();
+			if (etag.equals(ifNoneMatch)) {
+				return Optional.empty();
+			}
+			fullAlbumFetches.incrementAndGet();
+			return Optional.of(new JWSTAlbumIndex.Album(new ArrayList<>(album), etag, null));
+		}
+
+		@Override
+		public Optional<String> fetchDownloadUrl(String photoId) {
+			urlLookups.add(photoId);
+			return missingUrls.contains(photoId)
+					? Optional.empty()
+					: Optional.of("https://www.flickr.com/photo_download.gne?id=" + photoId + "&size=xl");
+		}
+	};
+
+	private void addPhotos(int from, int to) {
+		for (int ai = from; ai < to; ai++) {
+			album.add(new JWSTAlbumIndex.Photo(String.valueOf(ai), "Photo " + ai));
+		}
+	}
+
+	private boolean skip(String title) {
+		return title.toLowerCase().contains("spectrum");
+	}
+
+	@Test
+	public void testRefresh() throws IOException {
+		addPhotos(0, 10);
+		album.add(3, new JWSTAlbumIndex.Photo("100", "Transmission Spectrum"));
+		JWSTAlbumIndex index = new JWSTAlbumIndex(new File(tempDir, "index"));
+		assertTrue(index.refresh(fetcher, this::skip));
+		assertEquals(10, index.size());
+		assertEquals("3", index.getPhoto(3).get().id());
+		assertEquals("Photo 3", index.getPhoto(3).get().title());
+		assertEquals(
+				"https://www.flickr.com/photo_download.gne?id=3&size=xl",
+				index.getPhoto(3).get().downloadUrl());
+		assertTrue(index.getPhoto(10).isEmpty());
+		// Skipped photos aren't looked up at all
+		assertEquals(10, urlLookups.size());
+		assertFalse(urlLookups.contains("100"));
+	}
+
+	@Test
+	public void testUnchangedAlbumCostsNothing() throws IOException {
+		addPhotos(0, 10);
+		JWSTAlbumIndex index = new JWSTAlbumIndex(new File(tempDir, "index"));
+		index.refresh(fetcher, this::skip);
+		urlLookups.clear();
+
+		assertFalse(index.refresh(fetcher, this::skip));
+		assertEquals(2, albumFetches.get());
+		assertEquals(1, fullAlbumFetches.get());
+		assertTrue(urlLookups.isEmpty());
+		assertEquals(10, index.size());
+	}
+
+	@Test
+	public void testOnlyNewPhotosLookedUp() throws IOException {
+		addPhotos(0, 10);
+		JWSTAlbumIndex index = new JWSTAlbumIndex(new File(tempDir, "index"));
+		index.refresh(fetcher, this::skip);
+		urlLookups.clear();
+
+		album.add(0, new JWSTAlbumIndex.Photo("50", "Photo 50"));
+		album.remove(album.size() - 1);
+		etag = "\"v2\"";
+		assertTrue(index.refresh(fetcher, this::skip));
+		assertEquals(List.of("50"), urlLookups);
+		assertEquals(10, index.size());
+		assertEquals("50", index.getPhoto(0).get().id());
+		assertEquals("8", index.getPhoto(9).get().id());
+	}
+
+	@Test
+	public void testMissingUrlRetried() throws IOException {
+		addPhotos(0, 5);
+		missingUrls.add("2");
+		JWSTAlbumIndex index = new JWSTAlbumIndex(new File(tempDir, "index"));
+		index.refresh(fetcher, this::skip);
+		assertEquals(4, index.size());
+
+		// The album hasn't changed, but is fetched again to retry the missing photo
+		missingUrls.clear();
+		urlLookups.clear();
+		assertTrue(index.refresh(fetcher, this::skip));
+		assertEquals(List.of("2"), urlLookups);
+		assertEquals(5, index.size());
+		assertFalse(index.refresh(fetcher, this::skip));
+	}
+
+	@Test
+	public void testPersisted() throws IOException {
+		addPhotos(0, 10);
+		album.set(4, new JWSTAlbumIndex.Photo("4", "A title\twith\nodd  spacing"));
+		File file = new File(tempDir, "index");
+		new JWSTAlbumIndex(file).refresh(fetcher, this::skip);
+
+		JWSTAlbumIndex reloaded = new JWSTAlbumIndex(file);
+		assertEquals(10, reloaded.size());
+		assertEquals("A title with odd spacing", reloaded.getPhoto(4).get().title());
+		assertEquals(
+				"https://www.flickr.com/photo_download.gne?id=9&size=xl",
+				reloaded.getPhoto(9).get().downloadUrl());
+		// The validators are kept, so the first refresh after a restart is conditional too
+		assertFalse(reloaded.refresh(fetcher, this::skip));
+		assertEquals(1, fullAlbumFetches.get());
+	}
+
+	@Test
+	public void testCorruptIndexRebuilt() throws IOException {
+		File file = new File(tempDir, "index");
+		Files.writeString(file.toPath(), "\"v1\"\n\nnot a number\n");
+		JWSTAlbumIndex index = new JWSTAlbumIndex(file);
+		assertEquals(0, index.size());
+		addPhotos(0, 3);
+		assertTrue(index.refresh(fetcher, this::skip));
+		assertEquals(3, index.size());
+	}
+
+	@Test
+	public void testConcurrentLookups() throws Exception {
+		addPhotos(0, 20);
+		AtomicInteger running = new AtomicInteger();
+		AtomicInteger mostRunning = new AtomicInteger();
+		JWSTAlbumIndex.AlbumFetcher slowFetcher = new JWSTAlbumIndex.AlbumFetcher() {
+			@Override
+			public Optional<JWSTAlbumIndex.Album> fetchAlbum(String etag, String lastModified) throws IOException {
+				return fetcher.fetchAlbum(etag, lastModified);
+			}
+
+			@Override
+			public Optional<String> fetchDownloadUrl(String photoId) throws IOException {
+				mostRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+				try {
+					Thread.sleep(50);
+				} catch (InterruptedException e) {
+					throw new IOException(e);
+				} finally {
+					running.decrementAndGet();
+				}
+				if (photoId.equals("13")) {
+					throw new IOException("sizes page unavailable");
+				}
+				return Optional.of("https://www.flickr.com/photo_download.gne?id=" + photoId + "&size=xl");
+			}
+		};
+		ExecutorService lookups = Executors.newFixedThreadPool(4);
+		try {
+			JWSTAlbumIndex index = new JWSTAlbumIndex(new File(tempDir, "index"));
+			assertThrows(IOException.class, () -> index.refresh(slowFetcher, this::skip, lookups));
+			assertEquals(0, index.size());
+
+			album.remove(13);
+			long start = System.currentTimeMillis();
+			assertTrue(index.refresh(slowFetcher, this::skip, lookups));
+			assertTrue(System.currentTimeMillis() - start < 19 * 50, "lookups weren't concurrent");
+			assertEquals(4, mostRunning.get());
+			assertEquals(19, index.size());
+			for (int ai = 0; ai < 19; ai++) {
+				assertEquals(album.get(ai).id(), index.getPhoto(ai).get().id());
+			}
+		} finally {
+			lookups.shutdownNow();
+		}
+	}
+}
@@ -0,0 +1,171 @@
+package com.bigboxer23.meural_control.transform;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import javax.imageio.ImageIO;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+@Slf4j
+public class JavaImageTransformerTest {
+	private static final String kCropCommand = "convert %s -crop 960x1440+0+0 %s";
+
+	private final JavaImageTransformer transformer = new JavaImageTransformer();
+
+	@TempDir
+	private File tempDir;
+
+	/** Left half red, right half blue */
+	private File createImage(String name, int width, int height) throws IOException {
+		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		Graphics2D graphics = image.createGraphics();
+		graphics.setColor(Color.RED);
+		graphics.fillRect(0, 0, width / 2, height);
+		graphics.setColor(Color.BLUE);
+		graphics.fillRect(width / 2, 0, width - width / 2, height);
+		graphics.dispose();
+		File file = new File(tempDir, name);
+		ImageIO.write(image, "jpg", file);
+		return file;
+	}
+
+	private BufferedImage transform(File input, String command) throws IOException {
+		File output = new File(tempDir, "out.jpg");
+		transformer.transform(input, output, command);
+		return ImageIO.read(output);
+	}
+
+	private boolean isRed(int rgb) {
+		Color color = new Color(rgb);
+		return color.getRed() > 200 && color.getBlue() < 60;
+	}
+
+	@Test
+	public void testSupports() {
+		assertTrue(transformer.supports(kCropCommand));
+		assertTrue(transformer.supports("convert %s -crop 960x1440+0+0 +repage -resize 480x720 -quality 85 %s"));
+		assertTrue(transformer.supports("magick %s -rotate -90 -resize 1000x %s"));
+		assertFalse(transformer.supports(""));
+		assertFalse(transformer.supports(null));
+		assertFalse(transformer.supports("convert %s -rotate 45 %s"));
+		assertFalse(transformer.supports("convert %s -sepia-tone 80% %s"));
+		assertFalse(transformer.supports("convert %s -crop 960x1440 %s"));
+		assertFalse(transformer.supports("convert %s -resize %s"));
+		assertFalse(transformer.supports("/usr/local/bin/frame.sh %s"));
+	}
+
+	@Test
+	public void testCrop() throws IOException {
+		BufferedImage image = transform(createImage("in.jpg", 2000, 1500), kCropCommand);
+		assertEquals(960, image.getWidth());
+		assertEquals(1440, image.getHeight());
+		assertTrue(isRed(image.getRGB(900, 700)));
+
+		// Crop clipped to the image, offset into the blue side
+		image = transform(createImage("in.jpg", 2000, 1500), "convert %s -crop 960x1440+1500+100 %s");
+		assertEquals(500, image.getWidth());
+		assertEquals(1400, image.getHeight());
+		assertFalse(isRed(image.getRGB(10, 10)));
+	}
+
+	@Test
+	public void testResize() throws IOException {
+		File input = createImage("in.jpg", 4000, 3000);
+		BufferedImage image = transform(input, "convert %s -resize 400x400 %s");
+		assertEquals(400, image.getWidth());
+		assertEquals(300, image.getHeight());
+		assertTrue(isRed(image.getRGB(100, 150)));
+		assertFalse(isRed(image.getRGB(300, 150)));
+
+		image = transform(input, "convert %s -resize 400x400! %s");
+		assertEquals(400, image.getWidth());
+		assertEquals(400, image.getHeight());
+
+		image = transform(input, "convert %s -resize 400x400^ %s");
+		assertEquals(533, image.getWidth());
+		assertEquals(400, image.getHeight());
+
+		image = transform(input, "convert %s -resize 8000x8000> %s");
+		assertEquals(4000, image.getWidth());
+	}
+
+	@Test
+	public void testRotate() throws IOException {
+		BufferedImage image = transform(createImage("in.jpg", 400, 200), "convert %s -rotate 90 %s");
+		assertEquals(200, image.getWidth());
+		assertEquals(400, image.getHeight());
+		// Red left half is now the top
+		assertTrue(isRed(image.getRGB(100, 50)));
+		assertFalse(isRed(image.getRGB(100, 350)));
+
+		image = transform(createImage("in.jpg", 400, 200), "convert %s -rotate 270 %s");
+		assertFalse(isRed(image.getRGB(100, 50)));
+		assertTrue(isRed(image.getRGB(100, 350)));
+	}
+
+	@Test
+	public void testQuality() throws IOException {
+		File input = createImage("in.jpg", 2000, 1500);
+		File high = new File(tempDir, "high.jpg");
+		File low = new File(tempDir, "low.jpg");
+		transformer.transform(input, high, "convert %s -resize 1000x -quality 100 %s");
+		transformer.transform(input, low, "convert %s -resize 1000x -quality 10 %s");
+		assertTrue(low.length() < high.length());
+	}
+
+	/**
+	 * Compare the crop to panel size transform on a 24MP photo in process against running
+	 * ImageMagick (skipped when it isn't installed)
+	 */
+	@Test
+	public void testBenchmark24MP() throws IOException, InterruptedException {
+		BufferedImage source = new BufferedImage(6000, 4000, BufferedImage.TYPE_INT_RGB);
+		for (int y = 0; y < source.getHeight(); y++) {
+			for (int x = 0; x < source.getWidth(); x++) {
+				source.setRGB(x, y, (x * 7 + y * 13) ^ (x * y));
+			}
+		}
+		File input = new File(tempDir, "24mp.jpg");
+		ImageIO.write(source, "jpg", input);
+		source = null;
+		int iterations = 3;
+
+		File output = new File(tempDir, "out.jpg");
+		transformer.transform(input, output, kCropCommand); // warm up
+		long start = System.nanoTime();
+		for (int ai = 0; ai < iterations; ai++) {
+			transformer.transform(input, output, kCropCommand);
+		}
+		long javaMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) / iterations;
+		assertEquals(960, ImageIO.read(output).getWidth());
+
+		long commandMillis = -1;
+		if (isImageMagickInstalled()) {
+			CommandImageTransformer command = new CommandImageTransformer();
+			start = System.nanoTime();
+			for (int ai = 0; ai < iterations; ai++) {
+				command.transform(input, output, kCropCommand);
+			}
+			commandMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) / iterations;
+		}
+		log.info("24MP crop, java: "
+				+ javaMillis
+				+ "ms, command: "
+				+ (commandMillis < 0 ? "convert not installed" : commandMillis + "ms"));
+	}
+
+	private boolean isImageMagickInstalled() throws InterruptedException {
+		try {
+			return new ProcessBuilder("convert", "-version").start().waitFor() == 0;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+}